@@ -0,0 +1,104 @@
+package ch.uzh.csg.nfclib;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+import ch.uzh.csg.nfclib.utils.AndroidLogger;
+import ch.uzh.csg.nfclib.utils.Config;
+import android.nfc.cardemulation.HostApduService;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * This class handles incoming messages over NFC, which are passed to this
+ * directly by the Android OS. It is to be registered in the Manifest.xml of
+ * your application.
+ * 
+ * Several {@link NfcResponder}s can be registered, each under its own AID
+ * (which also has to be listed in the apduservice.xml). The SELECT AID sent by
+ * the initiator decides which one handles the session, all subsequent messages
+ * are passed to the same {@link NfcResponder} until the next SELECT AID. Each
+ * {@link NfcResponder} keeps its own state and executor.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public final class HostApduServiceNfcLib extends HostApduService {
+	/*
+	 * DO NOT RENAME THIS CLASS!! It is referenced in other projects in xml
+	 * files and will crash other projects if you do so!
+	 */
+
+	private static final String TAG = "ch.uzh.csg.nfclib.hce.HostApduServiceNfcLib";
+
+	static {
+		AndroidLogger.install();
+	}
+
+	// the ByteBuffer of an AID compares and hashes its content
+	private static final Map<ByteBuffer, NfcResponder> fNfcResponders = new ConcurrentHashMap<ByteBuffer, NfcResponder>();
+	
+	// the NfcResponder selected by the last SELECT AID
+	private static volatile NfcResponder fSelected;
+	
+	/**
+	 * Sets the {@link NfcResponder} to handle incoming messages sent to the
+	 * default AID {@link NfcMessage#AID_MBPS}.
+	 */
+	public static void init(final NfcResponder nfcResponder) {
+		init(NfcMessage.AID_MBPS, nfcResponder);
+	}
+	
+	/**
+	 * Sets the {@link NfcResponder} to handle incoming messages sent to the
+	 * given AID, or removes it if nfcResponder is null.
+	 * 
+	 * @param aid
+	 *            the AID as registered in the apduservice.xml
+	 * @param nfcResponder
+	 *            the {@link NfcResponder} for this AID
+	 */
+	public static void init(final byte[] aid, final NfcResponder nfcResponder) {
+		final ByteBuffer key = ByteBuffer.wrap(aid.clone());
+		if (nfcResponder == null) {
+			final NfcResponder removed = fNfcResponders.remove(key);
+			if (removed != null && removed == fSelected) {
+				fSelected = null;
+			}
+		} else {
+			fNfcResponders.put(key, nfcResponder);
+		}
+	}
+
+	@Override
+	public byte[] processCommandApdu(final byte[] bytes, final Bundle extras) {
+		final byte[] aid = NfcMessage.selectedAid(bytes);
+		if (aid != null) {
+			fSelected = fNfcResponders.get(ByteBuffer.wrap(aid));
+		}
+		final NfcResponder nfcResponder = fSelected;
+		if (nfcResponder == null) {
+			Log.w(TAG, "no CustomHostApduService set");
+			return null;
+		}
+		final byte[] retVal = nfcResponder.processIncomingData(bytes);
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "about to return "+Arrays.toString(retVal));
+		
+		return retVal;
+	}
+
+	@Override
+	public void onDeactivated(final int reason) {
+		final NfcResponder nfcResponder = fSelected;
+		if (nfcResponder != null) {
+			nfcResponder.onDeactivated(reason);
+		}
+	}
+	
+}
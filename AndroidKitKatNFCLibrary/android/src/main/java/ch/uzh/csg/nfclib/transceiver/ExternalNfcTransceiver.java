@@ -1,6 +1,14 @@
 package ch.uzh.csg.nfclib.transceiver;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.app.Activity;
 import android.app.PendingIntent;
@@ -17,6 +25,7 @@ import ch.uzh.csg.nfclib.events.INfcEventHandler;
 import ch.uzh.csg.nfclib.events.NfcEvent;
 import ch.uzh.csg.nfclib.messages.NfcMessage;
 import ch.uzh.csg.nfclib.messages.NfcMessage.Type;
+import ch.uzh.csg.nfclib.utils.AndroidLogger;
 import ch.uzh.csg.nfclib.utils.Config;
 
 import com.acs.smartcard.Reader;
@@ -27,6 +36,11 @@ import com.acs.smartcard.ReaderException;
  * This class handles the ACR122u USB NFC reader initialization and the message
  * exchange over NFC.
  * 
+ * The reader library has no timeout for a single transmit, so the transmit
+ * runs on a separate thread and the caller only waits until the timeout has
+ * elapsed or the write has been cancelled. An abandoned transmit still
+ * occupies the reader until it returns, the next write waits for it.
+ * 
  * @author Jeton Memeti
  * @author Thomas Bocek
  * 
@@ -49,12 +63,24 @@ public class ExternalNfcTransceiver implements INfcTransceiver {
 
 	private static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
 
+	static {
+		AndroidLogger.install();
+	}
+
 	private BroadcastReceiver broadcastReceiver;
 
 	private final INfcEventHandler eventHandler;
-	private final TagDiscoveredHandler nfcInit;
-
-	private Reader reader;
+	private final Activity activity;
+	private final UsbManager manager;
+	// created once, the USB devices are only enumerated if none has been set
+	private final Reader reader;
+	private volatile UsbDevice device = null;
+	private volatile TagDiscoveredHandler nfcInit;
+
+	private ExecutorService transmitter;
+	private volatile Future<Integer> pending = null;
+	// the timeout requested for the following writes, 0 to wait for the reader
+	private volatile int timeout = 0;
 	/*
 	 * not sure if this is called from different threads. Make it volatile just
 	 * in case.
@@ -66,24 +92,50 @@ public class ExternalNfcTransceiver implements INfcTransceiver {
 	 * 
 	 * @param eventHandler
 	 *            the {@link INfcEventHandler} (may not be null)
-	 * @param nfcInit
-	 *            the {@link TagDiscoveredHandler} which is notified as soon as
-	 *            a NFC connection is established (may not be null)
+	 * @param activity
+	 *            the application's current activity to bind the NFC
+	 *            controller to (may not be null)
 	 */
-	public ExternalNfcTransceiver(INfcEventHandler eventHandler, TagDiscoveredHandler nfcInit) {
+	public ExternalNfcTransceiver(INfcEventHandler eventHandler, Activity activity) {
 		this.eventHandler = eventHandler;
-		this.nfcInit = nfcInit;
+		this.activity = activity;
+		this.manager = (UsbManager) activity.getSystemService(Context.USB_SERVICE);
+		this.reader = new Reader(manager);
 	}
 
-	@Override
-	public void turnOn(Activity activity) throws NfcLibException {
-		UsbManager manager = (UsbManager) activity.getSystemService(Context.USB_SERVICE);
-		reader = new Reader(manager);
+	/*
+	 * Sets the reader found by the NfcTransceiverManager, so it is not
+	 * searched again when turned on.
+	 */
+	void device(UsbDevice device) {
+		this.device = device;
+	}
+
+	/*
+	 * Returns the attached ACR122u reader or null, if there is none.
+	 */
+	UsbDevice attachedDevice() {
+		return findDevice(manager, reader);
+	}
+
+	/*
+	 * Returns true if the device is an ACR122u reader.
+	 */
+	boolean isSupported(UsbDevice device) {
+		return reader.isSupported(device);
+	}
 
-		UsbDevice externalDevice = externalReaderAttached(activity);
+	@Override
+	public void turnOn(TagDiscoveredHandler nfcInit) throws NfcLibException {
+		this.nfcInit = nfcInit;
+		UsbDevice externalDevice = device;
+		if (externalDevice == null) {
+			externalDevice = findDevice(manager, reader);
+		}
 		if (externalDevice == null) {
 			throw new NfcLibException("External device is not set");
 		}
+		transmitter = Executors.newSingleThreadExecutor();
 
 		PendingIntent permissionIntent = PendingIntent.getBroadcast(activity, 0, new Intent(ACTION_USB_PERMISSION), 0);
 		IntentFilter filter = new IntentFilter();
@@ -97,12 +149,18 @@ public class ExternalNfcTransceiver implements INfcTransceiver {
 	}
 
 	@Override
-	public void turnOff(Activity activity) {
+	public void turnOff() {
 		disable();
 		if (reader != null && reader.isOpened()) {
 			reader.close();
 		}
-		activity.unregisterReceiver(broadcastReceiver);
+		if (transmitter != null) {
+			transmitter.shutdownNow();
+		}
+		if (broadcastReceiver != null) {
+			activity.unregisterReceiver(broadcastReceiver);
+			broadcastReceiver = null;
+		}
 	}
 
 	@Override
@@ -128,6 +186,19 @@ public class ExternalNfcTransceiver implements INfcTransceiver {
 		return MAX_WRITE_LENGTH;
 	}
 
+	@Override
+	public void timeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public void cancel() {
+		final Future<Integer> current = pending;
+		if (current != null) {
+			current.cancel(true);
+		}
+	}
+
 	@Override
 	public NfcMessage write(NfcMessage input) throws IOException {
 		if (!isEnabled()) {
@@ -152,15 +223,34 @@ public class ExternalNfcTransceiver implements INfcTransceiver {
 		}
 
 		final byte[] recvBuffer = new byte[MAX_WRITE_LENGTH];
+		final Future<Integer> future = transmitter.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws ReaderException {
+				return reader.transmit(0, bytes, bytes.length, recvBuffer, recvBuffer.length);
+			}
+		});
+		pending = future;
 		final int length;
 		try {
-			length = reader.transmit(0, bytes, bytes.length, recvBuffer, recvBuffer.length);
-		} catch (ReaderException e) {
+			final int waitTime = timeout;
+			length = waitTime > 0 ? future.get(waitTime, TimeUnit.MILLISECONDS) : future.get();
+		} catch (ExecutionException e) {
 			if (Config.DEBUG)
-				Log.e(TAG, "could not write message - ReaderException", e);
+				Log.e(TAG, "could not write message - ReaderException", e.getCause());
 			
 			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, UNEXPECTED_ERROR);
 			return new NfcMessage(Type.ERROR).sequenceNumber(input);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			throw new IOException("no response within " + timeout + "ms");
+		} catch (CancellationException e) {
+			throw new IOException("write cancelled");
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("write interrupted");
+		} finally {
+			pending = null;
 		}
 
 		if (length <= 0) {
@@ -222,8 +312,10 @@ public class ExternalNfcTransceiver implements INfcTransceiver {
 
 	private static UsbDevice externalReaderAttached(Activity activity) {
 		UsbManager manager = (UsbManager) activity.getSystemService(Context.USB_SERVICE);
-		Reader reader = new Reader(manager);
+		return findDevice(manager, new Reader(manager));
+	}
 
+	private static UsbDevice findDevice(UsbManager manager, Reader reader) {
 		for (UsbDevice device : manager.getDeviceList().values()) {
 			if (reader.isSupported(device)) {
 				return device;
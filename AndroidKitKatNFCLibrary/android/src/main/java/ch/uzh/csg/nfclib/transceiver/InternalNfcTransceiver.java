@@ -15,6 +15,7 @@ import ch.uzh.csg.nfclib.events.INfcEventHandler;
 import ch.uzh.csg.nfclib.events.NfcEvent;
 import ch.uzh.csg.nfclib.messages.NfcMessage;
 import ch.uzh.csg.nfclib.messages.NfcMessage.Type;
+import ch.uzh.csg.nfclib.utils.AndroidLogger;
 import ch.uzh.csg.nfclib.utils.Config;
 
 /**
@@ -35,12 +36,22 @@ public class InternalNfcTransceiver implements ReaderCallback, INfcTransceiver {
 	 */
 	private static final int MAX_WRITE_LENGTH = 245;
 
+	static {
+		AndroidLogger.install();
+	}
+
 	private final INfcEventHandler eventHandler;
-	private final TagDiscoveredHandler nfcInit;
+	private final Activity activity;
+	private volatile TagDiscoveredHandler nfcInit;
 
 	private NfcAdapter nfcAdapter;
-	private IsoDep isoDep;
+	private volatile IsoDep isoDep;
 	private int maxLen = Integer.MAX_VALUE;
+	// the timeout requested for the following writes, 0 for the default
+	private volatile int timeout = 0;
+	// the timeout of the IsoDep when it has been connected
+	private int defaultTimeout;
+	private int appliedTimeout;
 	/*
 	 * not sure if this is called from different threads. Make it volatile just
 	 * in case.
@@ -52,17 +63,18 @@ public class InternalNfcTransceiver implements ReaderCallback, INfcTransceiver {
 	 * 
 	 * @param eventHandler
 	 *            the {@link INfcEventHandler} (may not be null)
-	 * @param nfcInit
-	 *            the {@link TagDiscoveredHandler} which is notified as soon as
-	 *            a NFC connection is established (may not be null)
+	 * @param activity
+	 *            the application's current activity to bind the NFC
+	 *            controller to (may not be null)
 	 */
-	public InternalNfcTransceiver(INfcEventHandler eventHandler, TagDiscoveredHandler nfcInit) {
+	public InternalNfcTransceiver(INfcEventHandler eventHandler, Activity activity) {
 		this.eventHandler = eventHandler;
-		this.nfcInit = nfcInit;
+		this.activity = activity;
 	}
 
 	@Override
-	public void turnOn(Activity activity) throws NfcLibException {
+	public void turnOn(TagDiscoveredHandler nfcInit) throws NfcLibException {
+		this.nfcInit = nfcInit;
 		nfcAdapter = android.nfc.NfcAdapter.getDefaultAdapter(activity);
 		if (nfcAdapter == null) {
 			throw new NfcLibException("NFC Adapter is null");
@@ -89,7 +101,7 @@ public class InternalNfcTransceiver implements ReaderCallback, INfcTransceiver {
 	}
 
 	@Override
-	public void turnOff(Activity activity) {
+	public void turnOff() {
 		disable();
 		
 		if (isoDep != null && isoDep.isConnected()) {
@@ -139,6 +151,8 @@ public class InternalNfcTransceiver implements ReaderCallback, INfcTransceiver {
 		isoDep = IsoDep.get(tag);
 		try {
 			isoDep.connect();
+			defaultTimeout = isoDep.getTimeout();
+			appliedTimeout = defaultTimeout;
 			nfcInit.tagDiscovered();
 		} catch (IOException e) {
 			if (Config.DEBUG)
@@ -153,6 +167,26 @@ public class InternalNfcTransceiver implements ReaderCallback, INfcTransceiver {
 		return MAX_WRITE_LENGTH;
 	}
 
+	@Override
+	public void timeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public void cancel() {
+		final IsoDep current = isoDep;
+		if (current == null) {
+			return;
+		}
+		// closing the IsoDep aborts a blocked transceive with an IOException
+		try {
+			current.close();
+		} catch (IOException e) {
+			if (Config.DEBUG)
+				Log.d(TAG, "could not close isodep", e);
+		}
+	}
+
 	@Override
 	public NfcMessage write(NfcMessage input) throws IOException {
 		if (!isEnabled()) {
@@ -178,6 +212,11 @@ public class InternalNfcTransceiver implements ReaderCallback, INfcTransceiver {
 			throw new IllegalArgumentException("The message length exceeds the maximum capacity of " + maxLen + " bytes.");
 		}
 		
+		final int requested = timeout > 0 ? timeout : defaultTimeout;
+		if (requested != appliedTimeout) {
+			isoDep.setTimeout(requested);
+			appliedTimeout = requested;
+		}
 		return new NfcMessage(isoDep.transceive(bytes));
 	}
 
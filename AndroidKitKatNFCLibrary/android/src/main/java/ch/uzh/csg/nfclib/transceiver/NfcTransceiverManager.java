@@ -0,0 +1,109 @@
+package ch.uzh.csg.nfclib.transceiver;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+import ch.uzh.csg.nfclib.NfcInitiator.TagDiscoveredHandler;
+import ch.uzh.csg.nfclib.NfcLibException;
+import ch.uzh.csg.nfclib.events.INfcEventHandler;
+import ch.uzh.csg.nfclib.utils.AndroidLogger;
+import ch.uzh.csg.nfclib.utils.Config;
+
+/**
+ * This transceiver uses the ACR122u USB NFC reader if it is attached and the
+ * built-in NFC controller otherwise, and switches between them while the app
+ * is running (see {@link FailoverNfcTransceiver}). The USB devices are
+ * enumerated once, afterwards the attached reader is tracked by listening for
+ * USB attach and detach broadcasts. If the reader is removed, the built-in
+ * controller is used without restarting the app.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class NfcTransceiverManager extends FailoverNfcTransceiver {
+
+	private static final String TAG = "ch.uzh.csg.nfclib.transceiver.NfcTransceiverManager";
+
+	static {
+		AndroidLogger.install();
+	}
+
+	private final Activity activity;
+	private final ExternalNfcTransceiver external;
+	private final BroadcastReceiver usbReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			final UsbDevice device = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+			if (device == null || !external.isSupported(device)) {
+				return;
+			}
+			if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
+				if (Config.DEBUG)
+					Log.d(TAG, "external reader attached");
+
+				external.device(device);
+				available(external, true);
+			} else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
+				if (Config.DEBUG)
+					Log.d(TAG, "external reader detached");
+
+				external.device(null);
+				available(external, false);
+			}
+		}
+	};
+	private boolean registered = false;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param eventHandler
+	 *            the {@link INfcEventHandler} to listen for errors of the
+	 *            transceivers
+	 * @param activity
+	 *            the application's current activity to bind the NFC
+	 *            controller to
+	 */
+	public NfcTransceiverManager(INfcEventHandler eventHandler, Activity activity) {
+		this(activity, new ExternalNfcTransceiver(eventHandler, activity), new InternalNfcTransceiver(eventHandler, activity));
+	}
+
+	private NfcTransceiverManager(Activity activity, ExternalNfcTransceiver external, InternalNfcTransceiver internal) {
+		super(external, internal);
+		this.activity = activity;
+		this.external = external;
+		final UsbDevice device = external.attachedDevice();
+		external.device(device);
+		if (device == null) {
+			available(external, false);
+		}
+	}
+
+	@Override
+	public void turnOn(TagDiscoveredHandler nfcInit) throws NfcLibException {
+		if (!registered) {
+			IntentFilter filter = new IntentFilter();
+			filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+			filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+			activity.registerReceiver(usbReceiver, filter);
+			registered = true;
+		}
+		super.turnOn(nfcInit);
+	}
+
+	@Override
+	public void turnOff() {
+		super.turnOff();
+		if (registered) {
+			activity.unregisterReceiver(usbReceiver);
+			registered = false;
+		}
+	}
+
+}
@@ -0,0 +1,37 @@
+package ch.uzh.csg.nfclib.transceiver;
+
+import android.app.Activity;
+import ch.uzh.csg.nfclib.NfcInitiator;
+import ch.uzh.csg.nfclib.events.INfcEventHandler;
+
+/**
+ * This class creates the {@link INfcTransceiver} for the NFC controller of an
+ * Android device, to be passed to the {@link NfcInitiator}.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public class NfcTransceivers {
+
+	private NfcTransceivers() {
+	}
+
+	/**
+	 * Returns a new transceiver. If the ACR122u USB NFC reader is attached, it
+	 * will be used for the NFC. Otherwise, the build-in NFC controller will be
+	 * used. The transceiver switches between them if the reader is attached
+	 * or removed later on (see {@link NfcTransceiverManager}).
+	 * 
+	 * @param eventHandler
+	 *            the {@link INfcEventHandler} to listen for errors of the
+	 *            transceiver
+	 * @param activity
+	 *            the application's current activity to bind the NFC
+	 *            controller to it
+	 */
+	public static INfcTransceiver create(INfcEventHandler eventHandler, Activity activity) {
+		return new NfcTransceiverManager(eventHandler, activity);
+	}
+
+}
@@ -0,0 +1,35 @@
+package ch.uzh.csg.nfclib.utils;
+
+/**
+ * This class writes the log messages of the library to the Android log.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public class AndroidLogger implements ILogger {
+
+	/**
+	 * Uses the Android log for the whole library. This is called by the
+	 * classes of the Android module, there is no need to call it from an app.
+	 */
+	public static void install() {
+		Log.logger(new AndroidLogger());
+	}
+
+	@Override
+	public void d(String tag, String msg, Throwable tr) {
+		android.util.Log.d(tag, msg, tr);
+	}
+
+	@Override
+	public void w(String tag, String msg, Throwable tr) {
+		android.util.Log.w(tag, msg, tr);
+	}
+
+	@Override
+	public void e(String tag, String msg, Throwable tr) {
+		android.util.Log.e(tag, msg, tr);
+	}
+
+}
@@ -0,0 +1,39 @@
+package ch.uzh.csg.nfclib;
+
+/**
+ * The implementation of this interface receives the messages of the
+ * {@link NfcInitiator} as fast as it can process them (see
+ * {@link NfcResponder#subscribe(IMessageSubscriber)}). A message is only
+ * passed once the subscriber has requested it. While the subscriber has not
+ * requested any message, the {@link NfcResponder} holds the received message
+ * back and keeps the initiator polling, so the initiator does not send the
+ * next one.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public interface IMessageSubscriber {
+
+	/**
+	 * Called once the subscriber has been registered. No message is passed
+	 * before {@link IMessageSubscription#request(long)} is called.
+	 * 
+	 * @param subscription
+	 *            the subscription to request messages or cancel it
+	 */
+	public void onSubscribe(IMessageSubscription subscription);
+
+	/**
+	 * Called with a received message, at most as often as requested. The
+	 * message is also passed to the {@link ITransceiveHandler} right
+	 * afterwards, which provides the response. This is called on the thread
+	 * of the {@link NfcResponder} and should return quickly, the message can
+	 * be processed on another thread.
+	 * 
+	 * @param message
+	 *            the received message
+	 */
+	public void onNext(byte[] message);
+
+}
@@ -0,0 +1,31 @@
+package ch.uzh.csg.nfclib;
+
+/**
+ * The link between a {@link IMessageSubscriber} and the {@link NfcResponder},
+ * which is used to signal demand for messages.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public interface IMessageSubscription {
+
+	/**
+	 * Adds to the number of messages the subscriber is ready to receive. This
+	 * can be called from any thread.
+	 * 
+	 * @param n
+	 *            the number of additional messages, Long.MAX_VALUE for no
+	 *            limit
+	 * @throws IllegalArgumentException
+	 *             if n is not positive
+	 */
+	public void request(long n) throws IllegalArgumentException;
+
+	/**
+	 * Stops passing messages to the subscriber. Messages are then handled
+	 * right away again.
+	 */
+	public void cancel();
+
+}
@@ -11,10 +11,13 @@ package ch.uzh.csg.nfclib;
 public interface ISendLater {
 	
 	/**
-	 * Send the byte array over NFC to the counterpart.
+	 * Send the byte array over NFC to the counterpart. Messages are queued
+	 * and sent in the order of the calls.
 	 * 
 	 * @param bytes
 	 *            the serialized message to return
+	 * @throws IllegalStateException
+	 *             if the queue of messages waiting to be sent is full
 	 */
 	public void sendLater(byte[] bytes);
 
@@ -0,0 +1,1859 @@
+package ch.uzh.csg.nfclib;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ch.uzh.csg.nfclib.events.INfcEventHandler;
+import ch.uzh.csg.nfclib.events.NfcEvent;
+import ch.uzh.csg.nfclib.messages.BlobStore;
+import ch.uzh.csg.nfclib.messages.DeltaStore;
+import ch.uzh.csg.nfclib.messages.FragmentPipeline;
+import ch.uzh.csg.nfclib.messages.Handshake;
+import ch.uzh.csg.nfclib.messages.IdempotencyCache;
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+import ch.uzh.csg.nfclib.messages.NfcMessage.Type;
+import ch.uzh.csg.nfclib.messages.NfcMessageSplitter;
+import ch.uzh.csg.nfclib.messages.SecureChannel;
+import ch.uzh.csg.nfclib.transceiver.IAsyncNfcTransceiver;
+import ch.uzh.csg.nfclib.transceiver.INfcTransceiver;
+import ch.uzh.csg.nfclib.transceiver.INfcWriteCallback;
+import ch.uzh.csg.nfclib.utils.Config;
+import ch.uzh.csg.nfclib.utils.Log;
+
+/**
+ * This class represents the NFC party which initiates a NFC connection. It
+ * sends a request and receives a response from the {@link NfcResponder}. This
+ * can be repeated as often as required.
+ * 
+ * To be able to send and receive messages, enable() has to be called first.
+ * Afterwards, transceive(byte[]) can be called. Once all messages are
+ * exchanged, disable() has to be called in order to stop the services
+ * appropriately.
+ * 
+ * Packet flow (handshake):
+ * sender -> recipient
+ * AID + USER_ID ->
+ * <- USER_ID
+ * = handshake complete
+ * 
+ * Packet flow (resume after a connection loss with the session ticket issued
+ * by the responder in the USER_ID response):
+ * sender -> recipient
+ * AID + USER_ID (with session ticket) + pending message ->
+ * <- response to pending message
+ * = resumed
+ * 
+ * Packet flow (handshake, fallback for counterparts which do not support the
+ * fast handshake):
+ * sender -> recipient
+ * AID + USER_ID ->
+ * <- AID_SELECTED
+ * -> USER_ID
+ * <- USER_ID
+ * = handshake complete
+ * 
+ * Packet flow (two logical channels with the same weight, each request and
+ * response consists of several fragments, the channel is given in brackets):
+ * sender -> recipient
+ * DEFAULT [1] ->
+ * <- GET_NEXT_FRAGMENT [1]
+ * DEFAULT [0] ->
+ * <- DEFAULT [0], more fragments
+ * DEFAULT [1] ->
+ * <- DEFAULT [1], more fragments
+ * GET_NEXT_FRAGMENT [0] ->
+ * <- DEFAULT [0]
+ * GET_NEXT_FRAGMENT [1] ->
+ * ...
+ * 
+ * Packet flow (corrupt frame, if checksums have been negotiated):
+ * sender -> recipient
+ * DEFAULT (corrupt) ->
+ * <- NACK
+ * DEFAULT ->
+ * <- DEFAULT (corrupt)
+ * NACK ->
+ * <- DEFAULT
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public class NfcInitiator {
+	private static final String TAG = "ch.uzh.csg.nfclib.NfcInitiator";
+	
+	public static final int CONNECTION_TIMEOUT = 500;
+	public static final int MAX_RETRANSMISSIONS = 3;
+	public static final int OUTBOX_CAPACITY = 16;
+	public static final int DEFAULT_WEIGHT = 1;
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+	public static final String NULL_ARGUMENT = "The message is null";
+	public static final String NFCTRANSCEIVER_NOT_CONNECTED = "Could not write message, NfcTransceiver is not connected.";
+	public static final String UNEXPECTED_ERROR = "An error occured while transceiving the message.";
+	public static final String CORRUPT_MESSAGE = "The message could not be transmitted without errors.";
+	public static final String SECURE_CHANNEL_ERROR = "The message could not be encrypted or authenticated.";
+	public static final String SECURE_CHANNEL_REQUIRED = "The counterpart does not support the secure channel.";
+	public static final String DEADLINE_EXCEEDED = "The response did not arrive before the deadline.";
+	public static final String MESSAGE_TOO_LARGE = "The message exceeds the maximum message size.";
+	public static final String REQUEST_CANCELLED = "The request has been cancelled.";
+	public static final String INCOMPATIBLE_VERSIONS = "The versions used are incompatible. The party with the lower version needs to update the app before you can use this feature.";
+
+	private final INfcTransceiver transceiver;
+	private final INfcEventHandler eventHandler;
+	private final long userId;
+
+	private final TagDiscoveredHandler tagDiscoveredHandler = new TagDiscoveredHandler();
+
+	private boolean initDone = false;
+	// issued by the responder at session start, 0 if not supported
+	private long sessionTicket = 0;
+	// for the ids of the requests
+	private final SecureRandom random = new SecureRandom();
+	// negotiated during the handshake
+	private int capabilities = 0;
+	// null if no key has been set
+	private SecureChannel secureChannel = null;
+	// null if delta encoding is not used
+	private DeltaStore deltaStore = null;
+	// null if blobs are always sent inline
+	private BlobStore blobStore = null;
+	// the user id of the responder, for the delta store
+	private long peerId = 0;
+	// the AID of the NfcResponder to talk to
+	private byte[] aid = NfcMessage.AID_MBPS;
+	// the last payload sent, in case the responder requests it in full
+	private byte[] lastPayload = null;
+	// the largest message accepted from the responder
+	private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+	// the largest message the responder accepts, 0 if unknown
+	private int peerMaxMessageSize = 0;
+	// null if received messages are never spilled to disk
+	private File spillDirectory = null;
+	private int spillThreshold = Integer.MAX_VALUE;
+
+	// state
+	private final Deque<NfcMessage> messageQueue = new ConcurrentLinkedDeque<NfcMessage>();
+	private final NfcMessageSplitter messageSplitter = new NfcMessageSplitter();
+	private NfcMessage lastMessageSent;
+	// if the task is null, it means either we did not start or we are done.
+	private ExecutorService executorService = null;
+	private volatile TimeoutTask task;
+	// seals and fragments large messages while the first fragments are sent
+	private ExecutorService pipelineService = null;
+	
+	// channel 0 uses the message queue and splitter above
+	private final Channel[] channels = new Channel[NfcMessage.MAX_CHANNELS];
+	// the channel the scheduler currently serves
+	private int cursor = 0;
+	// the channel whose request has been sent, but not yet answered
+	private volatile Channel inFlight = null;
+	// guards the state below, only one request is in flight at a time
+	private final ReentrantLock loopLock = new ReentrantLock();
+	private State state = State.IDLE;
+	// the request in flight, null if idle
+	private Exchange exchange = null;
+	// send the request in flight again, without a new sequence number
+	private boolean resend = false;
+	// the thread currently writing, its completion does not start the next write
+	private volatile Thread writer = null;
+
+	/**
+	 * Instantiates a new object. On Android, the transceiver for the attached
+	 * NFC controller is created by NfcTransceivers (Android module).
+	 * 
+	 * @param eventHandler
+	 *            the {@link INfcEventHandler} to listen for {@link NfcEvent}s
+	 * @param userId
+	 *            the identifier of this user (or this mobile device)
+	 * @param transceiver
+	 *            the transceiver responsible for writing messages and returning
+	 *            the incoming response
+	 */
+	public NfcInitiator(INfcEventHandler eventHandler, long userId, INfcTransceiver transceiver) {
+		this.eventHandler = eventHandler;
+		this.userId = userId;
+		this.transceiver = transceiver;
+		messageSplitter.maxTransceiveLength(transceiver.maxLen());
+		channels[0] = new Channel(0, DEFAULT_WEIGHT, eventHandler, messageQueue, messageSplitter);
+	}
+
+	/**
+	 * Sets the key shared with the {@link NfcResponder} to encrypt and
+	 * authenticate all messages (see {@link SecureChannel}). If a key is set,
+	 * the handshake fails if the counterpart does not support the secure
+	 * channel. This has to be called before the handshake.
+	 * 
+	 * @param key
+	 *            the shared key, at least 16 bytes
+	 * @throws IllegalArgumentException
+	 *             if the key is too short
+	 */
+	public void secureChannel(byte[] key) throws IllegalArgumentException {
+		secureChannel = new SecureChannel(key);
+	}
+
+	/**
+	 * Sets the store of recent payloads to encode messages as diff against
+	 * previously exchanged payloads with the same {@link NfcResponder} (see
+	 * {@link DeltaStore}). The same store can be used for several sessions.
+	 * This has to be called before the handshake.
+	 * 
+	 * @param deltaStore
+	 *            the store of recent payloads
+	 */
+	public void deltaStore(DeltaStore deltaStore) {
+		this.deltaStore = deltaStore;
+	}
+
+	/**
+	 * Sets the store of large payloads, which are sent as reference if the
+	 * {@link NfcResponder} has received them before, e.g., in another session or from
+	 * another counterpart (see {@link BlobStore}). This has to be called
+	 * before the handshake.
+	 * 
+	 * @param blobStore
+	 *            the store of large payloads
+	 */
+	public void blobStore(BlobStore blobStore) {
+		this.blobStore = blobStore;
+	}
+
+	/**
+	 * Sets the AID of the {@link NfcResponder} to talk to, if the counterpart
+	 * exposes several of them (see HostApduServiceNfcLib). By default,
+	 * {@link NfcMessage#AID_MBPS} is selected. This has to be called before
+	 * the handshake. With a long AID, the handshake may no longer fit into the
+	 * SELECT AID, in which case it takes two steps.
+	 * 
+	 * @param aid
+	 *            the AID, 5 to 16 bytes
+	 * @throws IllegalArgumentException
+	 *             if the AID is too short or too long
+	 */
+	public void aid(byte[] aid) throws IllegalArgumentException {
+		if (aid == null || aid.length < NfcMessage.MIN_AID_LENGTH || aid.length > NfcMessage.MAX_AID_LENGTH) {
+			throw new IllegalArgumentException("invalid AID");
+		}
+		this.aid = aid;
+	}
+
+	/**
+	 * Sets the size of the largest message accepted from the
+	 * {@link NfcResponder}, by default {@link #DEFAULT_MAX_MESSAGE_SIZE}. The
+	 * limit is sent with the handshake, so the responder rejects larger
+	 * responses before sending them. A response which exceeds it anyway is
+	 * dropped as soon as this is known, and the event handler is notified with
+	 * {@link NfcEvent#FATAL_ERROR} and {@link #MESSAGE_TOO_LARGE}. This has to
+	 * be called before the handshake.
+	 * 
+	 * @param maxMessageSize
+	 *            the maximum size in bytes, 0 for no limit
+	 * @throws IllegalArgumentException
+	 *             if the size is negative
+	 */
+	public void maxMessageSize(int maxMessageSize) throws IllegalArgumentException {
+		if (maxMessageSize < 0) {
+			throw new IllegalArgumentException("negative message size");
+		}
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Reassembles responses larger than the threshold in a memory-mapped
+	 * temporary file instead of the heap (see {@link NfcMessageSplitter}).
+	 * This has to be called before the handshake.
+	 * 
+	 * @param directory
+	 *            the directory for the temporary files (e.g., the cache
+	 *            directory of the app), null to keep all messages on the heap
+	 * @param threshold
+	 *            the size in bytes above which a response is spilled
+	 */
+	public void spill(File directory, int threshold) {
+		this.spillDirectory = directory;
+		this.spillThreshold = threshold;
+	}
+
+	/**
+	 * Registers a logical channel. Each channel has its own request/response
+	 * stream, the fragments of all channels with pending messages are
+	 * interleaved. In every round, a channel sends as many fragments as its
+	 * weight, so a small message on one channel is not stuck behind a large
+	 * one on another channel. The {@link NfcResponder} has to register the
+	 * same channels. This has to be called before the handshake.
+	 * 
+	 * Channel 0 is the default channel used by transceive(byte[]) and
+	 * sendLater, for it only the weight can be changed. Messages on other
+	 * channels are not delta encoded.
+	 * 
+	 * @param channel
+	 *            the channel, between 0 and {@link NfcMessage#MAX_CHANNELS} - 1
+	 * @param weight
+	 *            the number of fragments sent per round, at least 1
+	 * @param eventHandler
+	 *            the handler notified with {@link NfcEvent#MESSAGE_RECEIVED}
+	 *            and {@link NfcEvent#FATAL_ERROR} of this channel (ignored for
+	 *            channel 0)
+	 * @throws IllegalArgumentException
+	 *             if the channel or the weight is out of range
+	 */
+	public void channel(int channel, int weight, INfcEventHandler eventHandler) throws IllegalArgumentException {
+		if (channel < 0 || channel >= NfcMessage.MAX_CHANNELS) {
+			throw new IllegalArgumentException("invalid channel " + channel);
+		}
+		if (weight < 1) {
+			throw new IllegalArgumentException("the weight must be at least 1");
+		}
+		if (channel == 0) {
+			channels[0] = new Channel(0, weight, this.eventHandler, messageQueue, messageSplitter);
+			return;
+		}
+		NfcMessageSplitter splitter = new NfcMessageSplitter().maxTransceiveLength(transceiver.maxLen()).channel(channel);
+		channels[channel] = new Channel(channel, weight, eventHandler, new ConcurrentLinkedDeque<NfcMessage>(), splitter);
+	}
+
+	protected TagDiscoveredHandler tagDiscoveredHandler() {
+		return tagDiscoveredHandler;
+	}
+
+	/**
+	 * Turns on the NFC controller and initializes the NFC features. In order
+	 * to fully initialize the NFC, call enableNFC(). Otherwise, no messages
+	 * will be exchanged.
+	 */
+	public void enable() {
+		executorService = Executors.newSingleThreadExecutor();
+		pipelineService = Executors.newCachedThreadPool();
+		try {
+			transceiver.turnOn(tagDiscoveredHandler);
+		} catch (NfcLibException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "enable failed: ", e);
+		}
+	}
+
+	/**
+	 * Turns off the NFC controller and releases it for other applications.
+	 */
+	public void disable() {
+		if (executorService != null) {
+			executorService.shutdown();
+			try {
+				executorService.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				if (Config.DEBUG)
+					Log.e(TAG, "shutdown failed: ", e);
+			}
+		}
+		if (pipelineService != null) {
+			pipelineService.shutdownNow();
+		}
+		transceiver.turnOff();
+	}
+
+	/**
+	 * Enables the NFC so that messages can be exchanged. Attention: the
+	 * enable() method must be called first!
+	 */
+	public void enableNfc() {
+		transceiver.enable();
+	}
+	
+	/**
+	 * Soft disables the NFC to prevent devices such as the Samsung Galaxy Note
+	 * 3 (other devices may show the same behavior!) to restart the protocol
+	 * after having send the last message!
+	 * 
+	 * This should be called after a successful communication. Once you want to
+	 * restart the NFC capability, call enableNFC.
+	 */
+	public void disableNfc() {
+		transceiver.disable();
+	}
+
+	private boolean isResume() {
+		return task != null && task.isActive();
+	}
+
+	/**
+	 * Initializes the NFC feature by a handshake. This method always needs to
+	 * call the event handler in any case.
+	 * 
+	 * The handshake is as follows:
+	 * send AID with NfcMessage.USER_ID appended
+	 * get NfcMessage.USER_ID
+	 * 
+	 * If the counterpart does not support the fast handshake, it ignores the
+	 * appended NfcMessage.USER_ID and the handshake is as follows:
+	 * send AID
+	 * get NfcMessage.AID
+	 * send NfcMessage.USER_ID
+	 * get NfcMessage.USER_ID
+	 * 
+	 * The two-step handshake is also used if the SELECT AID with the appended
+	 * NfcMessage.USER_ID does not fit into one frame of the transceiver.
+	 */
+	protected void initNfc() {
+		initNfc(true);
+	}
+
+	private void initNfc(boolean resume) {
+		boolean resumeRequested = false;
+		try {
+			if (Config.DEBUG)
+				Log.d(TAG, "init NFC");
+
+			resumeRequested = resume && isResume();
+			if (resumeRequested && transceiver.maxLen() < messageSplitter.maxTransceiveLength()) {
+				// the transceiver has been switched, the prepared fragments do not fit
+				if (Config.DEBUG)
+					Log.e(TAG, "cannot resume, the frames of the transceiver are shorter");
+				
+				done();
+				eventHandler.handleMessage(NfcEvent.FATAL_ERROR, UNEXPECTED_ERROR);
+				resumeRequested = false;
+			}
+			boolean ticketResume = resumeRequested && sessionTicket != 0;
+			// a resumed request keeps its deadline
+			transceiver.timeout(resumeRequested ? task.remaining() : 0);
+			
+			Handshake handshake = new Handshake(userId, transceiver.maxLen());
+			if (ticketResume) {
+				handshake.ticket(sessionTicket);
+			}
+			handshake.capabilities(localCapabilities());
+			// the responder ignores the nonce if it resumes
+			final long nonce = secureChannel != null && !resumeRequested ? secureChannel.newNonce() : 0;
+			handshake.nonce(nonce);
+			handshake.maxMessageSize(maxMessageSize);
+			
+			NfcMessage msg = new NfcMessage(NfcMessage.Type.USER_ID).payload(handshake.bytes()).resume(resumeRequested);
+			NfcMessage initMessage = new NfcMessage(Type.AID).aid(aid).request().handshake(msg);
+			if (initMessage.bytes().length > transceiver.maxLen()) {
+				// e.g., the ACR122u cannot send more than 53 bytes at once
+				if (Config.DEBUG)
+					Log.d(TAG, "handshake does not fit into the SELECT AID, using the two-step handshake");
+				
+				initMessage.handshake(null);
+			}
+			
+			/*
+			 * With a valid session ticket, the responder continues with the
+			 * pending message right away, so we piggyback it if it fits.
+			 */
+			NfcMessage resumeFrame = null;
+			final Channel pending = inFlight != null ? inFlight : channels[0];
+			if (ticketResume && initMessage.handshake() != null && !pending.queue.isEmpty()) {
+				final NfcMessage head = pending.queue.peek();
+				if (initMessage.bytes().length + head.bytes().length <= transceiver.maxLen()) {
+					resumeFrame = head;
+					initMessage.resumeFrame(resumeFrame);
+				}
+			}
+			
+			// no sequence number here, as this is a special message
+			NfcMessage response = writeHandshake(initMessage);
+			// --> here we can get an exception
+			
+			/*
+			 * A bit flip in the header may change the type and the flags of the
+			 * response, so they are only looked at if the checksum matches.
+			 * Only the response to the piggybacked message carries a checksum,
+			 * in this case the response is requested again.
+			 */
+			if (response.isCorrupt()) {
+				if (resumeFrame == null) {
+					throw new IOException("corrupt handshake response");
+				}
+				
+				if (Config.DEBUG)
+					Log.d(TAG, "resume with session ticket, received corrupt response: " + response);
+				
+				task.active();
+				resume(true);
+				return;
+			}
+			
+			if (response.version() > NfcMessage.getSupportedVersion()) {
+				if (Config.DEBUG)
+					Log.d(TAG, "excepted NfcMessage version "+NfcMessage.getSupportedVersion()+" but was "+response.version());
+				
+				eventHandler.handleMessage(NfcEvent.FATAL_ERROR, INCOMPATIBLE_VERSIONS);
+				return;
+			}
+			
+			final NfcMessage responseUserId;
+			if (response.isSelectAidApdu()) {
+				if (Config.DEBUG)
+					Log.d(TAG, "fast handshake not supported, sending user id");
+				
+				// no sequence number, this is considered as part of the handshake
+				responseUserId = writeHandshake(msg);
+				// --> here we can get an exception
+				if (responseUserId.isCorrupt()) {
+					throw new IOException("corrupt handshake response");
+				}
+			} else if (resumeFrame != null && response.isResume() && response.type() != Type.USER_ID) {
+				if (Config.DEBUG)
+					Log.d(TAG, "resume with session ticket, received: " + response);
+				
+				// this is the response to the piggybacked message
+				task.active();
+				if (isCorrupt(response) || response.type() == Type.NACK) {
+					resume(true);
+				} else {
+					resume(pending, resumeFrame, response);
+				}
+				return;
+			} else if (response.type() == Type.USER_ID || response.isResume() || response.type() == Type.ERROR) {
+				responseUserId = response;
+			} else {
+				if (Config.DEBUG)
+					Log.e(TAG, "handshake unexpected: " + response);
+				
+				eventHandler.handleMessage(NfcEvent.INIT_FAILED, null);
+				return;
+			}
+			
+			if (resumeRequested && secureChannel != null && isSecureChannelRequired(responseUserId)) {
+				/*
+				 * The responder does not resume, and it cannot start a new
+				 * session without our nonce. Start over, the request is lost
+				 * as with any new session.
+				 */
+				if (Config.DEBUG)
+					Log.d(TAG, "resume refused, starting a new session");
+				
+				reset();
+				initNfc(false);
+				return;
+			}
+			
+			if (responseUserId.version() > NfcMessage.getSupportedVersion()) {
+				if (Config.DEBUG)
+					Log.d(TAG, "excepted NfcMessage version "+NfcMessage.getSupportedVersion()+" but was "+responseUserId.version());
+				
+				eventHandler.handleMessage(NfcEvent.FATAL_ERROR, INCOMPATIBLE_VERSIONS);
+				return;
+			}
+
+			if (resumeRequested && responseUserId.isResume()) {
+				if (Config.DEBUG)
+					Log.d(TAG, "resume");
+				
+				resume(true);
+			} else {
+				if (Config.DEBUG)
+					Log.d(TAG, "new session (no resume)");
+				
+				if (responseUserId.type() != NfcMessage.Type.USER_ID) {
+					if (Config.DEBUG)
+						Log.e(TAG, "handshake user id unexpected: " + responseUserId);
+					
+					initFailed(NfcEvent.INIT_FAILED);
+					return;
+				}
+				reset();
+				// the transceiver may have been switched since the last session
+				for (Channel channel : channels) {
+					if (channel != null) {
+						channel.splitter.maxTransceiveLength(transceiver.maxLen());
+					}
+				}
+				
+				if (Config.DEBUG)
+					Log.d(TAG, "handshake complete");
+				
+				// older responders do not return their user id, ticket, and capabilities
+				Handshake responseHandshake = new Handshake(responseUserId.payload());
+				Long userIdReceived = null;
+				if (responseUserId.payload().length >= 8) {
+					userIdReceived = Long.valueOf(responseHandshake.userId());
+				}
+				sessionTicket = responseHandshake.ticket();
+				capabilities = responseHandshake.capabilities() & localCapabilities();
+				if (userIdReceived == null) {
+					// the diffs are stored per responder
+					capabilities &= ~Handshake.CAPABILITY_DELTA;
+				}
+				peerId = responseHandshake.userId();
+				peerMaxMessageSize = responseHandshake.maxMessageSize();
+				if (secureChannel != null) {
+					if (!isSecureChannel() || responseHandshake.nonce() == 0) {
+						if (Config.DEBUG)
+							Log.e(TAG, "secure channel not supported: " + responseHandshake);
+						
+						eventHandler.handleMessage(NfcEvent.FATAL_ERROR, SECURE_CHANNEL_REQUIRED);
+						return;
+					}
+					secureChannel.init(nonce, responseHandshake.nonce(), true);
+				}
+				for (Channel channel : channels) {
+					if (channel != null) {
+						channel.splitter.capabilities(capabilities).maxMessageLength(maxMessageSize).spill(spillDirectory, spillThreshold);
+					}
+				}
+				
+				initDone = true;
+				eventHandler.handleMessage(NfcEvent.INITIALIZED, userIdReceived);
+				
+				if (responseHandshake.staged() != null) {
+					receiveStaged(responseHandshake);
+				}
+			}
+
+		} catch (IOException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "init exception: ", e);
+			
+			if (resumeRequested) {
+				// the request stays in flight until the next handshake, the
+				// timeout task reports the connection loss
+				return;
+			}
+			initFailed(NfcEvent.INIT_FAILED);
+		} catch (Throwable t) {
+			if (Config.DEBUG)
+				Log.e(TAG, "init exception: ", t);
+			
+			initFailed(NfcEvent.INIT_FAILED);
+		}
+	}
+
+	private static boolean isSecureChannelRequired(NfcMessage response) {
+		return response.type() == Type.ERROR && Arrays.equals(response.payload(), SECURE_CHANNEL_REQUIRED.getBytes());
+	}
+
+	/*
+	 * A missing response means that the connection has been lost, as if the
+	 * write failed.
+	 */
+	private NfcMessage writeHandshake(NfcMessage frame) throws IOException {
+		final NfcMessage response = transceiver.write(frame);
+		if (response == null) {
+			throw new IOException("received null");
+		}
+		return response;
+	}
+
+	/*
+	 * The responder sent the first part of a staged payload with the
+	 * handshake. Fetch the rest (if any) as if it was the response to a
+	 * request.
+	 */
+	private void receiveStaged(Handshake responseHandshake) throws GeneralSecurityException {
+		if (Config.DEBUG)
+			Log.d(TAG, "received staged payload: " + responseHandshake);
+		
+		messageSplitter.reassemble(new NfcMessage(Type.DEFAULT).payload(responseHandshake.staged()));
+		task = new TimeoutTask();
+		executorService.submit(task);
+		
+		if (responseHandshake.stagedMore()) {
+			messageQueue.offer(new NfcMessage(Type.GET_NEXT_FRAGMENT));
+		} else if (!deliver(false)) {
+			messageQueue.offer(new NfcMessage(Type.DELTA_MISS));
+		}
+		pump();
+	}
+
+	private void reset() {
+		abandon();
+		clearChannels();
+		lastMessageSent = null;
+	}
+
+	private void clearChannels() {
+		for (Channel channel : channels) {
+			if (channel != null) {
+				clearQueue(channel);
+				channel.splitter.clear();
+			}
+		}
+		inFlight = null;
+	}
+
+	private void initFailed(NfcEvent event) {
+		initDone = false;
+		eventHandler.handleMessage(event, null);
+	}
+	
+	// messages provided by sendLater, sent in order
+	private final BlockingQueue<byte[]> outbox = new ArrayBlockingQueue<byte[]>(OUTBOX_CAPACITY);
+	private volatile boolean pollingStarted = false;
+	
+	/**
+	 * Starts polling to keep the NFC connection up. To send a message once it
+	 * is ready call sendLater from a different thread, since this is blocking.
+	 * 
+	 * This solves the problem with the Samsung Galaxy Note 3 and other devices,
+	 * which are unable to send messages after the connection has been idle for
+	 * a given time. This occurred when doing the server call.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             (e.g., not initialized)
+	 */
+	public void startPolling() throws IllegalArgumentException {
+		if (!initDone)
+			throw new IllegalArgumentException("init not done");
+		
+		if (isResume() && !messageQueue.isEmpty())
+			throw new IllegalArgumentException("previous message did not finish, cannot send now!");
+		
+		if (pollingStarted || !outbox.isEmpty())
+			throw new IllegalArgumentException("polling has already been requested once");
+		
+		messageQueue.offer(new NfcMessage(Type.POLLING).request());
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "started polling");
+		
+		if (task == null || !task.isActive()) {
+			task = new TimeoutTask();
+			executorService.submit(task);
+		}
+		
+		pollingStarted = true;
+		pump();
+	}
+	
+	/**
+	 * If startPolling has been called to keep the NFC connection up, this
+	 * provides the message which should be sent. Several messages can be
+	 * provided, they are sent in order, each one after the response to the
+	 * previous one has been received. Polling stops once all messages are
+	 * sent.
+	 * 
+	 * @param bytes
+	 *            the bytes to be sent over NFC
+	 * @throws IllegalArgumentException
+	 *             (e.g., not initialized or the message exceeds the maximum
+	 *             message size of the responder)
+	 * @throws IllegalStateException
+	 *             if there are already {@link #OUTBOX_CAPACITY} messages
+	 *             waiting to be sent
+	 */
+	public void sendLater(byte[] bytes) throws IllegalArgumentException, IllegalStateException {
+		if (bytes == null || bytes.length == 0)
+			throw new IllegalArgumentException(NULL_ARGUMENT);
+		
+		if (!initDone)
+			throw new IllegalArgumentException("init not done");
+
+		if (!pollingStarted)
+			throw new IllegalArgumentException("polling has not been requested, therefore not possible to send later");
+		
+		checkMessageSize(bytes.length);
+		
+		if (!outbox.offer(bytes))
+			throw new IllegalStateException("outbox full, " + OUTBOX_CAPACITY + " messages waiting to be sent");
+	}
+
+	/**
+	 * Sends any byte message to the NFC communication partner and returns the
+	 * response. Enable has to be called first before transceiving any data.
+	 * 
+	 * It is possible (with NXP controllers) that the NFC connection is aborted
+	 * in the meantime and directly followed by a handshake. In this case, the
+	 * response cannot be provided immediately. For a blocking behavior,
+	 * Future.get() has to be called.
+	 * 
+	 * The message to send can be arbitrary large. If it exceeds the size
+	 * limitation of the underlying NFC, it will be fragmented and reassembled
+	 * internally.
+	 * 
+	 * @param bytes
+	 *            the payload to be sent
+	 * @return the future object which returns the response as soon as it is
+	 *         ready (blocking)
+	 * @throws IllegalArgumentException
+	 *             if bytes is null or empty
+	 */
+	public void transceive(byte[] bytes) throws IllegalArgumentException {
+		transceive(bytes, 0);
+	}
+
+	/**
+	 * Sends any byte message to the NFC communication partner like
+	 * transceive(byte[]), but gives up if the complete response has not been
+	 * received within the given time. In this case, the pending write is
+	 * aborted and the event handler is notified with
+	 * {@link NfcEvent#FATAL_ERROR} and {@link #DEADLINE_EXCEEDED}. The deadline
+	 * also applies while waiting for a reconnect after a connection loss. A
+	 * request which runs into its deadline ends the session, the next request
+	 * can be sent after the handshake with the next NFC device discovered.
+	 * 
+	 * @param bytes
+	 *            the payload to be sent
+	 * @param timeout
+	 *            the deadline in milliseconds from now, 0 for no deadline
+	 * @throws IllegalArgumentException
+	 *             if bytes is null or empty, the timeout is negative, or the
+	 *             message exceeds the maximum message size of the responder
+	 */
+	public void transceive(byte[] bytes, int timeout) throws IllegalArgumentException {
+		transceive(bytes, timeout, 0);
+	}
+
+	/**
+	 * Sends any byte message to the NFC communication partner like
+	 * transceive(byte[], int), with the given id of the request. If the
+	 * responder keeps an {@link IdempotencyCache}, a request with an id it
+	 * has already answered is not handled again, but answered with the
+	 * previous response. By default, a random id is used, which is kept if
+	 * the request is sent again after a resume. Pass the same id if the
+	 * request is sent again after the protocol has been restarted, so that
+	 * it is not handled twice (e.g., the same payment).
+	 * 
+	 * @param bytes
+	 *            the payload to be sent
+	 * @param timeout
+	 *            the deadline in milliseconds from now, 0 for no deadline
+	 * @param messageId
+	 *            the id of the request, 0 for a random id
+	 * @throws IllegalArgumentException
+	 *             if bytes is null or empty, the timeout is negative, or the
+	 *             message exceeds the maximum message size of the responder
+	 */
+	public void transceive(byte[] bytes, int timeout, long messageId) throws IllegalArgumentException {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("negative timeout");
+		}
+		
+		if (bytes == null || bytes.length == 0) {
+			throw new IllegalArgumentException(NULL_ARGUMENT);
+		}
+		
+		if (!initDone) {
+			throw new IllegalArgumentException("init not done");
+		}
+
+		if (isResume() && !messageQueue.isEmpty()) {
+			throw new IllegalArgumentException("previous message did not finish, cannot send now!");
+		}
+		
+		if (pollingStarted)
+			throw new IllegalArgumentException("you cannot transceive any message while pollling - use send later instead");
+			
+		messageSplitter.messageId(messageId != 0 || !isMessageIds() ? messageId : newMessageId());
+		final byte[] plain = compact(bytes, false);
+		final FragmentPipeline pipeline;
+		try {
+			pipeline = pipeline(channels[0], plain);
+		} catch (GeneralSecurityException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "could not encrypt message", e);
+			
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, SECURE_CHANNEL_ERROR);
+			return;
+		}
+		checkMessageSize(pipeline == null ? sealedLength(plain) : pipeline.length());
+			
+		/*
+		 * hint the gc that now is a good time to cleanup. Its better to cleanup
+		 * before we start the timeout task
+		 */
+		System.gc();
+		final TimeoutTask previous = task;
+		if (previous != null) {
+			// messages on other channels continue with the new task
+			previous.shutdown();
+		}
+		task = new TimeoutTask(timeout);
+		executorService.submit(task);
+
+		try {
+			offer(channels[0], plain, pipeline);
+		} catch (GeneralSecurityException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "could not encrypt message", e);
+			
+			done();
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, SECURE_CHANNEL_ERROR);
+			return;
+		}
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "writing: " + bytes.length + " bytes, " + (pipeline == null ? messageQueue.size() + " fragments" : "pipelined"));
+
+		pump();
+	}
+
+	/**
+	 * Sends the byte message on the given logical channel to the NFC
+	 * communication partner. The response is delivered to the event handler
+	 * of the channel. If another thread is currently transceiving, the
+	 * fragments are interleaved with the ones of the other channels and this
+	 * returns right away. Otherwise, this thread transceives until all
+	 * channels are idle.
+	 * 
+	 * @param channel
+	 *            the channel, 0 is the same as transceive(byte[])
+	 * @param bytes
+	 *            the payload to be sent
+	 * @throws IllegalArgumentException
+	 *             if bytes is null or empty, the channel has not been
+	 *             registered or is busy, the counterpart does not support
+	 *             channels, or the message exceeds its maximum message size
+	 */
+	public void transceive(int channel, byte[] bytes) throws IllegalArgumentException {
+		if (channel == 0) {
+			transceive(bytes);
+			return;
+		}
+		
+		if (bytes == null || bytes.length == 0) {
+			throw new IllegalArgumentException(NULL_ARGUMENT);
+		}
+		
+		if (!initDone) {
+			throw new IllegalArgumentException("init not done");
+		}
+		
+		final Channel target = channel > 0 && channel < channels.length ? channels[channel] : null;
+		if (target == null) {
+			throw new IllegalArgumentException("channel " + channel + " has not been registered");
+		}
+		
+		if (!isChannels()) {
+			throw new IllegalArgumentException("the counterpart does not support channels");
+		}
+		
+		if (!target.queue.isEmpty()) {
+			throw new IllegalArgumentException("previous message on channel " + channel + " did not finish, cannot send now!");
+		}
+		
+		final FragmentPipeline pipeline;
+		try {
+			pipeline = pipeline(target, bytes);
+		} catch (GeneralSecurityException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "could not encrypt message", e);
+			
+			target.eventHandler.handleMessage(NfcEvent.FATAL_ERROR, SECURE_CHANNEL_ERROR);
+			return;
+		}
+		checkMessageSize(pipeline == null ? sealedLength(bytes) : pipeline.length());
+		
+		try {
+			offer(target, bytes, pipeline);
+		} catch (GeneralSecurityException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "could not encrypt message", e);
+			
+			clearQueue(target);
+			target.eventHandler.handleMessage(NfcEvent.FATAL_ERROR, SECURE_CHANNEL_ERROR);
+			return;
+		}
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "writing on channel " + channel + ": " + bytes.length + " bytes, " + (pipeline == null ? target.queue.size() + " fragments" : "pipelined"));
+		
+		if (task == null || !task.isActive()) {
+			task = new TimeoutTask();
+			executorService.submit(task);
+		}
+		
+		pump();
+	}
+
+	/*
+	 * Large messages are sealed and fragmented by a FragmentPipeline while the
+	 * first fragments are on the air. Returns null if the message is sealed
+	 * at once (or not at all), also if the cipher of this platform does not
+	 * emit any ciphertext before the whole message has been encrypted.
+	 */
+	private FragmentPipeline pipeline(Channel channel, byte[] bytes) throws GeneralSecurityException {
+		if (!isSecureChannel() || !SecureChannel.isStreaming() || bytes.length < FragmentPipeline.MIN_LENGTH || pipelineService == null) {
+			return null;
+		}
+		return new FragmentPipeline(channel.splitter, bytes, secureChannel.sealer(channel.id));
+	}
+
+	/*
+	 * Seals and queues all fragments of the message, or starts the pipeline
+	 * and queues its first fragment. The next fragment of the pipeline is
+	 * queued as soon as the previous one has been acknowledged, see
+	 * refill(Channel).
+	 */
+	private void offer(Channel channel, byte[] plain, FragmentPipeline pipeline) throws GeneralSecurityException {
+		if (pipeline == null) {
+			for (NfcMessage msg : fragments(channel.splitter, plain)) {
+				channel.queue.offer(msg);
+			}
+			return;
+		}
+		channel.pipeline = pipeline;
+		pipelineService.execute(pipeline);
+		refill(channel);
+	}
+
+	/*
+	 * Queues the next fragment prepared by the pipeline of the channel (if
+	 * any). This waits only if the worker is behind the radio.
+	 */
+	private void refill(Channel channel) throws GeneralSecurityException {
+		final FragmentPipeline pipeline = channel.pipeline;
+		if (pipeline == null) {
+			return;
+		}
+		if (pipeline.hasNext()) {
+			final NfcMessage next = pipeline.next();
+			if (next != null) {
+				channel.queue.offer(next);
+			}
+		}
+		if (!pipeline.hasNext()) {
+			channel.pipeline = null;
+		}
+	}
+
+	private static void clearQueue(Channel channel) {
+		final FragmentPipeline pipeline = channel.pipeline;
+		if (pipeline != null) {
+			pipeline.cancel();
+			channel.pipeline = null;
+		}
+		channel.queue.clear();
+	}
+
+	/*
+	 * Oversized messages are rejected before sending the first fragment.
+	 */
+	private void checkMessageSize(int length) throws IllegalArgumentException {
+		if (peerMaxMessageSize > 0 && length > peerMaxMessageSize) {
+			throw new IllegalArgumentException(MESSAGE_TOO_LARGE + " (" + length + " > " + peerMaxMessageSize + " bytes)");
+		}
+	}
+
+	/**
+	 * Cancels the request currently in progress (if any). A write waiting for
+	 * a response is aborted and the event handler is notified with
+	 * {@link NfcEvent#FATAL_ERROR} and {@link #REQUEST_CANCELLED}. This can be
+	 * called from any thread. As with a deadline, the session ends.
+	 */
+	public void cancel() {
+		final TimeoutTask current = task;
+		if (current == null || !current.isActive()) {
+			return;
+		}
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "request cancelled");
+		
+		current.shutdown();
+		abort(REQUEST_CANCELLED);
+	}
+
+	/*
+	 * Ends the session after a deadline or a cancel. The responder may hold a
+	 * part of the request, and the message counters of the secure channel are
+	 * out of step. The transceiver is not usable anyway until the next NFC
+	 * device is discovered, whose handshake then starts a new session: the
+	 * responder drops the fragments and the secure channel gets new keys.
+	 */
+	private void abort(String reason) {
+		transceiver.cancel();
+		done();
+		initDone = false;
+		eventHandler.handleMessage(NfcEvent.FATAL_ERROR, reason);
+	}
+
+	/*
+	 * Sends the pending requests, one at a time. The thread which finds the
+	 * loop idle writes the next request, the thread which completes the write
+	 * goes on with the next one. If the transceiver completes the write right
+	 * away (a blocking transceiver always does), this thread continues here
+	 * instead of nesting the writes.
+	 */
+	private void pump() {
+		if (loopLock.isHeldByCurrentThread()) {
+			// called from the event handler, the completion picks up the messages
+			return;
+		}
+		while (true) {
+			final Exchange current;
+			final NfcMessage frame;
+			loopLock.lock();
+			try {
+				if (task == null || !task.isActive()) {
+					return;
+				}
+				if (state == State.IDLE) {
+					final Channel channel = nextChannel();
+					if (channel == null) {
+						return;
+					}
+					final NfcMessage request = channel.queue.peek();
+					if (request == null) {
+						// cleared by another thread in the meantime
+						continue;
+					}
+					if (!resend) {
+						if (isExtendedHeader()) {
+							request.version(1);
+							if (isChecksum()) {
+								request.checksum();
+							}
+						}
+						request.sequenceNumber(lastMessageSent);
+					} else {
+						resend = false;
+					}
+					exchange = new Exchange(channel, request);
+					frame = request;
+				} else if (state == State.RETRANSMIT) {
+					frame = exchange.retry;
+				} else {
+					// a write is pending or the connection is lost
+					return;
+				}
+				current = exchange;
+				inFlight = current.channel;
+				state = State.WAITING;
+				writer = Thread.currentThread();
+			} finally {
+				loopLock.unlock();
+			}
+			
+			if (Config.DEBUG)
+				Log.d(TAG, "sending: " + frame);
+			
+			transceiver.timeout(task.remaining());
+			write(current, frame);
+			
+			loopLock.lock();
+			try {
+				if (writer == Thread.currentThread()) {
+					writer = null;
+				}
+			} finally {
+				loopLock.unlock();
+			}
+		}
+	}
+
+	private void write(Exchange current, NfcMessage frame) {
+		try {
+			if (transceiver instanceof IAsyncNfcTransceiver) {
+				((IAsyncNfcTransceiver) transceiver).write(frame, current);
+				return;
+			}
+			final NfcMessage response;
+			try {
+				response = transceiver.write(frame);
+			} catch (IOException e) {
+				current.failed(e);
+				return;
+			}
+			current.completed(response);
+		} catch (Throwable t) {
+			// e.g., the message is too long
+			current.error(t);
+		}
+	}
+
+	/*
+	 * The connection has been established again: the pending requests are sent
+	 * now. A write which did not complete yet is abandoned. If resend is set,
+	 * the request in flight is sent again as is.
+	 */
+	private void resume(boolean resend) {
+		loopLock.lock();
+		try {
+			supersede();
+			this.resend = resend;
+		} finally {
+			loopLock.unlock();
+		}
+		pump();
+	}
+
+	/*
+	 * The response to the request piggybacked on the handshake has arrived.
+	 */
+	private void resume(Channel channel, NfcMessage request, NfcMessage response) throws GeneralSecurityException {
+		loopLock.lock();
+		try {
+			supersede();
+			handleResponse(channel, request, response);
+		} finally {
+			loopLock.unlock();
+		}
+		pump();
+	}
+
+	private void supersede() {
+		exchange = null;
+		state = State.IDLE;
+		resend = false;
+	}
+
+	/*
+	 * The session is over. A write which is still pending keeps the loop busy
+	 * until it completes, so that the transceiver is never written by two
+	 * threads at the same time.
+	 */
+	private void abandon() {
+		loopLock.lock();
+		try {
+			if (state == State.WAITING) {
+				exchange.abandoned = true;
+			} else {
+				supersede();
+			}
+			resend = false;
+		} finally {
+			loopLock.unlock();
+		}
+	}
+
+	/*
+	 * Weighted round robin: the channel under the cursor sends as many
+	 * fragments as its weight, then the next channel with pending messages
+	 * gets its turn. A request which has been sent but not answered (e.g.,
+	 * due to a connection loss) is always sent again first.
+	 */
+	private Channel nextChannel() {
+		final Channel pending = inFlight;
+		if (pending != null && !pending.queue.isEmpty()) {
+			return pending;
+		}
+		for (int i = 0; i <= channels.length; i++) {
+			final Channel channel = channels[cursor];
+			if (channel != null) {
+				if (!channel.queue.isEmpty() && channel.credit < channel.weight) {
+					channel.credit++;
+					return channel;
+				}
+				channel.credit = 0;
+			}
+			cursor = (cursor + 1) % channels.length;
+		}
+		return null;
+	}
+
+	private boolean hasPending() {
+		for (Channel channel : channels) {
+			if (channel != null && !channel.queue.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Handles the response to the request in flight. The next request to send
+	 * (if any) is queued, the loop picks it up once this returns.
+	 */
+	private void handleResponse(Channel channel, NfcMessage request, NfcMessage response) throws GeneralSecurityException {
+		inFlight = null;
+		if (channel.id == 0) {
+			handleTransceive(request, response);
+		} else {
+			handleChannel(channel, request, response);
+		}
+	}
+
+	/*
+	 * Channels other than 0 only exchange request and response, polling is
+	 * done on channel 0.
+	 */
+	private void handleChannel(Channel channel, NfcMessage request, NfcMessage response) throws GeneralSecurityException {
+		lastMessageSent = request;
+		final NfcMessage request2 = channel.queue.poll();
+		refill(channel);
+		if (!request.equals(request2) || !validateSequence(request, response)) {
+			if (Config.DEBUG)
+				Log.e(TAG, "sync exception on channel " + channel.id + ": " + request + " / " + response);
+			
+			channel.eventHandler.handleMessage(NfcEvent.FATAL_ERROR, UNEXPECTED_ERROR);
+			return;
+		}
+		
+		if (response.isError() || response.channel() != channel.id) {
+			// e.g., the responder did not register this channel
+			if (Config.DEBUG)
+				Log.e(TAG, "error on channel " + channel.id + ": " + response);
+			
+			clearQueue(channel);
+			channel.splitter.clear();
+			channel.eventHandler.handleMessage(NfcEvent.FATAL_ERROR, UNEXPECTED_ERROR);
+		} else if ((response.hasMoreFragments() || response.type() == Type.DEFAULT) && !channel.splitter.reassemble(response)) {
+			if (Config.DEBUG)
+				Log.e(TAG, "message too large on channel " + channel.id + ": " + response);
+			
+			clearQueue(channel);
+			channel.eventHandler.handleMessage(NfcEvent.FATAL_ERROR, MESSAGE_TOO_LARGE);
+		} else if (response.hasMoreFragments()) {
+			channel.queue.offer(new NfcMessage(Type.GET_NEXT_FRAGMENT).channel(channel.id));
+		} else if (response.type() == Type.DEFAULT) {
+			final byte[] retVal = isSecureChannel() ? channel.splitter.data(secureChannel) : channel.splitter.data();
+			channel.splitter.clear();
+			channel.eventHandler.handleMessage(NfcEvent.MESSAGE_RECEIVED, retVal);
+		}
+		// on GET_NEXT_FRAGMENT, the next fragment of the request is already queued
+		
+		if (!hasPending()) {
+			done();
+		}
+	}
+
+	private void handleTransceive(NfcMessage request, NfcMessage response) throws GeneralSecurityException {
+		lastMessageSent = request;
+		// every thing is ok, remove from queue
+		final NfcMessage request2 = messageQueue.poll();
+		refill(channels[0]);
+		// sanity check
+		if (!request.equals(request2)) {
+			if (Config.DEBUG)
+				Log.e(TAG, "sync exception " + request + " / " + request2);
+			
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, UNEXPECTED_ERROR);
+			return;
+		}
+
+		if (!validateSequence(request, response)) {
+			if (Config.DEBUG)
+				Log.e(TAG, "sequence error " + request + " / " + response);
+
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, UNEXPECTED_ERROR);
+			return;
+		}
+
+		if (response.isError()) {
+			// e.g., the responder rejected a message which is too large
+			if (Config.DEBUG)
+				Log.e(TAG, "error reported: " + response);
+			
+			done();
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, response.payload().length > 0 ? new String(response.payload()) : UNEXPECTED_ERROR);
+			return;
+		}
+
+		if (!messageSplitter.reassemble(response)) {
+			if (Config.DEBUG)
+				Log.e(TAG, "message too large or not buffered: " + response);
+			
+			done();
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, MESSAGE_TOO_LARGE);
+			return;
+		}
+
+		if (response.type() == Type.DELTA_MISS) {
+			if (Config.DEBUG)
+				Log.d(TAG, "delta base or blob unknown, sending full message");
+			
+			messageSplitter.clear();
+			for (NfcMessage msg : fragments(messageSplitter, compact(lastPayload, true))) {
+				messageQueue.offer(msg);
+			}
+		} else if (response.hasMoreFragments()) {
+			NfcMessage toSend = new NfcMessage(Type.GET_NEXT_FRAGMENT);
+			messageQueue.offer(toSend);
+		} else if (response.type() == Type.POLLING) {
+			NfcMessage toSend;
+			if (response.isRequest()) {
+				toSend = new NfcMessage(Type.POLLING).response();
+				messageQueue.offer(toSend);
+			} else {
+				if (outbox.isEmpty()) {
+					toSend = new NfcMessage(Type.POLLING).request();
+					messageQueue.offer(toSend);
+				} else {
+					sendNext();
+				}
+			}
+		} else if (response.type() != Type.GET_NEXT_FRAGMENT) {
+			// the responder has more messages in its outbox
+			final boolean more = response.type() == Type.DEFAULT && response.isRequest();
+			if (!deliver(more || !outbox.isEmpty())) {
+				messageQueue.offer(new NfcMessage(Type.DELTA_MISS));
+			} else if (more) {
+				messageQueue.offer(new NfcMessage(Type.POLLING).response());
+			} else if (!outbox.isEmpty()) {
+				sendNext();
+			}
+		}
+	}
+
+	/*
+	 * Sends the next message from the outbox. Polling stops with the last
+	 * one.
+	 */
+	private void sendNext() throws GeneralSecurityException {
+		final byte[] next = outbox.poll();
+		messageSplitter.messageId(isMessageIds() ? newMessageId() : 0);
+		final byte[] plain = compact(next, false);
+		final FragmentPipeline pipeline = pipeline(channels[0], plain);
+		offer(channels[0], plain, pipeline);
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "writing: " + next.length + " bytes, " + messageQueue.size() + " fragments");
+		
+		if (outbox.isEmpty()) {
+			if (Config.DEBUG)
+				Log.d(TAG, "terminating polling");
+			
+			pollingStarted = false;
+		}
+	}
+
+	/*
+	 * Decodes the reassembled message and hands it to the event handler.
+	 * Returns false if the base of the delta encoded message or the referenced
+	 * blob is unknown, in this case the full message has to be requested. If the session
+	 * continues, only the reassembly buffer is cleared.
+	 */
+	private boolean deliver(boolean continueSession) throws GeneralSecurityException {
+		byte[] retVal = isSecureChannel() ? messageSplitter.data(secureChannel) : messageSplitter.data();
+		if (isDelta()) {
+			retVal = deltaStore.decode(peerId, retVal);
+			if (retVal == null) {
+				if (Config.DEBUG)
+					Log.d(TAG, "delta base unknown, requesting full message");
+				
+				messageSplitter.clear();
+				return false;
+			}
+		}
+		if (isBlob()) {
+			retVal = blobStore.decode(retVal);
+			if (retVal == null) {
+				if (Config.DEBUG)
+					Log.d(TAG, "blob unknown, requesting full message");
+				
+				messageSplitter.clear();
+				return false;
+			}
+		}
+		if (continueSession || hasPending()) {
+			messageSplitter.clear();
+		} else {
+			done();
+		}
+		eventHandler.handleMessage(NfcEvent.MESSAGE_RECEIVED, retVal);
+		return true;
+	}
+
+	private void done() {
+		// we are done
+		task.shutdown();
+		abandon();
+		clearChannels();
+		
+		outbox.clear();
+		pollingStarted = false;
+	}
+
+	private boolean isExtendedHeader() {
+		return (capabilities & Handshake.CAPABILITY_EXTENDED_HEADER) != 0;
+	}
+
+	private boolean isSecureChannel() {
+		return (capabilities & Handshake.CAPABILITY_SECURE_CHANNEL) != 0;
+	}
+
+	private boolean isDelta() {
+		return (capabilities & Handshake.CAPABILITY_DELTA) != 0;
+	}
+
+	private boolean isBlob() {
+		return (capabilities & Handshake.CAPABILITY_BLOB) != 0;
+	}
+
+	private boolean isMessageIds() {
+		return (capabilities & Handshake.CAPABILITY_MESSAGE_ID) != 0;
+	}
+
+	/*
+	 * Random, so that the ids of distinct requests do not collide in the
+	 * cache of the responder, even after this initiator has been restarted.
+	 */
+	private long newMessageId() {
+		long id;
+		do {
+			id = random.nextLong();
+		} while (id == 0);
+		return id;
+	}
+
+	/*
+	 * Only the capabilities which have been configured are offered.
+	 */
+	private int localCapabilities() {
+		int local = Handshake.SUPPORTED_CAPABILITIES;
+		if (secureChannel == null) {
+			local &= ~Handshake.CAPABILITY_SECURE_CHANNEL;
+		}
+		if (deltaStore == null) {
+			local &= ~Handshake.CAPABILITY_DELTA;
+		}
+		if (blobStore == null) {
+			local &= ~Handshake.CAPABILITY_BLOB;
+		}
+		boolean registered = false;
+		for (int i = 1; i < channels.length; i++) {
+			registered |= channels[i] != null;
+		}
+		if (!registered) {
+			local &= ~Handshake.CAPABILITY_CHANNELS;
+		}
+		return local;
+	}
+
+	private boolean isChannels() {
+		return (capabilities & Handshake.CAPABILITY_CHANNELS) != 0;
+	}
+
+	/*
+	 * A known blob is first replaced by its reference, then the payload is
+	 * delta encoded (the diff is what is encrypted, see fragments()).
+	 */
+	private byte[] compact(byte[] bytes, boolean full) {
+		if (isDelta() || isBlob()) {
+			lastPayload = bytes;
+		}
+		if (isBlob()) {
+			bytes = full ? BlobStore.full(bytes) : blobStore.encode(bytes);
+		}
+		if (isDelta()) {
+			bytes = full ? DeltaStore.full(bytes) : deltaStore.encode(peerId, bytes);
+		}
+		return bytes;
+	}
+
+	/*
+	 * Seals the message for the channel of the splitter (if the secure
+	 * channel is used) and fragments it.
+	 */
+	private ArrayList<NfcMessage> fragments(NfcMessageSplitter splitter, byte[] plain) throws GeneralSecurityException {
+		return isSecureChannel() ? splitter.getFragments(secureChannel, plain) : splitter.getFragments(plain);
+	}
+
+	private int sealedLength(byte[] plain) {
+		return isSecureChannel() ? plain.length + SecureChannel.TAG_LENGTH : plain.length;
+	}
+
+	private boolean isChecksum() {
+		return (capabilities & Handshake.CAPABILITY_CHECKSUM) != 0;
+	}
+
+	/*
+	 * If checksums have been negotiated, a version 1 message without checksum
+	 * is treated as corrupt, since the flag itself might have been altered.
+	 */
+	/*
+	 * In a session with checksums, only an error may come without, the
+	 * responder sends some of them before the extended header is set up. Any
+	 * other response without checksum has been corrupted in its version bits.
+	 */
+	private boolean isCorrupt(NfcMessage response) {
+		return response.isCorrupt() || (isChecksum() && !response.hasChecksum() && (response.version() == 1 || !response.isError()));
+	}
+
+	private boolean validateSequence(final NfcMessage request, final NfcMessage response) {
+		boolean check = request.sequenceNumber() == response.sequenceNumber();
+		if (!check) {
+			if (Config.DEBUG)
+				Log.e(TAG, "sequence number mismatch, expected " + ((request.sequenceNumber() + 1) % 255) + ", but was: " + response.sequenceNumber());
+			
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * This class initializes the {@link NfcInitiator} as soon as a NFC tag has
+	 * been discovered.
+	 */
+	public class TagDiscoveredHandler {
+		public void tagDiscovered() throws IOException {
+			initNfc();
+		}
+	}
+
+	private static class Channel {
+		private final int id;
+		private final int weight;
+		private final INfcEventHandler eventHandler;
+		private final Deque<NfcMessage> queue;
+		private final NfcMessageSplitter splitter;
+		// fragments sent in the current turn
+		private int credit = 0;
+		// not null while the next fragments are prepared by a worker
+		private volatile FragmentPipeline pipeline = null;
+
+		private Channel(int id, int weight, INfcEventHandler eventHandler, Deque<NfcMessage> queue, NfcMessageSplitter splitter) {
+			this.id = id;
+			this.weight = weight;
+			this.eventHandler = eventHandler;
+			this.queue = queue;
+			this.splitter = splitter;
+		}
+	}
+
+	/*
+	 * The states of the transceive loop. The transitions happen while holding
+	 * the loopLock, the writes are done without it:
+	 * IDLE -> WAITING: the next request has been written
+	 * WAITING -> IDLE: the response has been handled
+	 * WAITING -> RETRANSMIT: the request or the response was corrupt
+	 * RETRANSMIT -> WAITING: the request or a NACK has been written
+	 * WAITING -> LOST: the connection has been lost
+	 * LOST -> IDLE: the connection has been resumed
+	 */
+	private enum State {
+		IDLE, WAITING, RETRANSMIT, LOST;
+	}
+
+	/*
+	 * A request in flight. Writing the request, retransmissions included, is
+	 * completed here, on whatever thread the transceiver calls back.
+	 */
+	private class Exchange implements INfcWriteCallback {
+		private final Channel channel;
+		private final NfcMessage request;
+		// the frame to write in the state RETRANSMIT
+		private NfcMessage retry = null;
+		private int retransmissions = 0;
+		// the session is over, the response is dropped
+		private boolean abandoned = false;
+
+		private Exchange(Channel channel, NfcMessage request) {
+			this.channel = channel;
+			this.request = request;
+		}
+
+		@Override
+		public void completed(NfcMessage response) {
+			if (response == null) {
+				/*
+				 * We sent a request, the other side received it, handled it,
+				 * but the reply did not arrive. Response will only be null
+				 * when debugging.
+				 */
+				failed(new IOException("received null"));
+				return;
+			}
+			
+			if (Config.DEBUG)
+				Log.d(TAG, "received: " + response);
+			
+			loopLock.lock();
+			try {
+				if (!isCurrent()) {
+					return;
+				}
+				// indicate activity to not run into a timeout
+				task.active();
+				supersede();
+				if (isCorrupt(response) || response.type() == Type.NACK) {
+					retransmit(response);
+				} else {
+					handleResponse(channel, request, response);
+				}
+			} catch (GeneralSecurityException e) {
+				done();
+				eventHandler.handleMessage(NfcEvent.FATAL_ERROR, SECURE_CHANNEL_ERROR);
+				
+				if (Config.DEBUG)
+					Log.e(TAG, "secure channel exception", e);
+			} catch (Throwable t) {
+				// in any other case, make sure that we exit properly
+				done();
+				eventHandler.handleMessage(NfcEvent.FATAL_ERROR, UNEXPECTED_ERROR);
+				
+				if (Config.DEBUG)
+					Log.e(TAG, "tranceive exception nfc", t);
+			} finally {
+				loopLock.unlock();
+			}
+			next();
+		}
+
+		/*
+		 * This might occur due to a connection loss and can be followed by a
+		 * nfc handshake to re-init the nfc connection. The request stays in
+		 * flight until then.
+		 */
+		@Override
+		public void failed(IOException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "tranceive exception", e);
+			
+			loopLock.lock();
+			try {
+				if (!isCurrent()) {
+					return;
+				}
+				state = State.LOST;
+			} finally {
+				loopLock.unlock();
+			}
+			next();
+		}
+
+		private void error(Throwable t) {
+			loopLock.lock();
+			try {
+				if (!isCurrent()) {
+					return;
+				}
+				supersede();
+				done();
+			} finally {
+				loopLock.unlock();
+			}
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, UNEXPECTED_ERROR);
+			
+			if (Config.DEBUG)
+				Log.e(TAG, "tranceive exception nfc", t);
+			
+			next();
+		}
+
+		/*
+		 * Returns false if the completion is outdated, e.g., since the session
+		 * has been resumed in the meantime. If the session is over, the loop
+		 * is free again.
+		 */
+		private boolean isCurrent() {
+			if (exchange != this || state != State.WAITING) {
+				return false;
+			}
+			if (abandoned) {
+				supersede();
+				return false;
+			}
+			return true;
+		}
+
+		private void retransmit(NfcMessage response) {
+			if (++retransmissions > MAX_RETRANSMISSIONS) {
+				done();
+				eventHandler.handleMessage(NfcEvent.FATAL_ERROR, CORRUPT_MESSAGE);
+				return;
+			}
+			
+			if (response.type() == Type.NACK && !response.isCorrupt()) {
+				if (Config.DEBUG)
+					Log.d(TAG, "request corrupt, sending again: " + request);
+				
+				retry = request;
+			} else {
+				/*
+				 * Only request the response again, as the request may already
+				 * have been processed by the responder.
+				 */
+				if (Config.DEBUG)
+					Log.d(TAG, "response corrupt, requesting again: " + response);
+				
+				retry = new NfcMessage(Type.NACK).request().sequenceNumber(lastMessageSent).checksum();
+			}
+			exchange = this;
+			state = State.RETRANSMIT;
+		}
+
+		private void next() {
+			if (writer != Thread.currentThread()) {
+				pump();
+			}
+		}
+	}
+
+	private class TimeoutTask implements Runnable {
+		private final CountDownLatch latch = new CountDownLatch(1);
+		// absolute time in milliseconds, 0 if there is no deadline
+		private final long deadline;
+		private long lastActivity;
+
+		public TimeoutTask() {
+			this(0);
+		}
+
+		public TimeoutTask(int timeout) {
+			active();
+			deadline = timeout > 0 ? lastActivity + timeout : 0;
+		}
+
+		/*
+		 * Returns the time left until the deadline, at least 1, or 0 if there
+		 * is no deadline.
+		 */
+		public int remaining() {
+			if (deadline == 0) {
+				return 0;
+			}
+			return (int) Math.max(1, deadline - System.currentTimeMillis());
+		}
+
+		public boolean isActive() {
+			return latch.getCount() > 0;
+		}
+
+		public void active() {
+			synchronized (this) {
+				lastActivity = System.currentTimeMillis();
+			}
+		}
+
+		public void shutdown() {
+			latch.countDown();
+		}
+
+		@Override
+		public void run() {
+			try {
+				long waitTime = CONNECTION_TIMEOUT;
+				if (deadline != 0) {
+					waitTime = Math.min(waitTime, remaining());
+				}
+				while (!latch.await(waitTime, TimeUnit.MILLISECONDS)) {
+					final long now = System.currentTimeMillis();
+					final long idle;
+					synchronized (this) {
+						idle = now - lastActivity;
+					}
+					if (deadline != 0 && now >= deadline) {
+						if (Config.DEBUG)
+							Log.d(TAG, "deadline exceeded");
+						
+						latch.countDown();
+						abort(DEADLINE_EXCEEDED);
+						return;
+					} else if (idle > CONNECTION_TIMEOUT) {
+						if (Config.DEBUG)
+							Log.d(TAG, "connection lost, idle: " + idle);
+						
+						latch.countDown();
+						done();
+						initFailed(NfcEvent.CONNECTION_LOST);
+						return;
+					} else {
+						waitTime = CONNECTION_TIMEOUT - idle;
+						if (deadline != 0) {
+							waitTime = Math.min(waitTime, deadline - now);
+						}
+					}
+				}
+
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,1301 @@
+package ch.uzh.csg.nfclib;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.uzh.csg.nfclib.events.INfcEventHandler;
+import ch.uzh.csg.nfclib.events.NfcEvent;
+import ch.uzh.csg.nfclib.messages.BlobStore;
+import ch.uzh.csg.nfclib.messages.DeltaStore;
+import ch.uzh.csg.nfclib.messages.FragmentPipeline;
+import ch.uzh.csg.nfclib.messages.Handshake;
+import ch.uzh.csg.nfclib.messages.IdempotencyCache;
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+import ch.uzh.csg.nfclib.messages.NfcMessageSplitter;
+import ch.uzh.csg.nfclib.messages.NfcMessage.Type;
+import ch.uzh.csg.nfclib.messages.OutboxJournal;
+import ch.uzh.csg.nfclib.messages.SecureChannel;
+import ch.uzh.csg.nfclib.utils.Config;
+import ch.uzh.csg.nfclib.utils.Log;
+
+/**
+ * This class represents the counterpart of the {@link NfcInitiator}. It listens
+ * for incoming NFC messages and provides the appropriate response.
+ * 
+ * Message fragmentation and reassembly is handled internally.
+ * 
+ * Additional logical channels can be registered, each with its own handler.
+ * Every response is sent on the channel of the request it answers, the
+ * {@link NfcInitiator} decides in which order the channels are served.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public class NfcResponder {
+	private static final String TAG = "ch.uzh.csg.nfclib.NfcResponder";
+
+	// the reasons passed to onDeactivated, same as in the HostApduService
+	public static final int DEACTIVATION_LINK_LOSS = 0;
+	public static final int DEACTIVATION_DESELECTED = 1;
+
+	private final INfcEventHandler eventHandler;
+	private final ITransceiveHandler messageHandler;
+	private final long userId;
+
+	private final NfcMessageSplitter messageSplitter = new NfcMessageSplitter();
+	private final Deque<NfcMessage> messageQueue = new LinkedList<NfcMessage>();
+	// not null while the next fragments of a large response are prepared
+	private FragmentPipeline pipeline = null;
+	private final ExecutorService pipelineService = Executors.newCachedThreadPool();
+	private final Object lock = new Object();
+
+	private final SecureRandom random = new SecureRandom();
+	// null if no key has been set
+	private SecureChannel secureChannel = null;
+	// null if delta encoding is not used
+	private DeltaStore deltaStore = null;
+	// null if blobs are always sent inline
+	private BlobStore blobStore = null;
+	// null if every request is handled, also if received again
+	private IdempotencyCache idempotencyCache = null;
+	// the last payload sent, in case the initiator requests it in full
+	private byte[] lastPayload = null;
+	// the largest message accepted from the initiator
+	private int maxMessageSize = NfcInitiator.DEFAULT_MAX_MESSAGE_SIZE;
+	// null if received messages are never spilled to disk
+	private File spillDirectory = null;
+	private int spillThreshold = Integer.MAX_VALUE;
+
+	// state
+	private long userIdReceived = 0;
+	private long sessionTicket = 0;
+	private int capabilities = 0;
+	// the largest message the initiator accepts, 0 if unknown
+	private int peerMaxMessageSize = 0;
+	private NfcMessage lastMessageSent;
+	private NfcMessage lastMessageReceived;
+
+	private ExecutorService executorService = null;
+	private TimeoutTask task;
+	// messages provided by sendLater, sent in order
+	private final Queue<byte[]> outbox = new ArrayBlockingQueue<byte[]>(NfcInitiator.OUTBOX_CAPACITY);
+	// null if the outbox is not persisted
+	private OutboxJournal journal = null;
+	// the journal ids of the messages in the outbox, guarded by lock
+	private final Map<byte[], Long> journaled = new IdentityHashMap<byte[], Long>();
+	// the journal id of the message being sent, 0 if none
+	private long unconfirmed = 0;
+	// the journal id of the message whose last fragment has been returned, 0 if none
+	private long delivered = 0;
+	// sent with the USER_ID response of the next handshake
+	private byte[] staged = null;
+	// logical channels other than 0, null if not registered
+	private final Channel[] channels = new Channel[NfcMessage.MAX_CHANNELS];
+	// null if every message is handled right away
+	private volatile IMessageSubscriber subscriber = null;
+	// the number of messages requested by the subscriber
+	private final AtomicLong demand = new AtomicLong();
+	// the message held back while the subscriber has no demand
+	private byte[] held = null;
+	private long heldId = 0;
+	// the id of the request being reassembled, 0 if none
+	private long messageId = 0;
+
+	private static final ISendLater NO_SEND_LATER = new ISendLater() {
+		@Override
+		public void sendLater(byte[] bytes) {
+			throw new UnsupportedOperationException("send later is only supported on channel 0");
+		}
+	};
+
+	private final ISendLater sendLater = new ISendLater() {
+		@Override
+		public void sendLater(final byte[] bytes) {
+			if (bytes == null) {
+				throw new IllegalArgumentException("cannot be null");
+			}
+			
+			if (Config.DEBUG)
+				Log.d(TAG, "send later " + Arrays.toString(bytes));
+			
+			NfcResponder.this.sendLater(bytes);
+		}
+	};
+
+	/**
+	 * Instantiates a new object to response to incoming NFC messages.
+	 * 
+	 * @param eventHandler
+	 *            the {@link INfcEventHandler} to listen for {@link NfcEvent}s
+	 * @param messageHandler
+	 *            the {@link ITransceiveHandler} which provides appropriate
+	 *            responses for incoming messages
+	 */
+	public NfcResponder(INfcEventHandler eventHandler, ITransceiveHandler messageHandler) {
+		this(eventHandler, messageHandler, 0);
+	}
+
+	/**
+	 * Instantiates a new object to response to incoming NFC messages. The
+	 * given user id is returned to the {@link NfcInitiator} during the
+	 * handshake.
+	 * 
+	 * @param eventHandler
+	 *            the {@link INfcEventHandler} to listen for {@link NfcEvent}s
+	 * @param messageHandler
+	 *            the {@link ITransceiveHandler} which provides appropriate
+	 *            responses for incoming messages
+	 * @param userId
+	 *            the identifier of this user (or this mobile device)
+	 */
+	public NfcResponder(INfcEventHandler eventHandler, ITransceiveHandler messageHandler, long userId) {
+		this.eventHandler = eventHandler;
+		this.messageHandler = messageHandler;
+		this.userId = userId;
+		userIdReceived = 0;
+		lastMessageSent = null;
+		lastMessageReceived = null;
+
+		executorService = Executors.newSingleThreadExecutor();
+	}
+
+	/**
+	 * Sets the key shared with the {@link NfcInitiator} to encrypt and
+	 * authenticate all messages (see {@link SecureChannel}). If a key is set,
+	 * the handshake fails if the counterpart does not support the secure
+	 * channel. This has to be called before the handshake.
+	 * 
+	 * @param key
+	 *            the shared key, at least 16 bytes
+	 * @throws IllegalArgumentException
+	 *             if the key is too short
+	 */
+	public void secureChannel(byte[] key) throws IllegalArgumentException {
+		secureChannel = new SecureChannel(key);
+	}
+
+	/**
+	 * Sets the store of recent payloads to encode messages as diff against
+	 * previously exchanged payloads with the same {@link NfcInitiator} (see
+	 * {@link DeltaStore}). The same store can be used for several sessions.
+	 * This has to be called before the handshake.
+	 * 
+	 * @param deltaStore
+	 *            the store of recent payloads
+	 */
+	public void deltaStore(DeltaStore deltaStore) {
+		this.deltaStore = deltaStore;
+	}
+
+	/**
+	 * Sets the store of large payloads, which are sent as reference if the
+	 * {@link NfcInitiator} has received them before, e.g., in another session or from
+	 * another counterpart (see {@link BlobStore}). This has to be called
+	 * before the handshake.
+	 * 
+	 * @param blobStore
+	 *            the store of large payloads
+	 */
+	public void blobStore(BlobStore blobStore) {
+		this.blobStore = blobStore;
+	}
+
+	/**
+	 * Sets the cache of the responses to recent requests. A request which has
+	 * already been answered (e.g., since the protocol has been restarted after
+	 * the last message and the {@link NfcInitiator} sent it again) is then
+	 * answered with the previous response, without passing it to the
+	 * {@link ITransceiveHandler} again. A response provided by sendLater is
+	 * cached as well. The requests are recognized by the user id of the
+	 * initiator and the message id, see
+	 * {@link NfcInitiator#transceive(byte[], int, long)}. The same cache can
+	 * be used for several sessions. This has to be called before the
+	 * handshake.
+	 * 
+	 * @param idempotencyCache
+	 *            the cache, null to handle every request
+	 */
+	public void idempotencyCache(IdempotencyCache idempotencyCache) {
+		this.idempotencyCache = idempotencyCache;
+	}
+
+	/**
+	 * Sets the size of the largest message accepted from the
+	 * {@link NfcInitiator}, by default
+	 * {@link NfcInitiator#DEFAULT_MAX_MESSAGE_SIZE}. The limit is sent with the
+	 * handshake, so the initiator rejects larger messages before sending them.
+	 * A message which exceeds it anyway is dropped as soon as this is known
+	 * (with the length hint, already at the first fragment) and answered with
+	 * an error. This has to be called before the handshake.
+	 * 
+	 * @param maxMessageSize
+	 *            the maximum size in bytes, 0 for no limit
+	 * @throws IllegalArgumentException
+	 *             if the size is negative
+	 */
+	public void maxMessageSize(int maxMessageSize) throws IllegalArgumentException {
+		if (maxMessageSize < 0) {
+			throw new IllegalArgumentException("negative message size");
+		}
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Reassembles messages larger than the threshold in a memory-mapped
+	 * temporary file instead of the heap (see {@link NfcMessageSplitter}).
+	 * This has to be called before the handshake.
+	 * 
+	 * @param directory
+	 *            the directory for the temporary files (e.g., the cache
+	 *            directory of the app), null to keep all messages on the heap
+	 * @param threshold
+	 *            the size in bytes above which a message is spilled
+	 */
+	public void spill(File directory, int threshold) {
+		this.spillDirectory = directory;
+		this.spillThreshold = threshold;
+	}
+
+	/**
+	 * Registers the handler of a logical channel (see
+	 * {@link NfcInitiator#channel(int, int, INfcEventHandler)}). Messages on
+	 * this channel are passed to the given handler instead of the one given in
+	 * the constructor, the event handler is not notified about them. Send
+	 * later is not supported on these channels and messages are not delta
+	 * encoded. This has to be called before the handshake.
+	 * 
+	 * @param channel
+	 *            the channel, between 1 and {@link NfcMessage#MAX_CHANNELS} - 1
+	 * @param messageHandler
+	 *            the {@link ITransceiveHandler} which provides the responses
+	 *            for this channel
+	 * @throws IllegalArgumentException
+	 *             if the channel is out of range
+	 */
+	public void channel(int channel, ITransceiveHandler messageHandler) throws IllegalArgumentException {
+		if (channel < 1 || channel >= NfcMessage.MAX_CHANNELS) {
+			throw new IllegalArgumentException("invalid channel " + channel);
+		}
+		channels[channel] = new Channel(messageHandler, new NfcMessageSplitter().channel(channel));
+	}
+
+	/**
+	 * Stages a payload to be sent to the next {@link NfcInitiator} which
+	 * connects. The first part of it is sent together with the USER_ID
+	 * response of the handshake, the rest is fetched by the initiator
+	 * right away, without waiting for a request. This saves at least one
+	 * round-trip, if the responder knows its first message in advance.
+	 * 
+	 * The payload is delivered once, older initiators which do not support
+	 * staged payloads do not receive it.
+	 * 
+	 * @param payload
+	 *            the payload to send, or null to remove a staged payload
+	 */
+	public void stage(byte[] payload) {
+		synchronized (lock) {
+			staged = payload;
+		}
+	}
+
+	/**
+	 * Persists the messages provided by sendLater in the given journal, keyed
+	 * by the user id of the {@link NfcInitiator}. A message is removed from
+	 * the journal once the initiator has received its last fragment, i.e.,
+	 * when the next request of the initiator arrives (e.g., polling for the
+	 * next message, or the message piggybacked on a resume with the session
+	 * ticket). The messages which have not been received completely, e.g.,
+	 * since the connection dropped or the app has been restarted, are put in
+	 * the outbox again when the next session with the same initiator starts,
+	 * and are sent after the first response. A message may therefore be
+	 * received twice, if the initiator does not send another request after
+	 * it. This has to be called before the handshake.
+	 * 
+	 * @param journal
+	 *            the journal, null to keep the outbox on the heap only
+	 */
+	public void outboxJournal(OutboxJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Registers a subscriber, which receives the messages of channel 0 only
+	 * as fast as it requests them (see {@link IMessageSubscriber}). If a
+	 * message arrives while the subscriber has no outstanding demand, it is
+	 * held back and the initiator is kept polling, as if the response was
+	 * sent later. The message is handled (the {@link NfcEvent#MESSAGE_RECEIVED}
+	 * event, the subscriber, and the {@link ITransceiveHandler}) on the first
+	 * poll after the subscriber requested more messages. The initiator does
+	 * not send the next message before it got the response, so at most one
+	 * message is held back. A previous subscriber is replaced.
+	 * 
+	 * @param subscriber
+	 *            the subscriber
+	 */
+	public void subscribe(IMessageSubscriber subscriber) {
+		demand.set(0);
+		this.subscriber = subscriber;
+		subscriber.onSubscribe(new Subscription(subscriber));
+	}
+
+	private void sendLater(byte[] bytes) {
+		if (peerMaxMessageSize > 0 && bytes.length > peerMaxMessageSize) {
+			throw new IllegalArgumentException(NfcInitiator.MESSAGE_TOO_LARGE + " (" + bytes.length + " > " + peerMaxMessageSize + " bytes)");
+		}
+		final OutboxJournal current = journal;
+		long id = 0;
+		if (current != null) {
+			try {
+				id = current.append(userIdReceived, bytes);
+				synchronized (lock) {
+					journaled.put(bytes, id);
+				}
+			} catch (IOException e) {
+				if (Config.DEBUG)
+					Log.e(TAG, "could not persist message, keeping it on the heap only", e);
+			}
+		}
+		if (!outbox.offer(bytes)) {
+			if (id != 0) {
+				synchronized (lock) {
+					journaled.remove(bytes);
+				}
+				confirm(id);
+			}
+			throw new IllegalStateException("outbox full, " + NfcInitiator.OUTBOX_CAPACITY + " messages waiting to be sent");
+		}
+	}
+
+	/*
+	 * Puts the messages to the current initiator, which have not been sent
+	 * completely in an earlier session, in the outbox again.
+	 */
+	private void restoreOutbox() {
+		if (journal == null) {
+			return;
+		}
+		final List<OutboxJournal.Entry> entries = journal.pending(userIdReceived);
+		for (OutboxJournal.Entry entry : entries) {
+			synchronized (lock) {
+				journaled.put(entry.payload(), entry.id());
+			}
+			if (!outbox.offer(entry.payload())) {
+				// the rest follows in a later session
+				synchronized (lock) {
+					journaled.remove(entry.payload());
+				}
+				break;
+			}
+		}
+		
+		if (Config.DEBUG && !entries.isEmpty())
+			Log.d(TAG, "restored " + outbox.size() + " messages from the journal");
+	}
+
+	/*
+	 * The last fragment has been returned, but it may get lost on the way.
+	 */
+	private void markSent() {
+		if (unconfirmed != 0 && messageQueue.isEmpty() && pipeline == null) {
+			delivered = unconfirmed;
+			unconfirmed = 0;
+		}
+	}
+
+	/*
+	 * A new request proves that the initiator received the response before,
+	 * so the message can be removed from the journal.
+	 */
+	private void confirmReceived() {
+		if (delivered != 0) {
+			confirm(delivered);
+			delivered = 0;
+		}
+	}
+
+	private void confirm(long id) {
+		try {
+			journal.remove(id);
+		} catch (IOException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "could not remove message from the journal", e);
+		}
+	}
+
+	/*
+	 * Returns the first fragment of the next message in the outbox. If more
+	 * messages are waiting, the last fragment is flagged as request, so that
+	 * the initiator continues polling after receiving it.
+	 */
+	private NfcMessage checkForData() throws GeneralSecurityException {
+		final byte[] next = outbox.poll();
+		if (next == null) {
+			return null;
+		}
+		synchronized (lock) {
+			final Long id = journaled.remove(next);
+			unconfirmed = id == null ? 0 : id.longValue();
+		}
+		NfcMessage nfcMessage = fragmentData(next, false);
+		if (!outbox.isEmpty()) {
+			more(nfcMessage);
+		}
+		return nfcMessage;
+	}
+
+	/*
+	 * Flags the last fragment of the response as request, so that the
+	 * initiator polls for the next message in the outbox after receiving it.
+	 */
+	private void more(NfcMessage first) {
+		NfcMessage last = messageQueue.isEmpty() ? first : messageQueue.peekLast();
+		last.request();
+	}
+
+	/**
+	 * Processes the incoming data and returns the appropriate response.
+	 * 
+	 * @param bytes
+	 *            the data which has been received over NFC
+	 * @return the response which should be returned over NFC to the
+	 *         {@link NfcInitiator}
+	 */
+	public byte[] processIncomingData(byte[] bytes) {
+		// if a shutdowtask is running, shutdown, as we can continue
+		shutdownTask();
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "processCommandApdu with " + Arrays.toString(bytes));
+		
+		NfcMessage inputMessage = new NfcMessage(bytes);
+		
+		/*
+		 * A bit flip in the header may change the type of the message, e.g.,
+		 * turn a fragment into a USER_ID which starts a new session. So the
+		 * checksum is verified before the type is looked at. Messages of the
+		 * session without checksum are rejected in handleRegular, only the
+		 * handshake is sent before the checksum is negotiated.
+		 */
+		if (inputMessage.isCorrupt()) {
+			return nack();
+		}
+		
+		if (inputMessage.isReadBinary()) {
+			if (Config.DEBUG)
+				Log.d(TAG, "keep alive message");
+			
+			NfcMessage outputMessage = new NfcMessage(Type.READ_BINARY);
+			// no sequence number in here
+			return outputMessage.bytes();
+		} else if (inputMessage.isSelectAidApdu() || inputMessage.type() == Type.USER_ID) {
+			return handleHandshake(inputMessage);
+		} else {
+			return handleRegular(inputMessage);
+		}
+	}
+
+	private byte[] handleRegular(NfcMessage inputMessage) {
+		if (Config.DEBUG)
+			Log.d(TAG, "regular message");
+		
+		if (inputMessage.isCorrupt() || (isChecksum() && !inputMessage.hasChecksum())) {
+			return nack();
+		}
+		
+		if (inputMessage.type() == Type.NACK) {
+			if (lastMessageSent != null && inputMessage.sequenceNumber() == lastMessageSent.sequenceNumber()) {
+				if (Config.DEBUG)
+					Log.d(TAG, "response corrupt, sending again: " + lastMessageSent);
+				
+				return lastMessageSent.bytes();
+			}
+			
+			if (Config.DEBUG)
+				Log.e(TAG, "cannot repeat message " + inputMessage.sequenceNumber());
+			
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.CORRUPT_MESSAGE);
+			return new NfcMessage(Type.ERROR).bytes();
+		}
+
+		boolean check = inputMessage.check(lastMessageReceived);
+		boolean repeat = inputMessage.repeatLast(lastMessageReceived);
+		lastMessageReceived = inputMessage;
+		
+		if (!check && !repeat) {
+			if (Config.DEBUG)
+				Log.e(TAG, "sequence number mismatch " + inputMessage.sequenceNumber() + " / " + (lastMessageReceived == null ? 0 : lastMessageReceived.sequenceNumber()));
+			
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.UNEXPECTED_ERROR);
+			NfcMessage outputMessage = new NfcMessage(Type.ERROR);
+			return prepareWrite(outputMessage);
+		}
+		if (!check && repeat) {
+			return lastMessageSent.bytes();
+		}
+		confirmReceived();
+		// eventHandler fired in handleRequest
+		NfcMessage outputMessage;
+		try {
+			outputMessage = handleRequest(inputMessage, sendLater);
+			markSent();
+		} catch (GeneralSecurityException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "secure channel exception", e);
+			
+			messageSplitter.clear();
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.SECURE_CHANNEL_ERROR);
+			outputMessage = new NfcMessage(Type.ERROR);
+		} catch (IllegalArgumentException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "malformed delta", e);
+			
+			messageSplitter.clear();
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.UNEXPECTED_ERROR);
+			outputMessage = new NfcMessage(Type.ERROR);
+		}
+		
+		return prepareWrite(outputMessage);
+	}
+
+	private byte[] nack() {
+		if (Config.DEBUG)
+			Log.d(TAG, "corrupt message, requesting it again");
+		
+		// the state stays untouched, the initiator sends the same request again
+		return new NfcMessage(Type.NACK).sequenceNumber(lastMessageReceived).checksum().bytes();
+	}
+
+	private byte[] handleHandshake(NfcMessage inputMessage) {
+		// no sequence number in handshake
+		if (inputMessage.isSelectAidApdu()) {
+			if (inputMessage.handshake() != null && inputMessage.handshake().type() == Type.USER_ID) {
+				/*
+				 * The initiator piggybacked the USER_ID on the SELECT AID, so we
+				 * can complete the handshake in one round-trip.
+				 */
+				if (Config.DEBUG)
+					Log.d(TAG, "AID selected (fast handshake)");
+				
+				return handleUserId(inputMessage.handshake(), inputMessage.resumeFrame());
+			}
+			
+			/*
+			 * The size of the returned message is specified in NfcTransceiver
+			 * and is currently set to 2.
+			 */
+			if (Config.DEBUG)
+				Log.d(TAG, "AID selected");
+			
+			return new NfcMessage(Type.AID).response().bytes();
+		} else if (inputMessage.type() == Type.USER_ID) {
+			return handleUserId(inputMessage, null);
+		}
+		return null;
+	}
+
+	private byte[] handleUserId(NfcMessage inputMessage, NfcMessage resumeFrame) {
+		if (inputMessage.version() > NfcMessage.getSupportedVersion()) {
+			if (Config.DEBUG)
+				Log.d(TAG, "excepted NfcMessage version "+NfcMessage.getSupportedVersion()+" but was "+inputMessage.version());
+			
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.INCOMPATIBLE_VERSIONS);
+			return new NfcMessage(Type.ERROR).payload(NfcInitiator.INCOMPATIBLE_VERSIONS.getBytes()).bytes();
+		}
+		
+		// now we have the user id, get it
+		Handshake handshake = new Handshake(inputMessage.payload());
+		long newUserId = handshake.userId();
+		// older initiators do not send a session ticket
+		long ticket = handshake.ticket();
+		
+		messageSplitter.maxTransceiveLength(handshake.maxLen());
+		for (Channel channel : channels) {
+			if (channel != null) {
+				channel.splitter.maxTransceiveLength(handshake.maxLen());
+			}
+		}
+		if (inputMessage.isResume() && newUserId == userIdReceived && (ticket == 0 || ticket == sessionTicket)) {
+			if (resumeFrame != null && ticket != 0) {
+				/*
+				 * The session ticket is valid, so we continue with the
+				 * piggybacked message right away. The resume flag tells the
+				 * initiator that this is the response to that message.
+				 */
+				if (Config.DEBUG)
+					Log.d(TAG, "resume with session ticket");
+				
+				return new NfcMessage(handleRegular(resumeFrame)).resume().bytes();
+			}
+			
+			if (Config.DEBUG)
+				Log.d(TAG, "resume");
+			
+			return new NfcMessage(Type.DEFAULT).resume().bytes();
+		} else {
+			if (Config.DEBUG)
+				Log.d(TAG, "new session (no resume)");
+			
+			// older initiators do not send any capabilities
+			int newCapabilities = handshake.capabilities() & localCapabilities();
+			long nonce = 0;
+			if (secureChannel != null) {
+				if ((newCapabilities & Handshake.CAPABILITY_SECURE_CHANNEL) == 0 || handshake.nonce() == 0) {
+					if (inputMessage.isResume() && (newCapabilities & Handshake.CAPABILITY_SECURE_CHANNEL) != 0) {
+						// the initiator sends its nonce only for a new session, it starts over
+						if (Config.DEBUG)
+							Log.d(TAG, "cannot resume, no nonce: " + handshake);
+						
+						return new NfcMessage(Type.ERROR).payload(NfcInitiator.SECURE_CHANNEL_REQUIRED.getBytes()).bytes();
+					}
+					if (Config.DEBUG)
+						Log.e(TAG, "secure channel not supported: " + handshake);
+					
+					eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.SECURE_CHANNEL_REQUIRED);
+					return new NfcMessage(Type.ERROR).payload(NfcInitiator.SECURE_CHANNEL_REQUIRED.getBytes()).bytes();
+				}
+				nonce = secureChannel.newNonce();
+				try {
+					secureChannel.init(handshake.nonce(), nonce, false);
+				} catch (GeneralSecurityException e) {
+					if (Config.DEBUG)
+						Log.e(TAG, "secure channel exception", e);
+					
+					eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.SECURE_CHANNEL_ERROR);
+					return new NfcMessage(Type.ERROR).bytes();
+				}
+			}
+			
+			userIdReceived = newUserId;
+			sessionTicket = newSessionTicket();
+			capabilities = newCapabilities;
+			peerMaxMessageSize = handshake.maxMessageSize();
+			lastMessageSent = null;
+			lastMessageReceived = null;
+			eventHandler.handleMessage(NfcEvent.INITIALIZED, Long.valueOf(userIdReceived));
+			resetStates();
+			restoreOutbox();
+			messageSplitter.capabilities(capabilities).maxMessageLength(maxMessageSize).spill(spillDirectory, spillThreshold);
+			for (Channel channel : channels) {
+				if (channel != null) {
+					channel.splitter.capabilities(capabilities).maxMessageLength(maxMessageSize).spill(spillDirectory, spillThreshold);
+				}
+			}
+			
+			// return our own identity, older initiators ignore the payload
+			Handshake response = new Handshake(userId, 0).ticket(sessionTicket).capabilities(capabilities).nonce(nonce).maxMessageSize(maxMessageSize);
+			if (isStaged()) {
+				try {
+					stage(response, handshake.maxLen());
+				} catch (GeneralSecurityException e) {
+					if (Config.DEBUG)
+						Log.e(TAG, "secure channel exception", e);
+					
+					eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.SECURE_CHANNEL_ERROR);
+					return new NfcMessage(Type.ERROR).bytes();
+				}
+			}
+			return new NfcMessage(Type.USER_ID).payload(response.bytes()).bytes();
+		}
+	}
+
+	/*
+	 * The first part of the encoded payload fills up the USER_ID response,
+	 * the rest is fragmented as usual and returned on GET_NEXT_FRAGMENT.
+	 */
+	private void stage(Handshake response, int maxLen) throws GeneralSecurityException {
+		final byte[] payload;
+		synchronized (lock) {
+			payload = staged;
+			staged = null;
+		}
+		if (payload == null) {
+			return;
+		}
+		
+		final byte[] encoded = encode(payload, false);
+		final int first = Math.min(encoded.length, response.stagedCapacity(maxLen));
+		final boolean more = first < encoded.length;
+		if (more) {
+			for (NfcMessage msg : messageSplitter.getFragments(Arrays.copyOfRange(encoded, first, encoded.length))) {
+				messageQueue.offer(msg);
+			}
+		}
+		response.staged(Arrays.copyOf(encoded, first), more);
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "staged: " + payload.length + " bytes, " + first + " in handshake, " + messageQueue.size() + " fragments");
+	}
+
+	private long newSessionTicket() {
+		long ticket;
+		do {
+			ticket = random.nextLong();
+		} while (ticket == 0);
+		return ticket;
+	}
+
+	private byte[] prepareWrite(NfcMessage outputMessage) {
+		if (isExtendedHeader()) {
+			outputMessage.version(1);
+			if (isChecksum()) {
+				outputMessage.checksum();
+			}
+		}
+		lastMessageSent = outputMessage.sequenceNumber(lastMessageSent);
+		byte[] retVal = outputMessage.bytes();
+		
+		if (Config.DEBUG)
+			Log.d(TAG, "sending: " + outputMessage);
+		
+		return retVal;
+	}
+
+	private boolean isExtendedHeader() {
+		return (capabilities & Handshake.CAPABILITY_EXTENDED_HEADER) != 0;
+	}
+
+	private boolean isSecureChannel() {
+		return (capabilities & Handshake.CAPABILITY_SECURE_CHANNEL) != 0;
+	}
+
+	private boolean isDelta() {
+		return (capabilities & Handshake.CAPABILITY_DELTA) != 0;
+	}
+
+	private boolean isBlob() {
+		return (capabilities & Handshake.CAPABILITY_BLOB) != 0;
+	}
+
+	/*
+	 * Only the capabilities which have been configured are offered.
+	 */
+	private int localCapabilities() {
+		int local = Handshake.SUPPORTED_CAPABILITIES;
+		if (secureChannel == null) {
+			local &= ~Handshake.CAPABILITY_SECURE_CHANNEL;
+		}
+		if (deltaStore == null) {
+			local &= ~Handshake.CAPABILITY_DELTA;
+		}
+		if (blobStore == null) {
+			local &= ~Handshake.CAPABILITY_BLOB;
+		}
+		if (idempotencyCache == null) {
+			local &= ~Handshake.CAPABILITY_MESSAGE_ID;
+		}
+		boolean registered = false;
+		for (Channel channel : channels) {
+			registered |= channel != null;
+		}
+		if (!registered) {
+			local &= ~Handshake.CAPABILITY_CHANNELS;
+		}
+		return local;
+	}
+
+	private boolean isChannels() {
+		return (capabilities & Handshake.CAPABILITY_CHANNELS) != 0;
+	}
+
+	private boolean isMessageIds() {
+		return (capabilities & Handshake.CAPABILITY_MESSAGE_ID) != 0 && idempotencyCache != null;
+	}
+
+	private boolean isStaged() {
+		return (capabilities & Handshake.CAPABILITY_STAGED) != 0;
+	}
+
+	private boolean isChecksum() {
+		return (capabilities & Handshake.CAPABILITY_CHECKSUM) != 0;
+	}
+
+	private void resetStates() {
+		held = null;
+		heldId = 0;
+		messageId = 0;
+		outbox.clear();
+		synchronized (lock) {
+			journaled.clear();
+		}
+		unconfirmed = 0;
+		delivered = 0;
+		messageSplitter.clear();
+		clearQueue();
+		for (Channel channel : channels) {
+			if (channel != null) {
+				channel.splitter.clear();
+				channel.queue.clear();
+			}
+		}
+	}
+
+	private NfcMessage handleRequest(NfcMessage incoming, final ISendLater sendLater) throws GeneralSecurityException {
+		if (Config.DEBUG)
+			Log.d(TAG, "received: " + incoming);
+
+		if (incoming.isError()) {
+			if (Config.DEBUG)
+				Log.d(TAG, "nfc error reported - returning null");
+			
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.UNEXPECTED_ERROR);
+			return null;
+		}
+		if (incoming.channel() != 0) {
+			return handleChannel(incoming);
+		}
+		boolean hasMoreFragments = incoming.hasMoreFragments();
+
+		switch (incoming.type()) {
+		case DEFAULT:
+			if (incoming.hasMessageId()) {
+				// only the first fragment carries the id
+				messageId = incoming.messageId();
+			}
+			if (!messageSplitter.reassemble(incoming)) {
+				return tooLarge(incoming);
+			}
+			if (hasMoreFragments) {
+				return new NfcMessage(Type.GET_NEXT_FRAGMENT);
+			}
+			final long id = isMessageIds() ? messageId : 0;
+			messageId = 0;
+
+			byte[] receivedData = isSecureChannel() ? messageSplitter.data(secureChannel) : messageSplitter.data();
+			messageSplitter.clear();
+			if (isDelta()) {
+				receivedData = deltaStore.decode(userIdReceived, receivedData);
+				if (receivedData == null) {
+					if (Config.DEBUG)
+						Log.d(TAG, "delta base unknown, requesting full message");
+					
+					return new NfcMessage(Type.DELTA_MISS);
+				}
+			}
+			if (isBlob()) {
+				receivedData = blobStore.decode(receivedData);
+				if (receivedData == null) {
+					if (Config.DEBUG)
+						Log.d(TAG, "blob unknown, requesting full message");
+					
+					return new NfcMessage(Type.DELTA_MISS);
+				}
+			}
+
+			if (id != 0 && idempotencyCache.contains(userIdReceived, id)) {
+				if (Config.DEBUG)
+					Log.d(TAG, "request " + Long.toHexString(id) + " already handled, answering from cache");
+				
+				// null if the response is still to be sent later
+				return respond(idempotencyCache.response(userIdReceived, id));
+			}
+			if (!hasDemand()) {
+				if (Config.DEBUG)
+					Log.d(TAG, "no demand, holding message back");
+				
+				held = receivedData;
+				heldId = id;
+				return new NfcMessage(Type.POLLING).request();
+			}
+			return dispatch(receivedData, id, sendLater);
+		case DELTA_MISS:
+			if (Config.DEBUG)
+				Log.d(TAG, "delta base or blob unknown, sending full message");
+			
+			clearQueue();
+			if (lastPayload == null) {
+				return new NfcMessage(Type.ERROR);
+			}
+			return fragmentData(lastPayload, true, true);
+		case GET_NEXT_FRAGMENT:
+			if (messageQueue.isEmpty() && pipeline == null) {
+				if (Config.DEBUG)
+					Log.e(TAG, "nothing to return (get next fragment)");
+				
+				eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.UNEXPECTED_ERROR);
+			}
+			return nextFragment();
+		case POLLING:
+			if (incoming.isRequest()) {
+				return new NfcMessage(Type.POLLING).response();
+			} else {
+				NfcMessage msg = checkForData();
+				if (msg != null) {
+					return msg;
+				} else if (held != null && hasDemand()) {
+					final byte[] message = held;
+					held = null;
+					return dispatch(message, heldId, sendLater);
+				} else {
+					return new NfcMessage(Type.POLLING).request();
+				}
+			}
+		default:
+			return new NfcMessage(Type.ERROR);
+		}
+	}
+
+	/*
+	 * Passes a received message of channel 0 to the event handler, the
+	 * subscriber, and the message handler and returns the response. The
+	 * response is cached if the request has an id.
+	 */
+	private NfcMessage dispatch(byte[] receivedData, final long id, final ISendLater sendLater) throws GeneralSecurityException {
+		eventHandler.handleMessage(NfcEvent.MESSAGE_RECEIVED, receivedData);
+		
+		final IMessageSubscriber current = subscriber;
+		if (current != null) {
+			long requested;
+			do {
+				requested = demand.get();
+			} while (requested != Long.MAX_VALUE && !demand.compareAndSet(requested, requested - 1));
+			current.onNext(receivedData);
+		}
+
+		final byte[] response;
+		if (id == 0) {
+			response = messageHandler.handleMessage(receivedData, sendLater);
+		} else {
+			final IdempotencyCache cache = idempotencyCache;
+			final long peer = userIdReceived;
+			response = messageHandler.handleMessage(receivedData, new ISendLater() {
+				@Override
+				public void sendLater(byte[] bytes) {
+					sendLater.sendLater(bytes);
+					cache.put(peer, id, bytes);
+				}
+			});
+			if (response != null || !cache.contains(peer, id)) {
+				cache.put(peer, id, response);
+			}
+		}
+		return respond(response);
+	}
+
+	private NfcMessage respond(byte[] response) throws GeneralSecurityException {
+		// the user can decide to use sendLater. In that case, we'll start
+		// to poll. This is triggered by returning null.
+		if (response == null) {
+			return new NfcMessage(NfcMessage.Type.POLLING).request();
+		} else if (!outbox.isEmpty()) {
+			// e.g., messages restored from the journal, the last fragment has to be flagged right away
+			final NfcMessage first = fragmentData(response, false, false);
+			if (first.type() == Type.DEFAULT) {
+				more(first);
+			}
+			return first;
+		} else {
+			return fragmentData(response, false, true);
+		}
+	}
+
+	private boolean hasDemand() {
+		return subscriber == null || demand.get() > 0;
+	}
+
+	/*
+	 * Each channel has its own reassembly buffer and fragment queue, so
+	 * requests on different channels can be interleaved by the initiator.
+	 */
+	private NfcMessage handleChannel(NfcMessage incoming) throws GeneralSecurityException {
+		final int id = incoming.channel();
+		final Channel channel = id < channels.length ? channels[id] : null;
+		if (channel == null || !isChannels()) {
+			if (Config.DEBUG)
+				Log.e(TAG, "channel not registered: " + id);
+			
+			return new NfcMessage(Type.ERROR);
+		}
+		
+		switch (incoming.type()) {
+		case DEFAULT:
+			if (!channel.splitter.reassemble(incoming)) {
+				return tooLarge(incoming).channel(id);
+			}
+			if (incoming.hasMoreFragments()) {
+				return new NfcMessage(Type.GET_NEXT_FRAGMENT).channel(id);
+			}
+			
+			final byte[] receivedData = isSecureChannel() ? channel.splitter.data(secureChannel) : channel.splitter.data();
+			channel.splitter.clear();
+			byte[] response = channel.messageHandler.handleMessage(receivedData, NO_SEND_LATER);
+			if (response == null) {
+				response = new byte[0];
+			}
+			
+			channel.queue.clear();
+			if (exceedsPeer(sealedLength(response))) {
+				return tooLarge(incoming).channel(id);
+			}
+			for (NfcMessage msg : fragments(channel.splitter, response)) {
+				channel.queue.offer(msg);
+			}
+			
+			if (Config.DEBUG)
+				Log.d(TAG, "returning on channel " + id + ": " + response.length + " bytes, " + channel.queue.size() + " fragments");
+			
+			if (channel.queue.isEmpty()) {
+				return new NfcMessage(Type.DEFAULT).channel(id);
+			}
+			return channel.queue.poll();
+		case GET_NEXT_FRAGMENT:
+			final NfcMessage next = channel.queue.poll();
+			if (next == null) {
+				if (Config.DEBUG)
+					Log.e(TAG, "nothing to return on channel " + id);
+				
+				return new NfcMessage(Type.ERROR).channel(id);
+			}
+			return next;
+		default:
+			return new NfcMessage(Type.ERROR).channel(id);
+		}
+	}
+
+	/*
+	 * A known blob is first replaced by its reference, then the payload is
+	 * delta encoded (the diff is what is encrypted) and sealed.
+	 */
+	private byte[] encode(byte[] payload, boolean full) throws GeneralSecurityException {
+		final byte[] encoded = compact(payload, full);
+		return isSecureChannel() ? secureChannel.seal(encoded) : encoded;
+	}
+
+	/*
+	 * Seals the message for the channel of the splitter (if the secure
+	 * channel is used) and fragments it.
+	 */
+	private List<NfcMessage> fragments(NfcMessageSplitter splitter, byte[] plain) throws GeneralSecurityException {
+		return isSecureChannel() ? splitter.getFragments(secureChannel, plain) : splitter.getFragments(plain);
+	}
+
+	private int sealedLength(byte[] plain) {
+		return isSecureChannel() ? plain.length + SecureChannel.TAG_LENGTH : plain.length;
+	}
+
+	private byte[] compact(byte[] payload, boolean full) {
+		if (isDelta() || isBlob()) {
+			lastPayload = payload;
+		}
+		if (isBlob()) {
+			payload = full ? BlobStore.full(payload) : blobStore.encode(payload);
+		}
+		if (isDelta()) {
+			payload = full ? DeltaStore.full(payload) : deltaStore.encode(userIdReceived, payload);
+		}
+		return payload;
+	}
+
+	private NfcMessage fragmentData(byte[] response, boolean full) throws GeneralSecurityException {
+		return fragmentData(response, full, false);
+	}
+
+	/*
+	 * If pipelined is set, a large response is sealed and fragmented by a
+	 * FragmentPipeline, so that the next fragment is ready before the
+	 * initiator asks for it, unless the cipher of this platform buffers the
+	 * whole message anyway. The last fragment has to be known right away
+	 * when the outbox is served (see checkForData()).
+	 */
+	private NfcMessage fragmentData(byte[] response, boolean full, boolean pipelined) throws GeneralSecurityException {
+		if (response == null) {
+			return null;
+		}
+		final byte[] plain = compact(response, full);
+		if (pipelined && isSecureChannel() && SecureChannel.isStreaming() && plain.length >= FragmentPipeline.MIN_LENGTH) {
+			final FragmentPipeline next = new FragmentPipeline(messageSplitter, plain, secureChannel.sealer(0));
+			if (exceedsPeer(next.length())) {
+				return tooLarge(null);
+			}
+			pipeline = next;
+			pipelineService.execute(next);
+			
+			if (Config.DEBUG)
+				Log.d(TAG, "returning: " + response.length + " bytes, pipelined");
+			
+			return nextFragment();
+		}
+		if (exceedsPeer(sealedLength(plain))) {
+			return tooLarge(null);
+		}
+		for (NfcMessage msg : fragments(messageSplitter, plain)) {
+			messageQueue.offer(msg);
+		}
+
+		if (Config.DEBUG)
+			Log.d(TAG, "returning: " + response.length + " bytes, " + messageQueue.size() + " fragments");
+		
+		if (messageQueue.isEmpty()) {
+			if (Config.DEBUG)
+				Log.e(TAG, "nothing to return - message queue is empty");
+			
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.UNEXPECTED_ERROR);
+		}
+		return messageQueue.poll();
+	}
+
+	/*
+	 * Returns the next fragment of the response, from the pipeline if the
+	 * response is pipelined.
+	 */
+	private NfcMessage nextFragment() throws GeneralSecurityException {
+		final FragmentPipeline current = pipeline;
+		if (current == null) {
+			return messageQueue.poll();
+		}
+		try {
+			return current.next();
+		} finally {
+			if (!current.hasNext()) {
+				pipeline = null;
+			}
+		}
+	}
+
+	private void clearQueue() {
+		if (pipeline != null) {
+			pipeline.cancel();
+			pipeline = null;
+		}
+		messageQueue.clear();
+	}
+
+	private boolean exceedsPeer(int length) {
+		if (peerMaxMessageSize > 0 && length > peerMaxMessageSize) {
+			if (Config.DEBUG)
+				Log.e(TAG, "response exceeds the maximum message size of the initiator: " + length);
+			
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * The message is dropped, the other side is told why with the error.
+	 */
+	private NfcMessage tooLarge(NfcMessage incoming) {
+		if (Config.DEBUG)
+			Log.e(TAG, "message too large or not buffered: " + incoming);
+		
+		eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NfcInitiator.MESSAGE_TOO_LARGE);
+		return new NfcMessage(Type.ERROR).payload(NfcInitiator.MESSAGE_TOO_LARGE.getBytes());
+	}
+
+	/**
+	 * This has to be called whenever the system detects that the NFC has been
+	 * aborted.
+	 * 
+	 * @param reason
+	 *            {@link #DEACTIVATION_LINK_LOSS} or
+	 *            {@link #DEACTIVATION_DESELECTED}
+	 */
+	public void onDeactivated(int reason) {
+		if (Config.DEBUG)
+			Log.d(TAG, "deactivated due to " + (reason == DEACTIVATION_LINK_LOSS ? "link loss" : "deselected") + "(" + reason + ")");
+
+		shutdownTask();
+		task = new TimeoutTask();
+		executorService.submit(task);
+	}
+
+	private void shutdownTask() {
+		if (task != null) {
+			task.shutdown();
+			task = null;
+		}
+	}
+
+	private class Subscription implements IMessageSubscription {
+		private final IMessageSubscriber owner;
+
+		private Subscription(IMessageSubscriber owner) {
+			this.owner = owner;
+		}
+
+		@Override
+		public void request(long n) throws IllegalArgumentException {
+			if (n <= 0) {
+				throw new IllegalArgumentException("the demand must be positive");
+			}
+			if (subscriber != owner) {
+				return;
+			}
+			long requested;
+			long updated;
+			do {
+				requested = demand.get();
+				// saturates at Long.MAX_VALUE, which means no limit
+				updated = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+			} while (!demand.compareAndSet(requested, updated));
+		}
+
+		@Override
+		public void cancel() {
+			if (subscriber == owner) {
+				subscriber = null;
+			}
+		}
+	}
+
+	private static class Channel {
+		private final ITransceiveHandler messageHandler;
+		private final NfcMessageSplitter splitter;
+		private final Deque<NfcMessage> queue = new LinkedList<NfcMessage>();
+
+		private Channel(ITransceiveHandler messageHandler, NfcMessageSplitter splitter) {
+			this.messageHandler = messageHandler;
+			this.splitter = splitter;
+		}
+	}
+
+	private class TimeoutTask implements Runnable {
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private final long lastAcitivity = System.currentTimeMillis();
+
+		public void shutdown() {
+			latch.countDown();
+		}
+
+		@Override
+		public void run() {
+			try {
+				long waitTime = NfcInitiator.CONNECTION_TIMEOUT;
+				while (!latch.await(waitTime, TimeUnit.MILLISECONDS)) {
+					final long now = System.currentTimeMillis();
+					final long idle;
+					synchronized (this) {
+						idle = now - lastAcitivity;
+					}
+					if (idle > NfcInitiator.CONNECTION_TIMEOUT) {
+						if (Config.DEBUG)
+							Log.e(TAG, "connection lost, idle: " + idle);
+						
+						latch.countDown();
+						eventHandler.handleMessage(NfcEvent.CONNECTION_LOST, null);
+						return;
+					} else {
+						waitTime = NfcInitiator.CONNECTION_TIMEOUT - idle;
+					}
+				}
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+	
+}
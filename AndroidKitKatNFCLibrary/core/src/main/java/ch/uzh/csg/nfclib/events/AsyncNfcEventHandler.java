@@ -0,0 +1,169 @@
+package ch.uzh.csg.nfclib.events;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import ch.uzh.csg.nfclib.utils.Config;
+import ch.uzh.csg.nfclib.utils.Log;
+
+/**
+ * This decorates an {@link INfcEventHandler} and delivers the events on the
+ * given executor, so that the thread which raised the event (e.g., the HCE
+ * binder thread or the reader callback thread) can continue with the protocol
+ * right away, regardless of how long the handler takes.
+ *
+ * Events are delivered one at a time and in the order they have been raised,
+ * even if the executor uses several threads. An event which is equal (same
+ * type and same data) to the last event waiting for delivery is dropped, as it
+ * does not carry new information. Received messages are never dropped.
+ *
+ * The number of events waiting for delivery is bounded. If the handler falls
+ * behind by that many events, the thread raising the next event waits until
+ * there is space again.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class AsyncNfcEventHandler implements INfcEventHandler {
+	private static final String TAG = "ch.uzh.csg.nfclib.events.AsyncNfcEventHandler";
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private final INfcEventHandler eventHandler;
+	private final Executor executor;
+	private final int capacity;
+
+	private final Deque<PendingEvent> queue = new ArrayDeque<PendingEvent>();
+	private boolean scheduled = false;
+	// the thread currently delivering events, null if none
+	private Thread dispatcher = null;
+
+	private final Runnable dispatch = new Runnable() {
+		@Override
+		public void run() {
+			dispatch();
+		}
+	};
+
+	/**
+	 * Creates a new dispatcher with the default capacity.
+	 *
+	 * @param eventHandler
+	 *            the handler to deliver the events to
+	 * @param executor
+	 *            the executor to deliver the events on
+	 */
+	public AsyncNfcEventHandler(INfcEventHandler eventHandler, Executor executor) {
+		this(eventHandler, executor, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new dispatcher.
+	 *
+	 * @param eventHandler
+	 *            the handler to deliver the events to
+	 * @param executor
+	 *            the executor to deliver the events on
+	 * @param capacity
+	 *            the maximum number of events waiting for delivery
+	 */
+	public AsyncNfcEventHandler(INfcEventHandler eventHandler, Executor executor, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		this.eventHandler = eventHandler;
+		this.executor = executor;
+		this.capacity = capacity;
+	}
+
+	@Override
+	public void handleMessage(NfcEvent event, Object object) {
+		synchronized (queue) {
+			final PendingEvent last = queue.peekLast();
+			if (last != null && last.isRedundant(event, object)) {
+				if (Config.DEBUG)
+					Log.d(TAG, "coalesced " + event);
+
+				return;
+			}
+
+			// the handler itself may raise events, it must not wait for itself
+			while (queue.size() >= capacity && Thread.currentThread() != dispatcher) {
+				try {
+					queue.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			queue.offer(new PendingEvent(event, object));
+
+			if (!scheduled) {
+				scheduled = true;
+				try {
+					executor.execute(dispatch);
+				} catch (RejectedExecutionException e) {
+					if (Config.DEBUG)
+						Log.e(TAG, "executor rejected event " + event, e);
+
+					scheduled = false;
+					queue.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of events waiting for delivery.
+	 */
+	public int pending() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	private void dispatch() {
+		while (true) {
+			final PendingEvent next;
+			synchronized (queue) {
+				next = queue.poll();
+				if (next == null) {
+					scheduled = false;
+					dispatcher = null;
+					return;
+				}
+				dispatcher = Thread.currentThread();
+				queue.notifyAll();
+			}
+
+			try {
+				eventHandler.handleMessage(next.event, next.object);
+			} catch (RuntimeException e) {
+				// a failing handler must not stop the delivery of later events
+				if (Config.DEBUG)
+					Log.e(TAG, "event handler failed on " + next.event, e);
+			}
+		}
+	}
+
+	private static class PendingEvent {
+		private final NfcEvent event;
+		private final Object object;
+
+		private PendingEvent(NfcEvent event, Object object) {
+			this.event = event;
+			this.object = object;
+		}
+
+		private boolean isRedundant(NfcEvent otherEvent, Object otherObject) {
+			if (event != otherEvent || event == NfcEvent.MESSAGE_RECEIVED) {
+				return false;
+			}
+			return object == null ? otherObject == null : object.equals(otherObject);
+		}
+	}
+
+}
@@ -0,0 +1,286 @@
+package ch.uzh.csg.nfclib.messages;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.uzh.csg.nfclib.utils.Config;
+import ch.uzh.csg.nfclib.utils.Log;
+
+/**
+ * This keeps large payloads (e.g., logos, certificates, or terms) on disk,
+ * addressed by their SHA-256 hash, so that a payload which the counterpart
+ * has already received is sent as reference instead of in full. Unlike the
+ * {@link DeltaStore}, the blobs are not kept per counterpart: a blob received
+ * from one counterpart is resolved for all others, and the store survives
+ * restarts of the app.
+ *
+ * A payload of at least the minimum length which has been sent or received
+ * before is encoded as reference (a marker byte followed by the hash), all
+ * other payloads are sent inline (a marker byte followed by the payload) and
+ * stored. If the receiver does not hold the blob (e.g., the sender sent it to
+ * someone else before, or it has been evicted), it requests the full payload
+ * with a DELTA_MISS message, as for an unknown delta base. The blob encoding
+ * is applied before the delta encoding.
+ *
+ * The store is bounded by the total length of the blobs, the least recently
+ * used blob is deleted first. It is thread-safe.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class BlobStore {
+
+	public static final int DEFAULT_MIN_LENGTH = 1024;
+	public static final long DEFAULT_MAX_LENGTH = 4 * 1024 * 1024;
+
+	private static final byte INLINE = 0;
+	private static final byte REFERENCE = 1;
+	private static final int HASH_LENGTH = 32;
+	private static final String SUFFIX = ".blob";
+	private static final String TAG = "ch.uzh.csg.nfclib.messages.BlobStore";
+
+	private final File directory;
+	private final long maxLength;
+	private final int minLength;
+	private final MessageDigest digest;
+
+	// file name to blob length, in access order
+	private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long length = 0;
+
+	/**
+	 * Creates a new store with the default bounds.
+	 *
+	 * @param directory
+	 *            the directory of the blobs, e.g., in the files directory of
+	 *            the app
+	 */
+	public BlobStore(File directory) {
+		this(directory, DEFAULT_MAX_LENGTH, DEFAULT_MIN_LENGTH);
+	}
+
+	/**
+	 * Creates a new store and loads the blobs stored by a previous instance.
+	 *
+	 * @param directory
+	 *            the directory of the blobs, it is created if needed
+	 * @param maxLength
+	 *            the total length of the blobs kept in bytes
+	 * @param minLength
+	 *            the length of the smallest payload which is stored, shorter
+	 *            payloads are always sent inline
+	 * @throws IllegalArgumentException
+	 *             if SHA-256 is not available
+	 */
+	public BlobStore(File directory, long maxLength, int minLength) throws IllegalArgumentException {
+		this.directory = directory;
+		this.maxLength = maxLength;
+		this.minLength = Math.max(minLength, HASH_LENGTH + 1);
+		try {
+			this.digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("SHA-256 not available", e);
+		}
+		directory.mkdirs();
+		load();
+	}
+
+	/**
+	 * Encodes the payload to be sent: as reference if it has been sent or
+	 * received before, inline otherwise. Large payloads are stored for the
+	 * next time.
+	 *
+	 * @param payload
+	 *            the payload to send
+	 * @return the encoded payload
+	 */
+	public synchronized byte[] encode(byte[] payload) {
+		if (payload.length < minLength) {
+			return full(payload);
+		}
+		final byte[] hash = digest.digest(payload);
+		final String name = name(hash);
+		if (blobs.get(name) != null) {
+			// marks it as recently used
+			new File(directory, name).setLastModified(System.currentTimeMillis());
+			final byte[] output = new byte[HASH_LENGTH + 1];
+			output[0] = REFERENCE;
+			System.arraycopy(hash, 0, output, 1, HASH_LENGTH);
+			return output;
+		}
+		store(name, payload);
+		return full(payload);
+	}
+
+	/**
+	 * Returns the inline encoding of the payload, which can be decoded without
+	 * any stored blob. This is used to answer a DELTA_MISS.
+	 *
+	 * @param payload
+	 *            the payload to send
+	 */
+	public static byte[] full(byte[] payload) {
+		byte[] output = new byte[payload.length + 1];
+		output[0] = INLINE;
+		System.arraycopy(payload, 0, output, 1, payload.length);
+		return output;
+	}
+
+	/**
+	 * Decodes a received payload. A large inline payload is stored, so that
+	 * the counterparts can send it as reference the next time.
+	 *
+	 * @param encoded
+	 *            the received payload
+	 * @return the decoded payload or null, if the blob is not stored
+	 * @throws IllegalArgumentException
+	 *             if the encoded payload is malformed
+	 */
+	public synchronized byte[] decode(byte[] encoded) throws IllegalArgumentException {
+		if (encoded == null || encoded.length == 0) {
+			throw new IllegalArgumentException("empty payload");
+		}
+		if (encoded[0] == INLINE) {
+			final byte[] payload = Arrays.copyOfRange(encoded, 1, encoded.length);
+			if (payload.length >= minLength) {
+				store(name(digest.digest(payload)), payload);
+			}
+			return payload;
+		} else if (encoded[0] == REFERENCE && encoded.length == HASH_LENGTH + 1) {
+			final String name = name(Arrays.copyOfRange(encoded, 1, encoded.length));
+			return blobs.get(name) == null ? null : read(name);
+		}
+		throw new IllegalArgumentException("unknown encoding " + encoded[0]);
+	}
+
+	/**
+	 * Returns the total length of the blobs stored.
+	 */
+	public synchronized long length() {
+		return length;
+	}
+
+	/**
+	 * Deletes all blobs.
+	 */
+	public synchronized void clear() {
+		for (String name : blobs.keySet()) {
+			new File(directory, name).delete();
+		}
+		blobs.clear();
+		length = 0;
+	}
+
+	/*
+	 * Restores the access order from the modification times, which are
+	 * updated on every access.
+	 */
+	private void load() {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				final long m1 = f1.lastModified();
+				final long m2 = f2.lastModified();
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+		for (File file : files) {
+			if (file.getName().endsWith(SUFFIX)) {
+				blobs.put(file.getName(), file.length());
+				length += file.length();
+			}
+		}
+		evict();
+	}
+
+	private void store(String name, byte[] payload) {
+		if (payload.length > maxLength || blobs.get(name) != null) {
+			return;
+		}
+		// write a new file and rename it, a crash must not leave half a blob
+		final File tmp = new File(directory, name + ".tmp");
+		try {
+			final FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(payload);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(new File(directory, name))) {
+				throw new IOException("could not rename " + tmp);
+			}
+		} catch (IOException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "could not store blob " + name, e);
+
+			tmp.delete();
+			return;
+		}
+		blobs.put(name, (long) payload.length);
+		length += payload.length;
+		evict();
+	}
+
+	private void evict() {
+		for (Iterator<Map.Entry<String, Long>> iterator = blobs.entrySet().iterator(); length > maxLength && iterator.hasNext();) {
+			final Map.Entry<String, Long> eldest = iterator.next();
+			new File(directory, eldest.getKey()).delete();
+			length -= eldest.getValue();
+			iterator.remove();
+		}
+	}
+
+	/*
+	 * Returns null if the file is gone or has been altered, the blob is then
+	 * requested in full.
+	 */
+	private byte[] read(String name) {
+		final File file = new File(directory, name);
+		try {
+			final RandomAccessFile in = new RandomAccessFile(file, "r");
+			final byte[] payload;
+			try {
+				payload = new byte[(int) in.length()];
+				in.readFully(payload);
+			} finally {
+				in.close();
+			}
+			if (name(digest.digest(payload)).equals(name)) {
+				file.setLastModified(System.currentTimeMillis());
+				return payload;
+			}
+		} catch (IOException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "could not read blob " + name, e);
+		}
+		final Long removed = blobs.remove(name);
+		if (removed != null) {
+			length -= removed;
+		}
+		file.delete();
+		return null;
+	}
+
+	private static String name(byte[] hash) {
+		final StringBuilder sb = new StringBuilder(hash.length * 2 + SUFFIX.length());
+		for (byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.append(SUFFIX).toString();
+	}
+
+}
@@ -0,0 +1,314 @@
+package ch.uzh.csg.nfclib.messages;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import ch.uzh.csg.nfclib.utils.Utils;
+
+/**
+ * This keeps the recent payloads exchanged with each counterpart (identified by
+ * the user id from the handshake) and encodes new payloads as a binary diff
+ * against one of them. It sits above the {@link NfcMessageSplitter}, so only
+ * the diff is fragmented.
+ *
+ * Both parties store every payload they send and receive, so they have the
+ * same bases. The base is identified by its CRC32. If the receiver does not
+ * know the base (e.g., it has been evicted or the previous session was
+ * aborted), it requests the full payload with a DELTA_MISS message.
+ *
+ * An encoded payload starts with a marker byte. A full payload follows the
+ * marker as is. A diff consists of the base id (4 bytes) and a sequence of
+ * operations. Each operation starts with a varint, with the lowest bit set for
+ * COPY (followed by the offset in the base as varint) and not set for ADD
+ * (followed by the literal bytes). The remaining bits are the length.
+ *
+ * The store is bounded (number of peers and number of payloads per peer) and
+ * can be shared across sessions, it is thread-safe.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class DeltaStore {
+
+	public static final int DEFAULT_MAX_PEERS = 16;
+	public static final int DEFAULT_MAX_PAYLOADS = 4;
+
+	private static final byte FULL = 0;
+	private static final byte DELTA = 1;
+	private static final int BASE_ID_LENGTH = 4;
+
+	// shorter matches are cheaper as literals
+	private static final int MIN_MATCH = 6;
+	private static final int HASH_BITS = 12;
+
+	private final int maxPayloads;
+	private final Map<Long, LinkedList<byte[]>> peers;
+
+	/**
+	 * Creates a new store with the default bounds.
+	 */
+	public DeltaStore() {
+		this(DEFAULT_MAX_PEERS, DEFAULT_MAX_PAYLOADS);
+	}
+
+	/**
+	 * Creates a new store.
+	 *
+	 * @param maxPeers
+	 *            the number of counterparts to keep payloads for, the least
+	 *            recently used counterpart is evicted first
+	 * @param maxPayloads
+	 *            the number of recent payloads to keep per counterpart
+	 */
+	public DeltaStore(final int maxPeers, int maxPayloads) {
+		this.maxPayloads = maxPayloads;
+		this.peers = new LinkedHashMap<Long, LinkedList<byte[]>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, LinkedList<byte[]>> eldest) {
+				return size() > maxPeers;
+			}
+		};
+	}
+
+	/**
+	 * Encodes the payload to be sent to the given counterpart and stores it
+	 * as a future base. The payload is encoded as diff against the stored
+	 * payload resulting in the smallest output, or in full if no diff is
+	 * smaller.
+	 *
+	 * @param peer
+	 *            the user id of the counterpart
+	 * @param payload
+	 *            the payload to send
+	 * @return the encoded payload
+	 */
+	public synchronized byte[] encode(long peer, byte[] payload) {
+		byte[] best = null;
+		LinkedList<byte[]> bases = peers.get(peer);
+		if (bases != null) {
+			for (byte[] base : bases) {
+				byte[] delta = diff(base, payload);
+				if (best == null || delta.length < best.length) {
+					best = delta;
+				}
+			}
+		}
+		// the caller might reuse the array
+		store(peer, payload.clone());
+		if (best == null || best.length >= payload.length + 1) {
+			return full(payload);
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the full encoding of the payload, which can be decoded without
+	 * any base. This is used to answer a DELTA_MISS.
+	 *
+	 * @param payload
+	 *            the payload to send
+	 */
+	public static byte[] full(byte[] payload) {
+		byte[] output = new byte[payload.length + 1];
+		output[0] = FULL;
+		System.arraycopy(payload, 0, output, 1, payload.length);
+		return output;
+	}
+
+	/**
+	 * Decodes a payload received from the given counterpart and stores it as
+	 * a future base.
+	 *
+	 * @param peer
+	 *            the user id of the counterpart
+	 * @param encoded
+	 *            the received payload
+	 * @return the decoded payload or null, if the base is unknown
+	 * @throws IllegalArgumentException
+	 *             if the encoded payload is malformed
+	 */
+	public synchronized byte[] decode(long peer, byte[] encoded) throws IllegalArgumentException {
+		if (encoded == null || encoded.length == 0) {
+			throw new IllegalArgumentException("empty payload");
+		}
+
+		final byte[] payload;
+		if (encoded[0] == FULL) {
+			payload = Arrays.copyOfRange(encoded, 1, encoded.length);
+		} else if (encoded[0] == DELTA && encoded.length > BASE_ID_LENGTH) {
+			byte[] base = find(peer, Utils.byteArrayToInt(encoded, 1));
+			if (base == null) {
+				return null;
+			}
+			payload = patch(base, encoded);
+		} else {
+			throw new IllegalArgumentException("unknown encoding " + encoded[0]);
+		}
+		store(peer, payload);
+		return payload;
+	}
+
+	/**
+	 * Removes all payloads of all counterparts.
+	 */
+	public synchronized void clear() {
+		peers.clear();
+	}
+
+	private void store(long peer, byte[] payload) {
+		LinkedList<byte[]> bases = peers.get(peer);
+		if (bases == null) {
+			bases = new LinkedList<byte[]>();
+			peers.put(peer, bases);
+		}
+		for (Iterator<byte[]> iterator = bases.iterator(); iterator.hasNext();) {
+			if (Arrays.equals(iterator.next(), payload)) {
+				iterator.remove();
+			}
+		}
+		bases.addFirst(payload);
+		while (bases.size() > maxPayloads) {
+			bases.removeLast();
+		}
+	}
+
+	private byte[] find(long peer, int baseId) {
+		LinkedList<byte[]> bases = peers.get(peer);
+		if (bases == null) {
+			return null;
+		}
+		for (byte[] base : bases) {
+			if (baseId(base) == baseId) {
+				return base;
+			}
+		}
+		return null;
+	}
+
+	private static int baseId(byte[] base) {
+		CRC32 crc = new CRC32();
+		crc.update(base, 0, base.length);
+		return (int) crc.getValue();
+	}
+
+	/*
+	 * Greedy diff: every position of the base is indexed by the hash of the
+	 * following MIN_MATCH bytes, the last position wins. For each position in
+	 * the target, the longest match at the indexed position is copied.
+	 */
+	private static byte[] diff(byte[] base, byte[] target) {
+		final int[] index = new int[1 << HASH_BITS];
+		Arrays.fill(index, -1);
+		for (int i = 0; i + MIN_MATCH <= base.length; i++) {
+			index[hash(base, i)] = i;
+		}
+
+		// the output is discarded if it is not smaller than the target
+		byte[] output = new byte[1 + BASE_ID_LENGTH + target.length + 16];
+		output[0] = DELTA;
+		System.arraycopy(Utils.intToByteArray(baseId(base)), 0, output, 1, BASE_ID_LENGTH);
+		int offset = 1 + BASE_ID_LENGTH;
+
+		int literalStart = 0;
+		int i = 0;
+		while (i + MIN_MATCH <= target.length) {
+			final int candidate = index[hash(target, i)];
+			int len = 0;
+			if (candidate >= 0) {
+				while (candidate + len < base.length && i + len < target.length && base[candidate + len] == target[i + len]) {
+					len++;
+				}
+			}
+			if (len < MIN_MATCH) {
+				i++;
+				continue;
+			}
+			offset = writeAdd(target, literalStart, i - literalStart, output, offset);
+			if (offset < 0) {
+				return output;
+			}
+			offset = writeCopy(candidate, len, output, offset);
+			if (offset < 0) {
+				return output;
+			}
+			i += len;
+			literalStart = i;
+		}
+		offset = writeAdd(target, literalStart, target.length - literalStart, output, offset);
+		if (offset < 0) {
+			return output;
+		}
+		return Arrays.copyOf(output, offset);
+	}
+
+	// returns -1 if the output is full, i.e., the diff is not worth it
+	private static int writeAdd(byte[] target, int start, int len, byte[] output, int offset) {
+		if (len == 0) {
+			return offset;
+		}
+		final int header = len << 1;
+		if (offset + Utils.varIntLength(header) + len > output.length) {
+			return -1;
+		}
+		offset = Utils.writeVarInt(header, output, offset);
+		System.arraycopy(target, start, output, offset, len);
+		return offset + len;
+	}
+
+	private static int writeCopy(int baseOffset, int len, byte[] output, int offset) {
+		final int header = (len << 1) | 1;
+		if (offset + Utils.varIntLength(header) + Utils.varIntLength(baseOffset) > output.length) {
+			return -1;
+		}
+		offset = Utils.writeVarInt(header, output, offset);
+		return Utils.writeVarInt(baseOffset, output, offset);
+	}
+
+	private static byte[] patch(byte[] base, byte[] delta) throws IllegalArgumentException {
+		// the output is at least as large as the literals
+		byte[] output = new byte[Math.max(base.length, delta.length)];
+		int length = 0;
+		int offset = 1 + BASE_ID_LENGTH;
+		while (offset < delta.length) {
+			final int header = Utils.readVarInt(delta, offset);
+			offset += Utils.varIntLength(header);
+			final int len = header >>> 1;
+			final int source;
+			final byte[] sourceArray;
+			if ((header & 1) != 0) {
+				source = Utils.readVarInt(delta, offset);
+				offset += Utils.varIntLength(source);
+				sourceArray = base;
+			} else {
+				source = offset;
+				offset += len;
+				sourceArray = delta;
+			}
+			if (source + len > sourceArray.length) {
+				throw new IllegalArgumentException("malformed delta");
+			}
+			if (length + len > output.length) {
+				output = Arrays.copyOf(output, Math.max(length + len, output.length * 2));
+			}
+			System.arraycopy(sourceArray, source, output, length, len);
+			length += len;
+		}
+		return Arrays.copyOf(output, length);
+	}
+
+	private static int hash(byte[] array, int offset) {
+		int h = 0;
+		for (int i = 0; i < MIN_MATCH; i++) {
+			h = h * 31 + array[offset + i];
+		}
+		return (h ^ (h >>> HASH_BITS)) & ((1 << HASH_BITS) - 1);
+	}
+
+}
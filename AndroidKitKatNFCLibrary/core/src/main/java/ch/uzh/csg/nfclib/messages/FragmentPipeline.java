@@ -0,0 +1,172 @@
+package ch.uzh.csg.nfclib.messages;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+/**
+ * Seals and fragments a large message on a worker thread while the first
+ * fragments are already being sent. Without the pipeline, the whole message
+ * has to be encrypted before the first fragment can be written, and the CPU
+ * is idle while the fragments are on the air.
+ *
+ * The worker encrypts the message piece by piece and puts every fragment
+ * into a small bounded ring as soon as its range of the ciphertext is ready.
+ * This only helps if the cipher emits the ciphertext as the plaintext comes
+ * in (the tag is appended at the end), which not every provider does, see
+ * {@link SecureChannel#isStreaming()}. The sender takes the fragments one by one with
+ * {@link #next()}, which blocks only if the worker has not caught up. The
+ * fragments are the same as the ones of
+ * {@link NfcMessageSplitter#getFragments(byte[])} for the sealed message.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class FragmentPipeline implements Runnable {
+
+	/**
+	 * Messages shorter than this are sealed at once, the pipeline would not
+	 * pay off.
+	 */
+	public static final int MIN_LENGTH = 4 * 1024;
+
+	// number of fragments prepared ahead of the one on the air
+	private static final int RING_SIZE = 4;
+	// how often a waiting thread checks whether the pipeline is cancelled
+	private static final long POLL_INTERVAL = 100;
+
+	private final BlockingQueue<NfcMessage> ring = new ArrayBlockingQueue<NfcMessage>(RING_SIZE);
+	private final NfcMessageSplitter splitter;
+	private final byte[] plaintext;
+	private final Cipher cipher;
+	private final int length;
+
+	private volatile boolean cancelled = false;
+	private volatile GeneralSecurityException error = null;
+	// only accessed by the sender
+	private boolean finished = false;
+
+	/**
+	 * Creates a new pipeline, which is started by running it on a worker
+	 * thread.
+	 *
+	 * @param splitter
+	 *            the splitter of the channel the message is sent on
+	 * @param plaintext
+	 *            the message to send
+	 * @param cipher
+	 *            the cipher obtained from
+	 *            {@link SecureChannel#sealer(int)}, which is locked while the
+	 *            pipeline runs
+	 */
+	public FragmentPipeline(NfcMessageSplitter splitter, byte[] plaintext, Cipher cipher) {
+		this.splitter = splitter;
+		this.plaintext = plaintext;
+		this.cipher = cipher;
+		this.length = plaintext.length + SecureChannel.TAG_LENGTH;
+	}
+
+	/**
+	 * Returns the length of the sealed message.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Returns true if not all fragments have been taken yet.
+	 */
+	public boolean hasNext() {
+		return !finished && !cancelled;
+	}
+
+	/**
+	 * Returns the next fragment, waits for the worker if it is not ready
+	 * yet.
+	 *
+	 * @return the next fragment, or null if the pipeline has been cancelled
+	 * @throws GeneralSecurityException
+	 *             if the message could not be encrypted
+	 */
+	public NfcMessage next() throws GeneralSecurityException {
+		try {
+			while (true) {
+				final NfcMessage fragment = ring.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (cancelled) {
+					// the worker may have put one more fragment after the clear
+					return null;
+				}
+				if (fragment != null) {
+					finished = !fragment.hasMoreFragments();
+					return fragment;
+				}
+				if (error != null) {
+					finished = true;
+					throw error;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel();
+			return null;
+		}
+	}
+
+	/**
+	 * Stops the worker, e.g., because the session is over. The fragments
+	 * which have not been taken are discarded.
+	 */
+	public void cancel() {
+		cancelled = true;
+		ring.clear();
+	}
+
+	@Override
+	public void run() {
+		synchronized (cipher) {
+			seal();
+		}
+	}
+
+	private void seal() {
+		try {
+			final byte[] sealed = new byte[length];
+			int consumed = 0;
+			int produced = 0;
+			int start = 0;
+			while (start < length && !cancelled) {
+				final int end = splitter.fragmentEnd(start, length);
+				while (produced < end) {
+					final byte[] output;
+					if (consumed < plaintext.length) {
+						final int step = Math.min(end - produced, plaintext.length - consumed);
+						output = cipher.update(plaintext, consumed, step);
+						consumed += step;
+					} else {
+						output = cipher.doFinal();
+					}
+					if (output != null) {
+						System.arraycopy(output, 0, sealed, produced, output.length);
+						produced += output.length;
+					}
+				}
+				final NfcMessage fragment = splitter.fragment(sealed, start, end, length);
+				while (!cancelled && !ring.offer(fragment, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+					// the sender is waiting for the radio
+				}
+				start = end;
+			}
+		} catch (GeneralSecurityException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			cancel();
+		} catch (RuntimeException e) {
+			error = new GeneralSecurityException("could not seal message", e);
+		}
+	}
+
+}
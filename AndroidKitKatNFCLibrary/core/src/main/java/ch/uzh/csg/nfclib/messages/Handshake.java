@@ -0,0 +1,359 @@
+package ch.uzh.csg.nfclib.messages;
+
+import java.util.Arrays;
+
+import ch.uzh.csg.nfclib.utils.Utils;
+
+/**
+ * This is the payload of the USER_ID message, which is exchanged during the
+ * handshake in both directions.
+ *
+ * The first 12 bytes contain the user id and the maximum transceive length and
+ * are understood by all versions. Everything else is encoded as optional
+ * fields (tag, length, value). Fields with an unknown tag are skipped, so new
+ * fields can be added without breaking older counterparts.
+ *
+ * The capabilities are a bitmap of the optional protocol features a party
+ * supports. The responder returns the intersection of the initiator's and its
+ * own capabilities, which are then used by both parties for the rest of the
+ * session.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class Handshake {
+
+	// capabilities
+	public static final int CAPABILITY_EXTENDED_HEADER = 0x01;
+	public static final int CAPABILITY_LENGTH_HINT = 0x02;
+	public static final int CAPABILITY_CHECKSUM = 0x04;
+	// only offered if a key for the secure channel has been set
+	public static final int CAPABILITY_SECURE_CHANNEL = 0x08;
+	// only offered if a delta store has been set
+	public static final int CAPABILITY_DELTA = 0x10;
+	public static final int CAPABILITY_STAGED = 0x20;
+	// only offered if additional logical channels have been registered
+	public static final int CAPABILITY_CHANNELS = 0x40;
+	// only offered if a blob store has been set
+	public static final int CAPABILITY_BLOB = 0x80;
+	// only offered by the responder if an idempotency cache has been set
+	public static final int CAPABILITY_MESSAGE_ID = 0x100;
+
+	/*
+	 * The capabilities supported by this version of the library. Features
+	 * which depend on the extended header are only negotiated together with
+	 * it.
+	 */
+	public static final int SUPPORTED_CAPABILITIES = CAPABILITY_EXTENDED_HEADER | CAPABILITY_LENGTH_HINT | CAPABILITY_CHECKSUM | CAPABILITY_SECURE_CHANNEL
+			| CAPABILITY_DELTA | CAPABILITY_STAGED | CAPABILITY_CHANNELS | CAPABILITY_BLOB
+			| CAPABILITY_MESSAGE_ID;
+
+	private static final int FIXED_LENGTH = 12;
+
+	// optional fields
+	private static final int TAG_TICKET = 1;
+	private static final int TAG_CAPABILITIES = 2;
+	private static final int TAG_NONCE = 3;
+	private static final int TAG_STAGED = 4;
+	private static final int TAG_MAX_MESSAGE_SIZE = 5;
+
+	// tag, length, and flags of the staged field
+	public static final int STAGED_OVERHEAD = 3;
+	private static final int MAX_STAGED_LENGTH = 255 - 1;
+
+	private final long userId;
+	private final int maxLen;
+	private long ticket = 0;
+	private int capabilities = 0;
+	private long nonce = 0;
+	private byte[] staged = null;
+	private boolean stagedMore = false;
+	private int maxMessageSize = 0;
+
+	/**
+	 * Creates a new handshake payload.
+	 *
+	 * @param userId
+	 *            the identifier of this user (or this mobile device)
+	 * @param maxLen
+	 *            the maximum number of bytes which can be send at once by the
+	 *            underlying NFC technology
+	 */
+	public Handshake(long userId, int maxLen) {
+		this.userId = userId;
+		this.maxLen = maxLen;
+	}
+
+	/**
+	 * Parses the payload of a USER_ID message. Older responders return an
+	 * empty payload or only the user id, in this case the missing values are
+	 * 0.
+	 *
+	 * @param payload
+	 *            the payload of the USER_ID message
+	 */
+	public Handshake(byte[] payload) {
+		userId = payload.length >= 8 ? Utils.byteArrayToLong(payload, 0) : 0;
+		maxLen = payload.length >= FIXED_LENGTH ? Utils.byteArrayToInt(payload, 8) : 0;
+
+		int offset = FIXED_LENGTH;
+		while (offset + 2 <= payload.length) {
+			final int tag = payload[offset] & 0xFF;
+			final int len = payload[offset + 1] & 0xFF;
+			offset += 2;
+			if (offset + len > payload.length) {
+				break;
+			}
+
+			switch (tag) {
+			case TAG_TICKET:
+				ticket = readValue(payload, offset, len);
+				break;
+			case TAG_CAPABILITIES:
+				capabilities = (int) readValue(payload, offset, len);
+				break;
+			case TAG_NONCE:
+				nonce = readValue(payload, offset, len);
+				break;
+			case TAG_MAX_MESSAGE_SIZE:
+				maxMessageSize = (int) readValue(payload, offset, len);
+				break;
+			case TAG_STAGED:
+				if (len > 0) {
+					stagedMore = (payload[offset] & 0x01) != 0;
+					staged = Arrays.copyOfRange(payload, offset + 1, offset + len);
+				}
+				break;
+			default:
+				// unknown field, written by a newer version
+				break;
+			}
+			offset += len;
+		}
+	}
+
+	/**
+	 * Returns the user id of the sender.
+	 */
+	public long userId() {
+		return userId;
+	}
+
+	/**
+	 * Returns the maximum transceive length of the sender or 0, if unknown.
+	 */
+	public int maxLen() {
+		return maxLen;
+	}
+
+	/**
+	 * Sets the session ticket and returns this handshake. 0 means no ticket.
+	 */
+	public Handshake ticket(long ticket) {
+		this.ticket = ticket;
+		return this;
+	}
+
+	/**
+	 * Returns the session ticket or 0, if none has been sent.
+	 */
+	public long ticket() {
+		return ticket;
+	}
+
+	/**
+	 * Sets the capabilities bitmap and returns this handshake.
+	 */
+	public Handshake capabilities(int capabilities) {
+		this.capabilities = capabilities;
+		return this;
+	}
+
+	/**
+	 * Returns the capabilities bitmap or 0, if the sender did not send any.
+	 */
+	public int capabilities() {
+		return capabilities;
+	}
+
+	/**
+	 * Sets the nonce for the key derivation of the {@link SecureChannel} and
+	 * returns this handshake. 0 means no nonce.
+	 */
+	public Handshake nonce(long nonce) {
+		this.nonce = nonce;
+		return this;
+	}
+
+	/**
+	 * Returns the nonce or 0, if none has been sent.
+	 */
+	public long nonce() {
+		return nonce;
+	}
+
+	/**
+	 * Sets the size of the largest message the sender accepts (after the
+	 * encoding, i.e., the bytes reassembled from the fragments) and returns
+	 * this handshake. 0 means no limit.
+	 */
+	public Handshake maxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+		return this;
+	}
+
+	/**
+	 * Returns the size of the largest message the sender accepts or 0, if it
+	 * did not send a limit.
+	 */
+	public int maxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Sets the first part of a payload staged by the responder and returns
+	 * this handshake.
+	 * 
+	 * @param staged
+	 *            the first part of the encoded payload, at most 254 bytes
+	 * @param more
+	 *            true if the rest follows with GET_NEXT_FRAGMENT
+	 * @throws IllegalArgumentException
+	 *             if the staged part is too large
+	 */
+	public Handshake staged(byte[] staged, boolean more) throws IllegalArgumentException {
+		if (staged.length > MAX_STAGED_LENGTH) {
+			throw new IllegalArgumentException("staged part too large: " + staged.length);
+		}
+		this.staged = staged;
+		this.stagedMore = more;
+		return this;
+	}
+
+	/**
+	 * Returns the first part of the payload staged by the responder or null,
+	 * if there is none.
+	 */
+	public byte[] staged() {
+		return staged;
+	}
+
+	/**
+	 * Returns true if more parts of the staged payload follow.
+	 */
+	public boolean stagedMore() {
+		return stagedMore;
+	}
+
+	/**
+	 * Returns the maximum number of staged bytes which fit into a message of
+	 * the given length together with the other fields of this handshake.
+	 * 
+	 * @param maxLen
+	 *            the maximum length of the whole USER_ID message
+	 */
+	public int stagedCapacity(int maxLen) {
+		final int capacity = maxLen - NfcMessage.HEADER_LENGTH - bytes().length - STAGED_OVERHEAD;
+		return Math.max(0, Math.min(capacity, MAX_STAGED_LENGTH));
+	}
+
+	/**
+	 * Returns true if the given capability is set.
+	 */
+	public boolean hasCapability(int capability) {
+		return (capabilities & capability) == capability;
+	}
+
+	/**
+	 * Returns the bytes of this handshake (i.e., serializes it) to be used as
+	 * payload of the USER_ID message.
+	 */
+	public byte[] bytes() {
+		final int ticketLen = ticket == 0 ? 0 : 8;
+		final int capabilitiesLen = valueLength(capabilities);
+		final int nonceLen = valueLength(nonce);
+		final int maxMessageSizeLen = valueLength(maxMessageSize);
+
+		int len = FIXED_LENGTH;
+		if (ticketLen > 0) {
+			len += 2 + ticketLen;
+		}
+		if (capabilitiesLen > 0) {
+			len += 2 + capabilitiesLen;
+		}
+		if (nonceLen > 0) {
+			len += 2 + nonceLen;
+		}
+		if (maxMessageSizeLen > 0) {
+			len += 2 + maxMessageSizeLen;
+		}
+		if (staged != null) {
+			len += STAGED_OVERHEAD + staged.length;
+		}
+
+		byte[] output = new byte[len];
+		System.arraycopy(Utils.longToByteArray(userId), 0, output, 0, 8);
+		System.arraycopy(Utils.intToByteArray(maxLen), 0, output, 8, 4);
+		int offset = FIXED_LENGTH;
+		if (ticketLen > 0) {
+			offset = writeValue(TAG_TICKET, ticket, ticketLen, output, offset);
+		}
+		if (capabilitiesLen > 0) {
+			offset = writeValue(TAG_CAPABILITIES, capabilities, capabilitiesLen, output, offset);
+		}
+		if (nonceLen > 0) {
+			offset = writeValue(TAG_NONCE, nonce, nonceLen, output, offset);
+		}
+		if (maxMessageSizeLen > 0) {
+			offset = writeValue(TAG_MAX_MESSAGE_SIZE, maxMessageSize, maxMessageSizeLen, output, offset);
+		}
+		if (staged != null) {
+			output[offset++] = (byte) TAG_STAGED;
+			output[offset++] = (byte) (staged.length + 1);
+			output[offset++] = (byte) (stagedMore ? 0x01 : 0x00);
+			System.arraycopy(staged, 0, output, offset, staged.length);
+			offset += staged.length;
+		}
+		return output;
+	}
+
+	private static int valueLength(long value) {
+		int len = 0;
+		while (value != 0) {
+			value >>>= 8;
+			len++;
+		}
+		return len;
+	}
+
+	private static int writeValue(int tag, long value, int len, byte[] output, int offset) {
+		output[offset++] = (byte) tag;
+		output[offset++] = (byte) len;
+		for (int i = len - 1; i >= 0; i--) {
+			output[offset++] = (byte) (value >>> (i * 8));
+		}
+		return offset;
+	}
+
+	private static long readValue(byte[] input, int offset, int len) {
+		long value = 0;
+		for (int i = 0; i < len; i++) {
+			value = (value << 8) | (input[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Handshake: ");
+		sb.append("user: ").append(userId);
+		sb.append(",len:").append(maxLen);
+		sb.append(",ticket:").append(ticket != 0);
+		sb.append(",cap:").append(Integer.toHexString(capabilities));
+		sb.append(",staged:").append(staged == null ? 0 : staged.length);
+		sb.append(",max:").append(maxMessageSize);
+		return sb.toString();
+	}
+
+}
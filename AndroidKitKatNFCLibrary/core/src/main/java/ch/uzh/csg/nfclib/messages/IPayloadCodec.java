@@ -0,0 +1,38 @@
+package ch.uzh.csg.nfclib.messages;
+
+/**
+ * The schema of an application payload: maps an object to tagged fields and
+ * back, using a {@link PayloadWriter} and a {@link PayloadReader}. Fields with
+ * an unknown tag are skipped when decoding, so new fields can be added without
+ * breaking older counterparts.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ * @param <T>
+ *            the type of the payload
+ */
+public interface IPayloadCodec<T> {
+
+	/**
+	 * Writes the fields of the value.
+	 * 
+	 * @param value
+	 *            the value to encode
+	 * @param writer
+	 *            the writer to write the fields to
+	 */
+	public void encode(T value, PayloadWriter writer);
+
+	/**
+	 * Reads the fields of a value.
+	 * 
+	 * @param reader
+	 *            the reader positioned before the first field
+	 * @return the decoded value
+	 * @throws IllegalArgumentException
+	 *             if the payload is malformed
+	 */
+	public T decode(PayloadReader reader) throws IllegalArgumentException;
+
+}
@@ -0,0 +1,248 @@
+package ch.uzh.csg.nfclib.messages;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.uzh.csg.nfclib.utils.Config;
+import ch.uzh.csg.nfclib.utils.Log;
+
+/**
+ * This keeps the responses to the most recent requests, keyed by the user id
+ * of the counterpart and the message id of the request, so that a request
+ * which is received again (e.g., since the initiator has been restarted and
+ * sends it again with the same id) is answered without handling it a second
+ * time.
+ *
+ * The responses are kept in a LRU map, which is bounded by the number of
+ * entries and the total length of the responses. A Bloom filter in front of
+ * the map answers most lookups of new requests without touching the map. The
+ * filter cannot forget evicted entries, it is therefore rebuilt from the map
+ * once as many entries have been added as the map holds.
+ *
+ * The cache is kept on the heap only. It is thread-safe.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class IdempotencyCache {
+
+	public static final int DEFAULT_CAPACITY = 256;
+	public static final int DEFAULT_MAX_LENGTH = 1024 * 1024;
+
+	// about 1% false positives
+	private static final int BITS_PER_ENTRY = 10;
+	private static final int HASHES = 7;
+	private static final String TAG = "ch.uzh.csg.nfclib.messages.IdempotencyCache";
+
+	// marks a request which has been answered by sendLater
+	private static final byte[] SENT_LATER = new byte[0];
+
+	private static class Key {
+		private final long userId;
+		private final long messageId;
+
+		private Key(long userId, long messageId) {
+			this.userId = userId;
+			this.messageId = messageId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return k.userId == userId && k.messageId == messageId;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (mix(userId, messageId) >>> 32);
+		}
+	}
+
+	private final int capacity;
+	private final long maxLength;
+	private final int bits;
+	private final BitSet filter;
+	private final LinkedHashMap<Key, byte[]> responses = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+	private long length = 0;
+	// entries added to the filter since it has been rebuilt
+	private int added = 0;
+
+	/**
+	 * Creates a cache with {@link #DEFAULT_CAPACITY} entries and responses of
+	 * {@link #DEFAULT_MAX_LENGTH} bytes in total.
+	 */
+	public IdempotencyCache() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param capacity
+	 *            the maximum number of responses
+	 * @param maxLength
+	 *            the maximum length of all responses in bytes
+	 * @throws IllegalArgumentException
+	 *             if the capacity is not positive
+	 */
+	public IdempotencyCache(int capacity, long maxLength) throws IllegalArgumentException {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("invalid capacity " + capacity);
+		}
+		this.capacity = capacity;
+		this.maxLength = maxLength;
+		this.bits = capacity * BITS_PER_ENTRY;
+		this.filter = new BitSet(bits);
+	}
+
+	/**
+	 * Returns true if the request has been answered before.
+	 *
+	 * @param userId
+	 *            the user id of the counterpart
+	 * @param messageId
+	 *            the message id of the request
+	 */
+	public synchronized boolean contains(long userId, long messageId) {
+		if (!mightContain(mix(userId, messageId))) {
+			return false;
+		}
+		return responses.get(new Key(userId, messageId)) != null;
+	}
+
+	/**
+	 * Returns the response to the request, or null if the request is unknown
+	 * or has been answered by sendLater (and the response has not been
+	 * provided yet).
+	 *
+	 * @param userId
+	 *            the user id of the counterpart
+	 * @param messageId
+	 *            the message id of the request
+	 */
+	public synchronized byte[] response(long userId, long messageId) {
+		if (!mightContain(mix(userId, messageId))) {
+			return null;
+		}
+		final byte[] response = responses.get(new Key(userId, messageId));
+		return response == SENT_LATER ? null : response;
+	}
+
+	/**
+	 * Stores the response to a request. A previous response to the same
+	 * request is replaced.
+	 *
+	 * @param userId
+	 *            the user id of the counterpart
+	 * @param messageId
+	 *            the message id of the request
+	 * @param response
+	 *            the response, null if it is provided by sendLater
+	 */
+	public synchronized void put(long userId, long messageId, byte[] response) {
+		if (response == null) {
+			response = SENT_LATER;
+		}
+		if (response.length > maxLength) {
+			// keeping it would evict all others
+			remove(new Key(userId, messageId));
+			return;
+		}
+		final byte[] previous = responses.put(new Key(userId, messageId), response);
+		if (previous != null) {
+			length -= previous.length;
+		}
+		length += response.length;
+		add(mix(userId, messageId));
+
+		final Iterator<Map.Entry<Key, byte[]>> iterator = responses.entrySet().iterator();
+		while (iterator.hasNext() && (responses.size() > capacity || length > maxLength)) {
+			length -= iterator.next().getValue().length;
+			iterator.remove();
+		}
+		if (added > capacity) {
+			rebuild();
+		}
+	}
+
+	/**
+	 * Returns the number of responses.
+	 */
+	public synchronized int size() {
+		return responses.size();
+	}
+
+	/**
+	 * Removes all responses.
+	 */
+	public synchronized void clear() {
+		responses.clear();
+		filter.clear();
+		length = 0;
+		added = 0;
+	}
+
+	private void remove(Key key) {
+		final byte[] previous = responses.remove(key);
+		if (previous != null) {
+			length -= previous.length;
+		}
+	}
+
+	/*
+	 * Clears the bits of the evicted entries, which would otherwise fill up
+	 * the filter.
+	 */
+	private void rebuild() {
+		filter.clear();
+		for (Key key : responses.keySet()) {
+			add(mix(key.userId, key.messageId));
+		}
+		added = 0;
+
+		if (Config.DEBUG)
+			Log.d(TAG, "rebuilt filter, " + responses.size() + " entries");
+	}
+
+	private void add(long hash) {
+		final int h1 = (int) hash;
+		final int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < HASHES; i++) {
+			filter.set(index(h1, h2, i));
+		}
+		added++;
+	}
+
+	private boolean mightContain(long hash) {
+		final int h1 = (int) hash;
+		final int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < HASHES; i++) {
+			if (!filter.get(index(h1, h2, i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int index(int h1, int h2, int i) {
+		return ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+	}
+
+	/*
+	 * The finalizer of SplitMix64, applied to both ids.
+	 */
+	private static long mix(long userId, long messageId) {
+		long z = userId * 0x9E3779B97F4A7C15L + messageId;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+}
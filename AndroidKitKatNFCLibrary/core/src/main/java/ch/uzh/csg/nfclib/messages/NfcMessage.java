@@ -0,0 +1,812 @@
+package ch.uzh.csg.nfclib.messages;
+
+import java.util.Arrays;
+
+import ch.uzh.csg.nfclib.utils.Utils;
+
+/**
+ * This is the NFC layer protocol message. It is responsible for sending
+ * Messages between two devices over NFC. It is build to allow message
+ * fragmentation and reassembly, based on the communication device's NFC message
+ * size capabilities.
+ * 
+ * The flags in the header can be combined (OR, AND, etc.) to transmit more than
+ * one status to the counterpart. The header contains also a sequence number in
+ * order to detect multiple transmission of the same messages or a message loss.
+ * 
+ * Version 0 messages consist of the header byte, the sequence number, and the
+ * payload. Version 1 messages have an additional extension byte between the
+ * header and the sequence number. It contains further flags and, if the type
+ * in the header is EXTENDED, the actual type. Optional fields announced by the
+ * extension flags follow the sequence number (first the logical channel, then
+ * the length hint, then the message id). If the checksum flag is set, the
+ * message ends with a CRC-16 over all preceding bytes. Version 1 messages are
+ * only sent if the counterpart announced the
+ * {@link Handshake#CAPABILITY_EXTENDED_HEADER} capability during the
+ * handshake. The handshake itself always uses version 0.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public class NfcMessage {
+	
+	/*
+	 * The number of the first version is 0. Version 1 adds the extension byte.
+	 * Future versions might be 2 or 3. Afterwards, a new byte has to be
+	 * allocated for to contain the version number.
+	 */
+	private static final int VERSION = 1;
+	
+	/*
+	 * New messages are created with version 0, which is understood by all
+	 * counterparts. Use version(int) once the counterpart is known to support
+	 * a higher version.
+	 */
+	private static final int DEFAULT_VERSION = 0;
+
+	/*
+	 * When a remote NFC device wants to talk to your service, it sends a
+	 * so-called "SELECT AID" APDU as defined in the ISO/IEC 7816-4
+	 * specification.
+	 */
+	public static final byte[] CLA_INS_P1_P2 = { 0x00, (byte) 0xA4, 0x04, 0x00 };
+	public static final byte[] AID_MBPS = { (byte) 0xF0, (byte) 0xF0, 0x07, 0x77, (byte) 0xFF, 0x55, 0x11 };
+	// AIDs are 5 to 16 bytes long (ISO/IEC 7816-4)
+	public static final int MIN_AID_LENGTH = 5;
+	public static final int MAX_AID_LENGTH = 16;
+	// offset of Lc and of the AID in a SELECT AID APDU
+	private static final int LC_OFFSET = 4;
+	private static final int AID_OFFSET = LC_OFFSET + 1;
+	public static final byte[] CLA_INS_P1_P2_AID_MBPS = selectAidApdu(AID_MBPS);
+
+	private static byte[] selectAidApdu(byte[] aid) {
+		// for details see:
+		// http://www.cardwerk.com/smartcards/smartcard_standard_ISO7816-4_9_application-independent_card_services.aspx
+		byte Lc = (byte) aid.length;
+		// we return 2 bytes
+		byte Le = 2;
+		byte[] apdu = new byte[AID_OFFSET + aid.length + 1];
+		System.arraycopy(CLA_INS_P1_P2, 0, apdu, 0, CLA_INS_P1_P2.length);
+		apdu[LC_OFFSET] = Lc;
+		System.arraycopy(aid, 0, apdu, AID_OFFSET, aid.length);
+		apdu[apdu.length - 1] = Le;
+		return apdu;
+	}
+
+	public static final byte[] READ_BINARY = { 0x00, (byte) 0xB0, 0x00, 0x00, 0x01 };
+
+	public static final int HEADER_LENGTH = 2;
+	public static final int HEADER_LENGTH_V1 = 3;
+
+	/*
+	 * messages, uses 3 bits at most in the header. EXTENDED indicates that the
+	 * type is stored in the lower 3 bits of the extension byte (version 1
+	 * only), i.e., the types declared after EXTENDED.
+	 */
+	public enum Type {
+		DEFAULT, ERROR, AID, GET_NEXT_FRAGMENT, USER_ID, READ_BINARY, POLLING, EXTENDED,
+		// requests the retransmission of the message with the given sequence number
+		NACK,
+		// the base of a delta encoded message or a referenced blob is unknown, requests the full message
+		DELTA_MISS;
+	}
+	
+	private static final Type[] TYPES = Type.values();
+	private static final int EXTENDED_TYPE_MASK = 0x07;
+
+	// flags
+	public static final byte RESUME = 0x20;
+	public static final byte REQUEST = 0x40;
+	public static final byte HAS_MORE_FRAGMENTS = (byte) 0x80;
+	
+	// extension flags (version 1 only)
+	public static final int EXT_MESSAGE_ID = 0x10;
+	public static final int EXT_CHANNEL = 0x20;
+	public static final int EXT_LENGTH_HINT = 0x40;
+	public static final int EXT_CHECKSUM = 0x80;
+	
+	public static final int CHECKSUM_LENGTH = 2;
+	public static final int MESSAGE_ID_LENGTH = 8;
+	
+	// logical channels, channel 0 is the default and needs no extra byte
+	public static final int MAX_CHANNELS = 8;
+	
+	// data
+	private int header = 0;
+	private int extension = 0;
+	private int sequenceNumber = 0;
+	private int channel = 0;
+	// the total length of the fragmented payload, -1 if not set
+	private int lengthHint = -1;
+	// identifies the request across sessions, 0 if not set
+	private long messageId = 0;
+	// true if the received checksum does not match
+	private boolean corrupt = false;
+	private byte[] payload = new byte[0];
+	// the USER_ID message piggybacked on a SELECT AID (fast handshake)
+	private NfcMessage handshake = null;
+	// the message to continue with after a resume, piggybacked on a SELECT AID
+	private NfcMessage resumeFrame = null;
+	// the AID of a SELECT AID
+	private byte[] aid = AID_MBPS;
+
+	/**
+	 * Sets the data of this message and returns it.
+	 * 
+	 * @param input
+	 *            the header as well as the payload of this {@link NfcMessage}
+	 */
+	public NfcMessage(byte[] input) {
+		final int len = input.length;
+		if (Arrays.equals(input, READ_BINARY)) {
+			/*
+			 * Based on the reported issue in
+			 * https://code.google.com/p/android/issues/detail?id=58773, there
+			 * is a failure in the Android NFC protocol. The IsoDep might
+			 * transceive a READ BINARY, if the communication with the tag (or
+			 * HCE) has been idle for a given time (125ms as mentioned on the
+			 * issue report). This idle time can be changed with the
+			 * EXTRA_READER_PRESENCE_CHECK_DELAY option.
+			 */
+			header = Type.READ_BINARY.ordinal();
+			header = header | (DEFAULT_VERSION << 3);
+		} else if (input[0] == CLA_INS_P1_P2[0] && input[1] == CLA_INS_P1_P2[1]) {
+			// we got the initial handshake
+			header = Type.AID.ordinal();
+			header = header | (DEFAULT_VERSION << 3);
+			
+			final byte[] selected = selectedAid(input);
+			if (selected != null) {
+				aid = selected;
+			}
+			
+			/*
+			 * The Android OS routes the SELECT AID based on Lc and the AID
+			 * only, so anything appended after Le is passed on to us. A length
+			 * byte followed by the USER_ID message is appended by peers which
+			 * support the fast handshake.
+			 */
+			final int offset = AID_OFFSET + aid.length + 1;
+			if (selected != null && len > offset + 1) {
+				final int handshakeLen = input[offset] & 0xFF;
+				final int frameOffset = offset + 1 + handshakeLen;
+				if (handshakeLen >= HEADER_LENGTH && frameOffset <= len) {
+					handshake = new NfcMessage(Arrays.copyOfRange(input, offset + 1, frameOffset));
+					if (len - frameOffset >= HEADER_LENGTH) {
+						resumeFrame = new NfcMessage(Arrays.copyOfRange(input, frameOffset, len));
+					}
+				}
+			}
+		} else {
+			// this is now a custom message
+			header = input[0];
+			int offset;
+			int end = len;
+			if (version() == 1 && len >= HEADER_LENGTH_V1) {
+				extension = input[1] & 0xFF;
+				sequenceNumber = input[2] & 0xFF;
+				offset = HEADER_LENGTH_V1;
+				if ((extension & EXT_CHECKSUM) != 0) {
+					end = len - CHECKSUM_LENGTH;
+					corrupt = end < offset || Utils.crc16(input, 0, end) != (((input[end] & 0xFF) << 8) | (input[end + 1] & 0xFF));
+				}
+				if (!corrupt && (extension & EXT_CHANNEL) != 0) {
+					if (offset < end) {
+						channel = input[offset] & 0xFF;
+						offset++;
+					} else {
+						corrupt = true;
+					}
+				}
+				if (!corrupt && (extension & EXT_LENGTH_HINT) != 0) {
+					try {
+						lengthHint = Utils.readVarInt(input, offset);
+						offset += Utils.varIntLength(lengthHint);
+					} catch (IllegalArgumentException e) {
+						corrupt = true;
+					}
+				}
+				if (!corrupt && (extension & EXT_MESSAGE_ID) != 0) {
+					if (offset + MESSAGE_ID_LENGTH <= end) {
+						messageId = Utils.byteArrayToLong(input, offset);
+						offset += MESSAGE_ID_LENGTH;
+					} else {
+						corrupt = true;
+					}
+				}
+			} else {
+				sequenceNumber = input[1] & 0xFF;
+				offset = HEADER_LENGTH;
+			}
+
+			if (!corrupt && end > offset) {
+				final int payloadLen = end - offset;
+				payload = new byte[payloadLen];
+				System.arraycopy(input, offset, payload, 0, payloadLen);
+			}
+		}
+	}
+
+	/**
+	 * Sets the type of this message and returns it.
+	 * 
+	 * @param messageType
+	 *            the {@link Type} to set
+	 */
+	public NfcMessage(Type messageType) {
+		final int extended = Type.EXTENDED.ordinal();
+		if (messageType.ordinal() > extended) {
+			// only version 1 can transport the extended types
+			header = extended | (1 << 3);
+			extension = (messageType.ordinal() - extended - 1) & EXTENDED_TYPE_MASK;
+		} else {
+			header = messageType.ordinal();
+			header = header | (DEFAULT_VERSION << 3);
+		}
+	}
+
+	/**
+	 * Returns the type of this message.
+	 */
+	public Type type() {
+		// type is encoded in the last 3 bits
+		final int type = header & 0x7;
+		if (type == Type.EXTENDED.ordinal() && version() == 1) {
+			final int index = type + 1 + (extension & EXTENDED_TYPE_MASK);
+			if (index < TYPES.length) {
+				return TYPES[index];
+			}
+		}
+		return TYPES[type];
+	}
+	
+	/**
+	 * Returns the version of this message.
+	 */
+	public int version() {
+		return (header >>> 3) & 0x03;
+	}
+	
+	/**
+	 * Sets the version of this message and returns it. Use this only if the
+	 * counterpart supports the given version (see {@link Handshake}).
+	 * 
+	 * @param version
+	 *            the version to set (0 or 1)
+	 */
+	public NfcMessage version(int version) {
+		if (version > VERSION) {
+			throw new IllegalArgumentException("unsupported version " + version);
+		}
+		if (version == 0 && type().ordinal() > Type.EXTENDED.ordinal()) {
+			throw new IllegalArgumentException("extended types require version 1");
+		}
+		header = (header & ~(0x03 << 3)) | (version << 3);
+		return this;
+	}
+	
+	/**
+	 * Returns the length of the header of this message, i.e., the number of
+	 * bytes preceding the payload.
+	 */
+	public int headerLength() {
+		if (version() != 1) {
+			return HEADER_LENGTH;
+		}
+		int len = HEADER_LENGTH_V1;
+		if (hasChannel()) {
+			len++;
+		}
+		if (hasLengthHint()) {
+			len += Utils.varIntLength(lengthHint);
+		}
+		if (hasMessageId()) {
+			len += MESSAGE_ID_LENGTH;
+		}
+		return len;
+	}
+	
+	/**
+	 * Returns the highest supported version of Nfc Messages. If version()
+	 * returns an higher version that this method, we cannot process that
+	 * message.
+	 */
+	public static int getSupportedVersion() {
+		return VERSION;
+	}
+	
+	/**
+	 * Sets the payload of this message and returns it.
+	 * 
+	 * @param payload
+	 *            the payload to set
+	 */
+	public NfcMessage payload(byte[] payload) {
+		this.payload = payload;
+		return this;
+	}
+
+	/**
+	 * Returns the payload of this message.
+	 */
+	public byte[] payload() {
+		return payload;
+	}
+
+	/**
+	 * Sets the sequence number of this message and returns it.
+	 * 
+	 * @param previousMessage
+	 *            the previous {@link NfcMessage} which has been sent over NFC
+	 * @return this message with the appropriate sequence number
+	 */
+	public NfcMessage sequenceNumber(NfcMessage previousMessage) {
+		if (previousMessage == null) {
+			sequenceNumber = 0;
+		} else {
+			sequenceNumber = (previousMessage.sequenceNumber + 1) % 255;
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the sequence number of this message.
+	 */
+	public int sequenceNumber() {
+		return sequenceNumber;
+	}
+
+	/**
+	 * Verifies that this message has a correct sequence number based on the
+	 * previous {@link NfcMessage} sent or received.
+	 * 
+	 * @param previousMessage
+	 *            the previous {@link NfcMessage} sent or received
+	 * @return true if the sequence number is by one larger than the previous,
+	 *         false otherwise
+	 */
+	public boolean check(NfcMessage previousMessage) {
+		final int check;
+		if (previousMessage == null) {
+			check = -1;
+		} else {
+			check = previousMessage.sequenceNumber;
+		}
+		return sequenceNumber == (check + 1) % 255;
+	}
+	
+	/**
+	 * Returns true, if the sequence number of this message is equals to the
+	 * sequence number of the previous message. If the previous message is null,
+	 * false is returned.
+	 * 
+	 * @param previousMessage
+	 *            the last {@link NfcMessage} sent or received
+	 */
+	public boolean repeatLast(NfcMessage previousMessage) {
+		if (previousMessage == null) {
+			return false;
+		}
+		return sequenceNumber == previousMessage.sequenceNumber;
+	}
+
+	/**
+	 * Returns true if this message has more fragments which need to be
+	 * reassembled after receiving. (Returns if the given flag is set).
+	 */
+	public boolean hasMoreFragments() {
+		return (header & HAS_MORE_FRAGMENTS) != 0;
+	}
+
+	private NfcMessage hasMoreFragments(boolean hasMoreFragments) {
+		if (hasMoreFragments) {
+			header = header | HAS_MORE_FRAGMENTS;
+		} else {
+			header = header & ~HAS_MORE_FRAGMENTS;
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the has more fragments flag of this message and returns it.
+	 */
+	public NfcMessage setMoreFragments() {
+		hasMoreFragments(true);
+		return this;
+	}
+
+	/**
+	 * Sets the total length of the fragmented payload and returns this
+	 * message. This is set on the first fragment, so that the counterpart can
+	 * allocate the reassembly buffer at once. Has only an effect with version
+	 * 1.
+	 * 
+	 * @param lengthHint
+	 *            the total length of all fragments
+	 */
+	public NfcMessage lengthHint(int lengthHint) {
+		this.lengthHint = lengthHint;
+		extension = extension | EXT_LENGTH_HINT;
+		return this;
+	}
+
+	/**
+	 * Returns true if this message contains the total length of the fragmented
+	 * payload.
+	 */
+	public boolean hasLengthHint() {
+		return version() == 1 && (extension & EXT_LENGTH_HINT) != 0;
+	}
+
+	/**
+	 * Returns the total length of the fragmented payload or -1, if not set.
+	 */
+	public int lengthHint() {
+		return hasLengthHint() ? lengthHint : -1;
+	}
+
+	/**
+	 * Sets the id of the request and returns this message. This is set on the
+	 * first fragment, so that the counterpart recognizes a request which it
+	 * has already answered. Has only an effect with version 1.
+	 * 
+	 * @param messageId
+	 *            the id of the request, not 0
+	 */
+	public NfcMessage messageId(long messageId) {
+		this.messageId = messageId;
+		extension = extension | EXT_MESSAGE_ID;
+		return this;
+	}
+
+	/**
+	 * Returns true if this message contains the id of the request.
+	 */
+	public boolean hasMessageId() {
+		return version() == 1 && (extension & EXT_MESSAGE_ID) != 0;
+	}
+
+	/**
+	 * Returns the id of the request or 0, if not set.
+	 */
+	public long messageId() {
+		return hasMessageId() ? messageId : 0;
+	}
+
+	/**
+	 * Sets the logical channel of this message and returns it. Channel 0 is
+	 * the default channel. Has only an effect with version 1.
+	 * 
+	 * @param channel
+	 *            the channel, between 0 and {@link #MAX_CHANNELS} - 1
+	 * @throws IllegalArgumentException
+	 *             if the channel is out of range
+	 */
+	public NfcMessage channel(int channel) throws IllegalArgumentException {
+		if (channel < 0 || channel >= MAX_CHANNELS) {
+			throw new IllegalArgumentException("invalid channel " + channel);
+		}
+		this.channel = channel;
+		if (channel == 0) {
+			extension = extension & ~EXT_CHANNEL;
+		} else {
+			extension = extension | EXT_CHANNEL;
+		}
+		return this;
+	}
+
+	/**
+	 * Returns true if this message belongs to a channel other than the
+	 * default channel.
+	 */
+	public boolean hasChannel() {
+		return version() == 1 && (extension & EXT_CHANNEL) != 0;
+	}
+
+	/**
+	 * Returns the logical channel of this message, 0 for the default channel.
+	 * Received messages may contain a channel beyond {@link #MAX_CHANNELS}.
+	 */
+	public int channel() {
+		return hasChannel() ? channel : 0;
+	}
+
+	/**
+	 * Sets the checksum flag of this message and returns it. The CRC-16 is
+	 * appended when serializing the message. Has only an effect with version
+	 * 1.
+	 */
+	public NfcMessage checksum() {
+		extension = extension | EXT_CHECKSUM;
+		return this;
+	}
+
+	/**
+	 * Returns true if this message is protected by a checksum.
+	 */
+	public boolean hasChecksum() {
+		return version() == 1 && (extension & EXT_CHECKSUM) != 0;
+	}
+
+	/**
+	 * Returns true if this message has been received with a checksum which
+	 * does not match. The content of a corrupt message must not be used,
+	 * except for requesting a retransmission.
+	 */
+	public boolean isCorrupt() {
+		return corrupt;
+	}
+
+	/**
+	 * Returns true if the type of this message is error.
+	 */
+	public boolean isError() {
+		return type() == Type.ERROR;
+	}
+
+	/**
+	 * Returns true if this message is a request (i.e., if the request flag of
+	 * this message is set).
+	 */
+	public boolean isRequest() {
+		return (header & REQUEST) != 0;
+	}
+
+	private NfcMessage request(boolean request) {
+		if (request) {
+			header = header | REQUEST;
+		} else {
+			header = header & ~REQUEST;
+		}
+		return this;
+	}
+	
+	/**
+	 * Sets the request flag of this message and returns it.
+	 */
+	public NfcMessage request() {
+		request(true);
+		return this;
+	}
+	
+	/**
+	 * Returns true if this message is a response (i.e., if the request lag of
+	 * this message is not set).
+	 */
+	public boolean isResponse() {
+		return !isRequest();
+	}
+
+	/**
+	 * Sets this message as a response (i.e., unsets the request flag).
+	 */
+	public NfcMessage response() {
+		request(false);
+		return this;
+	}
+
+	/**
+	 * Returns true, if this is a resume message (i.e., the resume flag is set).
+	 */
+	public boolean isResume() {
+		return (header & RESUME) != 0;
+	}
+
+	/**
+	 * Sets the resume flag of this message to the given value and returns it.
+	 * 
+	 * @param resume
+	 *            true or false
+	 */
+	public NfcMessage resume(boolean resume) {
+		if (resume) {
+			header = header | RESUME;
+		} else {
+			header = header & ~RESUME;
+		}
+		return this;
+	}
+	
+	/**
+	 * Sets the resume flag of this message and returns it.
+	 */
+	public NfcMessage resume() {
+		resume(true);
+		return this;
+	}
+
+	/**
+	 * Piggybacks the given USER_ID message on this SELECT AID message and
+	 * returns it. This allows to complete the handshake within one round-trip,
+	 * if the counterpart supports it. Otherwise, the USER_ID message is ignored
+	 * by the counterpart and has to be sent separately.
+	 * 
+	 * @param handshake
+	 *            the USER_ID message to append to the SELECT AID
+	 */
+	public NfcMessage handshake(NfcMessage handshake) {
+		this.handshake = handshake;
+		return this;
+	}
+
+	/**
+	 * Returns the USER_ID message which has been piggybacked on this SELECT AID
+	 * message or null, if the counterpart used the two-step handshake.
+	 */
+	public NfcMessage handshake() {
+		return handshake;
+	}
+
+	/**
+	 * Piggybacks the given message on this SELECT AID message and returns it.
+	 * This is used to resume a session with a session ticket: the counterpart
+	 * processes the message right away and returns the response to it instead
+	 * of a handshake response.
+	 * 
+	 * @param resumeFrame
+	 *            the message to resume the session with
+	 */
+	public NfcMessage resumeFrame(NfcMessage resumeFrame) {
+		this.resumeFrame = resumeFrame;
+		return this;
+	}
+
+	/**
+	 * Returns the message which has been piggybacked on this SELECT AID message
+	 * in order to resume a session or null, if there is none.
+	 */
+	public NfcMessage resumeFrame() {
+		return resumeFrame;
+	}
+
+	/**
+	 * Sets the AID to select with this SELECT AID message and returns it. By
+	 * default, {@link #AID_MBPS} is selected.
+	 * 
+	 * @param aid
+	 *            the AID, 5 to 16 bytes as defined in ISO/IEC 7816-4
+	 * @throws IllegalArgumentException
+	 *             if the AID is too short or too long
+	 */
+	public NfcMessage aid(byte[] aid) throws IllegalArgumentException {
+		if (aid == null || aid.length < MIN_AID_LENGTH || aid.length > MAX_AID_LENGTH) {
+			throw new IllegalArgumentException("invalid AID");
+		}
+		this.aid = aid;
+		return this;
+	}
+
+	/**
+	 * Returns the AID selected by this SELECT AID message.
+	 */
+	public byte[] aid() {
+		return aid;
+	}
+
+	/**
+	 * Returns the AID of the given SELECT AID APDU without parsing the rest of
+	 * it, or null if the APDU is not a SELECT AID.
+	 * 
+	 * @param apdu
+	 *            the APDU as received from the Android OS
+	 */
+	public static byte[] selectedAid(byte[] apdu) {
+		if (apdu.length <= AID_OFFSET || apdu[0] != CLA_INS_P1_P2[0] || apdu[1] != CLA_INS_P1_P2[1]) {
+			return null;
+		}
+		final int end = AID_OFFSET + (apdu[LC_OFFSET] & 0xFF);
+		if (end > apdu.length) {
+			return null;
+		}
+		return Arrays.copyOfRange(apdu, AID_OFFSET, end);
+	}
+
+	/**
+	 * Returns true if the type of this message is read binary.
+	 */
+	public boolean isReadBinary() {
+		return type() == Type.READ_BINARY;
+	}
+
+	/**
+	 * Returns true if the type of this message is aid selected.
+	 */
+	public boolean isSelectAidApdu() {
+		// does not matter if request or response
+		return type() == Type.AID;
+	}
+
+	/**
+	 * Returns the bytes of this message (i.e., serializes it).
+	 */
+	public byte[] bytes() {
+		if (isSelectAidApdu() && isRequest()) {
+			final byte[] select = aid == AID_MBPS ? CLA_INS_P1_P2_AID_MBPS : selectAidApdu(aid);
+			if (handshake == null) {
+				return select;
+			}
+			final byte[] handshakeBytes = handshake.bytes();
+			final byte[] frameBytes = resumeFrame == null ? new byte[0] : resumeFrame.bytes();
+			final int offset = select.length;
+			byte[] output = new byte[offset + 1 + handshakeBytes.length + frameBytes.length];
+			System.arraycopy(select, 0, output, 0, offset);
+			output[offset] = (byte) handshakeBytes.length;
+			System.arraycopy(handshakeBytes, 0, output, offset + 1, handshakeBytes.length);
+			System.arraycopy(frameBytes, 0, output, offset + 1 + handshakeBytes.length, frameBytes.length);
+			return output;
+		} else if (isReadBinary()) {
+			return new byte[] { 0x00 };
+		}
+
+		final int len = payload.length;
+		final int headerLength = headerLength();
+		final int checksumLength = hasChecksum() ? CHECKSUM_LENGTH : 0;
+		byte[] output = new byte[headerLength + len + checksumLength];
+		output[0] = (byte) header;
+		if (version() == 1) {
+			output[1] = (byte) extension;
+			output[2] = (byte) sequenceNumber;
+			int offset = HEADER_LENGTH_V1;
+			if (hasChannel()) {
+				output[offset++] = (byte) channel;
+			}
+			if (hasLengthHint()) {
+				offset = Utils.writeVarInt(lengthHint, output, offset);
+			}
+			if (hasMessageId()) {
+				System.arraycopy(Utils.longToByteArray(messageId), 0, output, offset, MESSAGE_ID_LENGTH);
+			}
+		} else {
+			output[1] = (byte) sequenceNumber;
+		}
+		System.arraycopy(payload, 0, output, headerLength, len);
+		if (checksumLength > 0) {
+			final int end = headerLength + len;
+			final int crc = Utils.crc16(output, 0, end);
+			output[end] = (byte) (crc >>> 8);
+			output[end + 1] = (byte) crc;
+		}
+		return output;
+	}
+
+	private boolean isEmpty() {
+		return header == 0 && extension == 0 && sequenceNumber == 0 && payload.length == 0;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (!(o instanceof NfcMessage)) {
+			return false;
+		}
+		NfcMessage m = (NfcMessage) o;
+		return m.header == header && m.extension == extension && m.sequenceNumber == sequenceNumber && m.channel == channel && m.lengthHint == lengthHint
+		        && m.messageId == messageId && Arrays.equals(m.payload, payload);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("NfcMsg: ");
+		if (isEmpty()) {
+			sb.append("empty");
+		} else {
+			sb.append("type: ").append(type().toString());
+			sb.append(",v:").append(version());
+			sb.append("/").append(sequenceNumber);
+			if (hasChannel()) {
+				sb.append(",ch:").append(channel);
+			}
+			if (hasMessageId()) {
+				sb.append(",id:").append(Long.toHexString(messageId));
+			}
+			sb.append(",len:").append(payload.length);
+			sb.append(",res:").append(isResume());
+			sb.append(",req:").append(isRequest());
+		}
+		return sb.toString();
+	}
+	
+}
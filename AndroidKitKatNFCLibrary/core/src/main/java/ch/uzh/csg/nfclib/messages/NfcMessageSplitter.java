@@ -0,0 +1,405 @@
+package ch.uzh.csg.nfclib.messages;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ch.uzh.csg.nfclib.messages.NfcMessage.Type;
+import ch.uzh.csg.nfclib.utils.Utils;
+
+
+/**
+ * This is responsible for byte array fragmentation into {@link NfcMessage}s in
+ * order to not exceed the maximum allowed message length by the underlying NFC
+ * technology.
+ * 
+ * This class also handles the reassembly of incoming {@link NfcMessage}s. The
+ * reassembly stops as soon as a message exceeds the maximum message length
+ * (announced by the length hint of the first fragment, or once the fragments
+ * add up to more). Messages above the spill threshold are reassembled in a
+ * memory-mapped temporary file instead of the heap.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public class NfcMessageSplitter {
+	
+	private int maxTransceiveLength = Integer.MAX_VALUE;
+	private int payloadLength = Integer.MAX_VALUE;
+	private int version = 0;
+	private boolean lengthHint = false;
+	private boolean checksum = false;
+	private boolean messageIds = false;
+	private int channel = 0;
+	// carried by the first fragment, 0 if none
+	private long messageId = 0;
+	
+	private byte[] data = null;
+	private int dataLength = 0;
+	
+	// 0 if unlimited
+	private int maxMessageLength = 0;
+	// null if messages are never spilled to disk
+	private File spillDirectory = null;
+	private int spillThreshold = Integer.MAX_VALUE;
+	// not null while a message is reassembled on disk
+	private File spillFile = null;
+	private FileChannel spillChannel = null;
+	private MappedByteBuffer spilled = null;
+	
+	/**
+	 * Returns a new NfcMessageSplitter to handle the fragmentation and
+	 * reassembly of NfcMessages.
+	 * 
+	 * @param maxTransceiveLength
+	 *            the maximum number of bytes which can be send at once by the
+	 *            underlying NFC technology
+	 */
+	public NfcMessageSplitter maxTransceiveLength(int maxTransceiveLength) {
+		this.maxTransceiveLength = maxTransceiveLength;
+		updatePayloadLength();
+		return this;
+	}
+	
+	/**
+	 * Returns the maximum number of bytes of a fragment.
+	 */
+	public int maxTransceiveLength() {
+		return maxTransceiveLength;
+	}
+	
+	/**
+	 * Sets the capabilities negotiated during the handshake (see
+	 * {@link Handshake}) and returns this NfcMessageSplitter. The fragments
+	 * are created with the extended header, the length hint, and the message
+	 * id if the capabilities allow to do so.
+	 * 
+	 * @param capabilities
+	 *            the negotiated capabilities
+	 */
+	public NfcMessageSplitter capabilities(int capabilities) {
+		version = (capabilities & Handshake.CAPABILITY_EXTENDED_HEADER) != 0 ? 1 : 0;
+		lengthHint = version == 1 && (capabilities & Handshake.CAPABILITY_LENGTH_HINT) != 0;
+		checksum = version == 1 && (capabilities & Handshake.CAPABILITY_CHECKSUM) != 0;
+		messageIds = version == 1 && (capabilities & Handshake.CAPABILITY_MESSAGE_ID) != 0;
+		updatePayloadLength();
+		return this;
+	}
+	
+	/**
+	 * Sets the logical channel of the fragments and returns this
+	 * NfcMessageSplitter. Channels other than 0 require the extended header.
+	 * 
+	 * @param channel
+	 *            the channel, between 0 and {@link NfcMessage#MAX_CHANNELS} - 1
+	 */
+	public NfcMessageSplitter channel(int channel) {
+		this.channel = channel;
+		updatePayloadLength();
+		return this;
+	}
+	
+	/**
+	 * Sets the id carried by the first fragment of the following messages and
+	 * returns this NfcMessageSplitter. The id is only sent if the
+	 * capabilities allow to do so.
+	 * 
+	 * @param messageId
+	 *            the id of the request, 0 for none
+	 */
+	public NfcMessageSplitter messageId(long messageId) {
+		this.messageId = messageId;
+		return this;
+	}
+	
+	/**
+	 * Sets the length of the largest message which is reassembled and returns
+	 * this NfcMessageSplitter.
+	 * 
+	 * @param maxMessageLength
+	 *            the maximum length in bytes, 0 for no limit
+	 */
+	public NfcMessageSplitter maxMessageLength(int maxMessageLength) {
+		this.maxMessageLength = maxMessageLength;
+		return this;
+	}
+	
+	/**
+	 * Reassembles messages longer than the threshold in a memory-mapped
+	 * temporary file in the given directory (e.g., the cache directory of the
+	 * app) and returns this NfcMessageSplitter. The file is deleted on
+	 * clear().
+	 * 
+	 * @param directory
+	 *            the directory for the temporary files, null to keep all
+	 *            messages on the heap
+	 * @param threshold
+	 *            the length in bytes above which a message is spilled
+	 */
+	public NfcMessageSplitter spill(File directory, int threshold) {
+		this.spillDirectory = directory;
+		this.spillThreshold = directory == null ? Integer.MAX_VALUE : threshold;
+		return this;
+	}
+	
+	private void updatePayloadLength() {
+		int headerLength = version == 1 ? NfcMessage.HEADER_LENGTH_V1 : NfcMessage.HEADER_LENGTH;
+		if (version == 1 && channel != 0) {
+			headerLength++;
+		}
+		payloadLength = maxTransceiveLength - headerLength - (checksum ? NfcMessage.CHECKSUM_LENGTH : 0);
+	}
+	
+	/**
+	 * Fragments the payload into a number of NfcMessages so that no NfcMessage
+	 * exceeds the maxTransceiveLength. If no fragmentation is needed (because
+	 * the payload does not reach the threshold), then a list containing only
+	 * one NfcMessage is returned.
+	 * 
+	 * The sequence number of the NfcMessages is not set here (all messages in
+	 * the list have the sequence number 0)! It must be set appropriately
+	 * elsewhere.
+	 * 
+	 * @param payload
+	 *            the whole message or byte array to be send by NFC
+	 * @return an ArrayList of NfcMessages containing the fragmented payload
+	 */
+	public ArrayList<NfcMessage> getFragments(byte[] payload) {
+		final int len = payload.length;
+		/*
+		 * Returns the number of fragments the whole message needs to be split
+		 * into (taking into account protocol headers etc.). The length hint
+		 * may add one more.
+		 */
+		final int fragments = (len + payloadLength - 1) / payloadLength;
+		ArrayList<NfcMessage> list = new ArrayList<NfcMessage>(fragments + 1);
+
+		int start = 0;
+		while (start < len) {
+			final int end = fragmentEnd(start, len);
+			list.add(fragment(payload, start, end, len));
+			start = end;
+		}
+
+		return list;
+	}
+
+	/*
+	 * Returns the end of the fragment which starts at the given offset of a
+	 * payload of the given length.
+	 */
+	int fragmentEnd(int start, int len) {
+		int capacity = payloadLength;
+		// the length hint is only worth it if the payload is fragmented
+		if (start == 0 && lengthHint && len > payloadLength) {
+			capacity -= Utils.varIntLength(len);
+		}
+		if (start == 0 && messageIds && messageId != 0) {
+			capacity -= NfcMessage.MESSAGE_ID_LENGTH;
+		}
+		return (int) Math.min(len, (long) start + capacity);
+	}
+
+	/**
+	 * Seals the message with the secure channel and fragments it, see
+	 * {@link #getFragments(byte[])}. A message which fits into one fragment
+	 * is sealed right into the payload of this fragment.
+	 * 
+	 * @param secureChannel
+	 *            the secure channel of this session
+	 * @param plaintext
+	 *            the whole message to be send by NFC
+	 * @return an ArrayList of NfcMessages containing the fragmented sealed
+	 *         message
+	 * @throws GeneralSecurityException
+	 *             if the message cannot be encrypted
+	 */
+	public ArrayList<NfcMessage> getFragments(SecureChannel secureChannel, byte[] plaintext) throws GeneralSecurityException {
+		final int len = plaintext.length + SecureChannel.TAG_LENGTH;
+		if (fragmentEnd(0, len) < len) {
+			// each fragment owns its payload, the cipher emits whole blocks
+			return getFragments(secureChannel.seal(channel, plaintext));
+		}
+		final byte[] payload = new byte[len];
+		secureChannel.seal(channel, plaintext, payload, 0);
+		ArrayList<NfcMessage> list = new ArrayList<NfcMessage>(1);
+		list.add(message(payload, 0, len, len));
+		return list;
+	}
+
+	/*
+	 * Creates the fragment with the given range of the payload, the range
+	 * has to be obtained from fragmentEnd(int, int).
+	 */
+	NfcMessage fragment(byte[] payload, int start, int end, int len) {
+		return message(Arrays.copyOfRange(payload, start, end), start, end, len);
+	}
+
+	private NfcMessage message(byte[] temp, int start, int end, int len) {
+		NfcMessage nfcMessage = new NfcMessage(Type.DEFAULT).version(version).payload(temp);
+		if (start == 0 && lengthHint && len > payloadLength) {
+			nfcMessage.lengthHint(len);
+		}
+		if (start == 0 && messageIds && messageId != 0) {
+			nfcMessage.messageId(messageId);
+		}
+		if (checksum) {
+			nfcMessage.checksum();
+		}
+		if (channel != 0) {
+			nfcMessage.channel(channel);
+		}
+		if (end < len) {
+			nfcMessage.setMoreFragments();
+		}
+		return nfcMessage;
+	}
+	
+	/**
+	 * Handles an incoming NFC message. If this is not the first NFC message,
+	 * the payload is appended to the temporal internal buffer.
+	 * 
+	 * If the first message contains a length hint, the buffer is allocated
+	 * at once. Otherwise, the buffer grows as needed.
+	 * 
+	 * @param nfcMessage
+	 *            the incoming NFC message
+	 * @return false if the message exceeds the maximum message length or the
+	 *         temporary file could not be written, the buffer is cleared in
+	 *         this case
+	 */
+	public boolean reassemble(NfcMessage nfcMessage) {
+		final byte[] payload = nfcMessage.payload();
+		final int length = dataLength + payload.length;
+		final int expected = dataLength == 0 && nfcMessage.hasLengthHint() ? Math.max(nfcMessage.lengthHint(), length) : length;
+		if (maxMessageLength > 0 && (expected > maxMessageLength || length < 0)) {
+			clear();
+			return false;
+		}
+		
+		if (spilled != null || expected > spillThreshold) {
+			try {
+				spill(payload, expected);
+			} catch (IOException e) {
+				clear();
+				return false;
+			}
+		} else if (data == null || dataLength == 0) {
+			if (expected > payload.length) {
+				data = new byte[expected];
+				System.arraycopy(payload, 0, data, 0, payload.length);
+			} else {
+				data = payload;
+			}
+		} else {
+			if (length > data.length) {
+				// grow at least by factor 2 to avoid copying for every fragment
+				data = Arrays.copyOf(data, Math.max(length, data.length * 2));
+			}
+			System.arraycopy(payload, 0, data, dataLength, payload.length);
+		}
+		dataLength = length;
+		return true;
+	}
+	
+	/*
+	 * Appends the payload to the mapped file. The data reassembled on the
+	 * heap so far is moved to the file first.
+	 */
+	private void spill(byte[] payload, int expected) throws IOException {
+		if (spilled == null) {
+			spillFile = File.createTempFile("nfclib", ".part", spillDirectory);
+			spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+			map(expected);
+			if (dataLength > 0) {
+				spilled.put(data, 0, dataLength);
+			}
+			data = null;
+		} else if (spilled.position() + payload.length > spilled.capacity()) {
+			// the file grows, the bytes written so far are kept
+			map(Math.max(spilled.position() + payload.length, spilled.capacity() * 2));
+		}
+		spilled.put(payload);
+	}
+	
+	private void map(int size) throws IOException {
+		if (maxMessageLength > 0) {
+			size = Math.min(size, maxMessageLength);
+		}
+		final int position = spilled == null ? 0 : spilled.position();
+		spilled = spillChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		spilled.position(position);
+	}
+	
+	/**
+	 * Returns true if the message currently reassembled is kept in a
+	 * temporary file.
+	 */
+	public boolean isSpilled() {
+		return spilled != null;
+	}
+	
+	/**
+	 * Clears the internal buffer and deletes the temporary file (if any).
+	 */
+	public void clear() {
+		this.data = null;
+		this.dataLength = 0;
+		if (spillChannel != null) {
+			try {
+				spillChannel.close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			spillFile.delete();
+			spillChannel = null;
+			spillFile = null;
+			spilled = null;
+		}
+	}
+	
+	/**
+	 * Returns the buffer, which is the sum of the concatenated NFC messages.
+	 * If the message has been spilled, it is read from the temporary file.
+	 */
+	public byte[] data() {
+		if (spilled != null) {
+			final byte[] retVal = new byte[dataLength];
+			final ByteBuffer view = spilled.duplicate();
+			view.flip();
+			view.get(retVal);
+			return retVal;
+		}
+		if (data != null && dataLength != data.length) {
+			data = Arrays.copyOf(data, dataLength);
+		}
+		return data;
+	}
+	
+	/**
+	 * Returns the decrypted buffer, which is the sum of the concatenated NFC
+	 * messages. The buffer is decrypted directly without trimming it first,
+	 * or right from the temporary file if the message has been spilled.
+	 * 
+	 * @param secureChannel
+	 *            the secure channel of this session
+	 * @throws GeneralSecurityException
+	 *             if the buffer cannot be decrypted or authenticated
+	 */
+	public byte[] data(SecureChannel secureChannel) throws GeneralSecurityException {
+		if (spilled != null) {
+			final ByteBuffer view = spilled.duplicate();
+			view.flip();
+			return secureChannel.open(channel, view);
+		}
+		return secureChannel.open(channel, data, 0, dataLength);
+	}
+	
+}
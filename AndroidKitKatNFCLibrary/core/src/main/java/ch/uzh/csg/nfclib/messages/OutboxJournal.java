@@ -0,0 +1,278 @@
+package ch.uzh.csg.nfclib.messages;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import ch.uzh.csg.nfclib.utils.Config;
+import ch.uzh.csg.nfclib.utils.Log;
+
+/**
+ * This keeps the messages waiting to be sent to a counterpart in an
+ * append-only journal on disk, so they survive a dropped connection and a
+ * restart of the app. Every message is recorded with the user id of the
+ * counterpart, once it has been sent, a removal record is appended. When the
+ * journal is opened, it is replayed and all messages without removal record
+ * are pending again.
+ *
+ * The journal is a memory-mapped file, every record is forced to disk before
+ * the call returns. A record consists of the kind, the id, the user id of the
+ * counterpart, the length and the message, followed by a CRC32. A torn record
+ * at the end (e.g., the app has been killed while writing) is discarded. If
+ * the file is full, the pending messages are written to a new file, which
+ * replaces the old one. The file grows if they do not fit either.
+ *
+ * The pending messages are also kept on the heap. It is thread-safe.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class OutboxJournal {
+
+	public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+	private static final byte END = 0;
+	private static final byte APPEND = 1;
+	private static final byte REMOVE = 2;
+	// kind, id, user id, length
+	private static final int HEADER_LENGTH = 1 + 8 + 8 + 4;
+	private static final int CRC_LENGTH = 4;
+	private static final String TAG = "ch.uzh.csg.nfclib.messages.OutboxJournal";
+
+	/**
+	 * A message waiting to be sent.
+	 */
+	public static class Entry {
+		private final long id;
+		private final long peer;
+		private final byte[] payload;
+
+		private Entry(long id, long peer, byte[] payload) {
+			this.id = id;
+			this.peer = peer;
+			this.payload = payload;
+		}
+
+		/**
+		 * Returns the id to remove this message once it has been sent.
+		 */
+		public long id() {
+			return id;
+		}
+
+		/**
+		 * Returns the user id of the counterpart.
+		 */
+		public long peer() {
+			return peer;
+		}
+
+		/**
+		 * Returns the message.
+		 */
+		public byte[] payload() {
+			return payload;
+		}
+	}
+
+	private final File file;
+	private final CRC32 crc = new CRC32();
+	// pending messages in the order they have been appended
+	private final LinkedHashMap<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+
+	private int capacity;
+	private MappedByteBuffer buffer;
+	private long nextId = 1;
+
+	/**
+	 * Opens the journal with the default capacity, see
+	 * {@link #OutboxJournal(File, int)}.
+	 */
+	public OutboxJournal(File file) throws IOException {
+		this(file, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Opens the journal and replays it. The file is created if it does not
+	 * exist.
+	 *
+	 * @param file
+	 *            the journal, e.g., in the files directory of the app
+	 * @param capacity
+	 *            the initial size of the file in bytes
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 */
+	public OutboxJournal(File file, int capacity) throws IOException {
+		this.file = file;
+		this.capacity = (int) Math.max(capacity, file.length());
+		this.buffer = map(file, this.capacity);
+		replay();
+	}
+
+	/**
+	 * Appends a message.
+	 *
+	 * @param peer
+	 *            the user id of the counterpart
+	 * @param payload
+	 *            the message to send
+	 * @return the id to remove the message once it has been sent
+	 * @throws IOException
+	 *             if the journal cannot be written
+	 */
+	public synchronized long append(long peer, byte[] payload) throws IOException {
+		final long id = nextId++;
+		write(APPEND, id, peer, payload);
+		pending.put(id, new Entry(id, peer, payload));
+		return id;
+	}
+
+	/**
+	 * Removes a message which has been sent. Unknown ids are ignored.
+	 *
+	 * @param id
+	 *            the id returned by append
+	 * @throws IOException
+	 *             if the journal cannot be written
+	 */
+	public synchronized void remove(long id) throws IOException {
+		if (pending.remove(id) == null) {
+			return;
+		}
+		write(REMOVE, id, 0, new byte[0]);
+	}
+
+	/**
+	 * Returns the pending messages to the given counterpart, in the order
+	 * they have been appended.
+	 *
+	 * @param peer
+	 *            the user id of the counterpart
+	 */
+	public synchronized List<Entry> pending(long peer) {
+		final List<Entry> entries = new ArrayList<Entry>();
+		for (Entry entry : pending.values()) {
+			if (entry.peer == peer) {
+				entries.add(entry);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns the number of pending messages to all counterparts.
+	 */
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	private void write(byte kind, long id, long peer, byte[] payload) throws IOException {
+		final int length = HEADER_LENGTH + payload.length + CRC_LENGTH;
+		if (buffer.remaining() < length + 1) {
+			compact(length + 1);
+		}
+		final int start = buffer.position();
+		buffer.put(kind).putLong(id).putLong(peer).putInt(payload.length).put(payload);
+		buffer.putInt((int) checksum(start, buffer.position() - start));
+		final int end = buffer.position();
+		// marks the end, in case a longer, torn record follows
+		buffer.put(END);
+		buffer.position(end);
+		buffer.force();
+	}
+
+	/*
+	 * Reads all valid records and positions the buffer after the last one.
+	 */
+	private void replay() {
+		int position = 0;
+		while (position + HEADER_LENGTH + CRC_LENGTH <= capacity) {
+			buffer.position(position);
+			final byte kind = buffer.get();
+			if (kind != APPEND && kind != REMOVE) {
+				break;
+			}
+			final long id = buffer.getLong();
+			final long peer = buffer.getLong();
+			final int length = buffer.getInt();
+			if (length < 0 || length > capacity - position - HEADER_LENGTH - CRC_LENGTH) {
+				break;
+			}
+			final byte[] payload = new byte[length];
+			buffer.get(payload);
+			if (buffer.getInt() != (int) checksum(position, HEADER_LENGTH + length)) {
+				if (Config.DEBUG)
+					Log.d(TAG, "discarding torn record at " + position);
+
+				break;
+			}
+			if (kind == APPEND) {
+				pending.put(id, new Entry(id, peer, payload));
+			} else {
+				pending.remove(id);
+			}
+			nextId = Math.max(nextId, id + 1);
+			position = buffer.position();
+		}
+		buffer.position(position);
+	}
+
+	/*
+	 * Writes the pending messages to a new file, which then replaces the
+	 * current one.
+	 */
+	private void compact(int needed) throws IOException {
+		int live = 0;
+		for (Entry entry : pending.values()) {
+			live += HEADER_LENGTH + entry.payload.length + CRC_LENGTH;
+		}
+		while (live + needed > capacity) {
+			capacity *= 2;
+		}
+		final File tmp = new File(file.getPath() + ".tmp");
+		tmp.delete();
+		buffer = map(tmp, capacity);
+		for (Entry entry : pending.values()) {
+			final int start = buffer.position();
+			buffer.put(APPEND).putLong(entry.id).putLong(entry.peer).putInt(entry.payload.length).put(entry.payload);
+			buffer.putInt((int) checksum(start, buffer.position() - start));
+		}
+		buffer.force();
+		if (!tmp.renameTo(file)) {
+			throw new IOException("could not replace " + file);
+		}
+
+		if (Config.DEBUG)
+			Log.d(TAG, "compacted journal, " + pending.size() + " pending messages, " + capacity + " bytes");
+	}
+
+	private long checksum(int offset, int length) {
+		final byte[] record = new byte[length];
+		final int position = buffer.position();
+		buffer.position(offset);
+		buffer.get(record);
+		buffer.position(position);
+		crc.reset();
+		crc.update(record);
+		return crc.getValue();
+	}
+
+	private static MappedByteBuffer map(File file, int capacity) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// the mapping stays valid after the file has been closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} finally {
+			raf.close();
+		}
+	}
+
+}
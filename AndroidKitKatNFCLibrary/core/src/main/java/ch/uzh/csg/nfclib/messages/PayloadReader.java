@@ -0,0 +1,250 @@
+package ch.uzh.csg.nfclib.messages;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodes an application payload encoded with a {@link PayloadWriter}. The
+ * reader works directly on the byte array received (i.e., the reassembly
+ * buffer of the NfcMessageSplitter), nothing is copied unless requested:
+ * readBytes() returns a read-only view and readMessage() a reader on the range
+ * of the nested message.
+ * 
+ * Typical use:
+ * 
+ * <pre>
+ * PayloadReader reader = new PayloadReader(bytes);
+ * while (reader.next()) {
+ * 	switch (reader.tag()) {
+ * 	case 1:
+ * 		amount = reader.readLong();
+ * 		break;
+ * 	default:
+ * 		// unknown fields are skipped
+ * 	}
+ * }
+ * </pre>
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public class PayloadReader {
+
+	private final byte[] array;
+	private final int end;
+	private int position;
+
+	private int tag = 0;
+	private int wireType = -1;
+	// the value of the current field has not been read yet
+	private boolean pending = false;
+
+	/**
+	 * Creates a reader on the whole byte array.
+	 */
+	public PayloadReader(byte[] array) {
+		this(array, 0, array.length);
+	}
+
+	/**
+	 * Creates a reader on a range of the byte array.
+	 */
+	public PayloadReader(byte[] array, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > array.length) {
+			throw new IllegalArgumentException("range out of bounds");
+		}
+		this.array = array;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+	/**
+	 * Moves to the next field. The value of the current field is skipped if it
+	 * has not been read.
+	 * 
+	 * @return false if there are no more fields
+	 * @throws IllegalArgumentException
+	 *             if the payload is malformed
+	 */
+	public boolean next() throws IllegalArgumentException {
+		if (pending) {
+			skip();
+		}
+		if (position >= end) {
+			return false;
+		}
+		final int key = (int) varLong();
+		tag = key >>> 3;
+		wireType = key & 0x07;
+		if (tag == 0) {
+			throw new IllegalArgumentException("invalid tag 0");
+		}
+		pending = true;
+		return true;
+	}
+
+	/**
+	 * Returns the tag of the current field.
+	 */
+	public int tag() {
+		return tag;
+	}
+
+	/**
+	 * Returns the wire type of the current field, see {@link PayloadWriter}.
+	 */
+	public int wireType() {
+		return wireType;
+	}
+
+	/**
+	 * Reads the current field as integer.
+	 */
+	public int readInt() throws IllegalArgumentException {
+		final long value = value(PayloadWriter.WIRE_VARINT);
+		if ((value >>> 32) != 0) {
+			throw new IllegalArgumentException("field " + tag + " exceeds an integer");
+		}
+		final int zigzag = (int) value;
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/**
+	 * Reads the current field as long.
+	 */
+	public long readLong() throws IllegalArgumentException {
+		final long zigzag = value(PayloadWriter.WIRE_VARINT);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	/**
+	 * Reads the current field as boolean.
+	 */
+	public boolean readBoolean() throws IllegalArgumentException {
+		return value(PayloadWriter.WIRE_VARINT) != 0;
+	}
+
+	/**
+	 * Reads the current field as fixed 64 bit value.
+	 */
+	public long readFixed64() throws IllegalArgumentException {
+		check(PayloadWriter.WIRE_FIXED64);
+		if (end - position < 8) {
+			throw new IllegalArgumentException("truncated field " + tag);
+		}
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (array[position++] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns a read-only view of the current field, the bytes are not
+	 * copied.
+	 */
+	public ByteBuffer readBytes() throws IllegalArgumentException {
+		final int length = length();
+		final ByteBuffer view = ByteBuffer.wrap(array, position, length).slice().asReadOnlyBuffer();
+		position += length;
+		return view;
+	}
+
+	/**
+	 * Returns a copy of the current field.
+	 */
+	public byte[] readByteArray() throws IllegalArgumentException {
+		final int length = length();
+		final byte[] value = Arrays.copyOfRange(array, position, position + length);
+		position += length;
+		return value;
+	}
+
+	/**
+	 * Reads the current field as UTF-8 encoded string.
+	 */
+	public String readString() throws IllegalArgumentException {
+		final int length = length();
+		final String value = new String(array, position, length, PayloadWriter.UTF8);
+		position += length;
+		return value;
+	}
+
+	/**
+	 * Returns a reader for the nested message in the current field.
+	 */
+	public PayloadReader readMessage() throws IllegalArgumentException {
+		final int length = length();
+		final PayloadReader nested = new PayloadReader(array, position, length);
+		position += length;
+		return nested;
+	}
+
+	/**
+	 * Decodes the nested message in the current field.
+	 */
+	public <T> T readMessage(IPayloadCodec<T> codec) throws IllegalArgumentException {
+		return codec.decode(readMessage());
+	}
+
+	/**
+	 * Skips the value of the current field.
+	 */
+	public void skip() throws IllegalArgumentException {
+		switch (wireType) {
+		case PayloadWriter.WIRE_VARINT:
+			readLong();
+			break;
+		case PayloadWriter.WIRE_FIXED64:
+			readFixed64();
+			break;
+		case PayloadWriter.WIRE_LENGTH_DELIMITED:
+			final int length = length();
+			position += length;
+			break;
+		default:
+			throw new IllegalArgumentException("unknown wire type " + wireType + " of field " + tag);
+		}
+	}
+
+	private void check(int expected) {
+		if (!pending) {
+			throw new IllegalStateException("no field to read, call next() first");
+		}
+		if (wireType != expected) {
+			throw new IllegalArgumentException("field " + tag + " has wire type " + wireType + ", expected " + expected);
+		}
+		pending = false;
+	}
+
+	private long value(int expected) {
+		check(expected);
+		return varLong();
+	}
+
+	private int length() {
+		check(PayloadWriter.WIRE_LENGTH_DELIMITED);
+		final long length = varLong();
+		if (length > end - position) {
+			throw new IllegalArgumentException("truncated field " + tag);
+		}
+		return (int) length;
+	}
+
+	private long varLong() {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position >= end) {
+				throw new IllegalArgumentException("truncated varint");
+			}
+			final byte b = array[position++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("malformed varint");
+	}
+
+}
@@ -0,0 +1,215 @@
+package ch.uzh.csg.nfclib.messages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import ch.uzh.csg.nfclib.utils.Utils;
+
+/**
+ * Encodes an application payload as a sequence of tagged fields, which can be
+ * passed to transceive(byte[]) or returned from an ITransceiveHandler. This is
+ * considerably shorter than Java serialization or JSON, i.e., needs fewer
+ * fragments.
+ * 
+ * Every field starts with a varint key (the tag shifted by 3 bits, the lower 3
+ * bits contain the wire type), followed by the value: integers are encoded as
+ * zigzag varints (small negative numbers stay short), fixed 64 bit values as 8
+ * bytes, byte arrays, strings, and nested messages are prefixed with their
+ * length as varint. The fields are written into one growing buffer, which can
+ * be reused with reset().
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public class PayloadWriter {
+
+	public static final int WIRE_VARINT = 0;
+	public static final int WIRE_FIXED64 = 1;
+	public static final int WIRE_LENGTH_DELIMITED = 2;
+
+	public static final int MAX_TAG = (1 << 28) - 1;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte[] buffer;
+	private int position = 0;
+
+	/**
+	 * Creates a new writer with a small initial buffer.
+	 */
+	public PayloadWriter() {
+		this(64);
+	}
+
+	/**
+	 * Creates a new writer.
+	 * 
+	 * @param capacity
+	 *            the initial size of the buffer, it grows as needed
+	 */
+	public PayloadWriter(int capacity) {
+		buffer = new byte[Math.max(capacity, 16)];
+	}
+
+	/**
+	 * Writes an integer field.
+	 */
+	public PayloadWriter writeInt(int tag, int value) {
+		key(tag, WIRE_VARINT);
+		varInt((value << 1) ^ (value >> 31));
+		return this;
+	}
+
+	/**
+	 * Writes a long field, e.g., an amount.
+	 */
+	public PayloadWriter writeLong(int tag, long value) {
+		key(tag, WIRE_VARINT);
+		varLong((value << 1) ^ (value >> 63));
+		return this;
+	}
+
+	/**
+	 * Writes a boolean field.
+	 */
+	public PayloadWriter writeBoolean(int tag, boolean value) {
+		key(tag, WIRE_VARINT);
+		varInt(value ? 1 : 0);
+		return this;
+	}
+
+	/**
+	 * Writes a long field with 8 bytes, for values which do not get shorter
+	 * as varint, e.g., user ids or hashes.
+	 */
+	public PayloadWriter writeFixed64(int tag, long value) {
+		key(tag, WIRE_FIXED64);
+		ensure(8);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buffer[position++] = (byte) (value >> shift);
+		}
+		return this;
+	}
+
+	/**
+	 * Writes a byte array field.
+	 */
+	public PayloadWriter writeBytes(int tag, byte[] value) {
+		return writeBytes(tag, value, 0, value.length);
+	}
+
+	/**
+	 * Writes a range of a byte array as field.
+	 */
+	public PayloadWriter writeBytes(int tag, byte[] value, int offset, int length) {
+		key(tag, WIRE_LENGTH_DELIMITED);
+		varInt(length);
+		ensure(length);
+		System.arraycopy(value, offset, buffer, position, length);
+		position += length;
+		return this;
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer as field, e.g., a slice of a
+	 * memory-mapped file. The position of the buffer is advanced to its limit.
+	 */
+	public PayloadWriter writeBytes(int tag, ByteBuffer value) {
+		final int length = value.remaining();
+		key(tag, WIRE_LENGTH_DELIMITED);
+		varInt(length);
+		ensure(length);
+		value.get(buffer, position, length);
+		position += length;
+		return this;
+	}
+
+	/**
+	 * Writes a string field, UTF-8 encoded.
+	 */
+	public PayloadWriter writeString(int tag, String value) {
+		return writeBytes(tag, value.getBytes(UTF8));
+	}
+
+	/**
+	 * Writes a nested message as field. The nested fields are written in
+	 * place, the length prefix is moved in front of them afterwards.
+	 * 
+	 * @param tag
+	 *            the tag of the field
+	 * @param value
+	 *            the nested value
+	 * @param codec
+	 *            the codec of the nested value
+	 */
+	public <T> PayloadWriter writeMessage(int tag, T value, IPayloadCodec<T> codec) {
+		key(tag, WIRE_LENGTH_DELIMITED);
+		// most nested messages are shorter than 128 bytes
+		ensure(1);
+		final int start = ++position;
+		codec.encode(value, this);
+		final int length = position - start;
+		final int prefix = Utils.varIntLength(length);
+		if (prefix > 1) {
+			ensure(prefix - 1);
+			System.arraycopy(buffer, start, buffer, start + prefix - 1, length);
+			position += prefix - 1;
+		}
+		Utils.writeVarInt(length, buffer, start - 1);
+		return this;
+	}
+
+	/**
+	 * Returns the number of bytes written.
+	 */
+	public int length() {
+		return position;
+	}
+
+	/**
+	 * Returns a copy of the bytes written.
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, position);
+	}
+
+	/**
+	 * Discards the bytes written and returns this writer, the buffer is kept
+	 * for the next payload.
+	 */
+	public PayloadWriter reset() {
+		position = 0;
+		return this;
+	}
+
+	private void key(int tag, int wireType) {
+		if (tag <= 0 || tag > MAX_TAG) {
+			throw new IllegalArgumentException("tag must be between 1 and " + MAX_TAG + ", was " + tag);
+		}
+		varInt(tag << 3 | wireType);
+	}
+
+	private void varInt(int value) {
+		ensure(5);
+		position = Utils.writeVarInt(value, buffer, position);
+	}
+
+	private void varLong(long value) {
+		ensure(10);
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+
+	private void ensure(int length) {
+		if (position + length > buffer.length) {
+			// grow at least by factor 2 to avoid copying for every field
+			buffer = Arrays.copyOf(buffer, Math.max(position + length, buffer.length * 2));
+		}
+	}
+
+}
@@ -0,0 +1,330 @@
+package ch.uzh.csg.nfclib.messages;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This is the optional secure channel, which encrypts and authenticates whole
+ * messages before they are fragmented by the {@link NfcMessageSplitter}.
+ *
+ * Both parties share a key in advance. During the handshake, each party sends
+ * a random nonce (see {@link Handshake}). The session keys (one per direction)
+ * are derived from the shared key and both nonces, so they are fresh for every
+ * session. Every message is encrypted with AES/GCM, the initialization vector
+ * is the logical channel and a message counter of that channel, which is never
+ * reused with the same session key. Messages of different channels can thus be
+ * opened in a different order than they have been sealed. This adds one tag of
+ * 16 bytes per message.
+ *
+ * The cipher instances are created once and reused for all messages, this
+ * includes the ciphers handed out by {@link #sealer(int)}, one per channel.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class SecureChannel {
+
+	public static final int TAG_LENGTH = 16;
+
+	private static final int KEY_LENGTH = 16;
+	private static final int IV_LENGTH = 12;
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	private static final byte[] LABEL = { 'n', 'f', 'c', 'l', 'i', 'b' };
+	private static final int PROBE_LENGTH = 64;
+	private static final boolean STREAMING = probeStreaming();
+
+	private final byte[] key;
+	private final SecureRandom random = new SecureRandom();
+
+	private final Cipher sealCipher;
+	private final Cipher openCipher;
+	private final byte[] sealIv = new byte[IV_LENGTH];
+	private final byte[] openIv = new byte[IV_LENGTH];
+	private final Cipher[] pipelineCiphers = new Cipher[NfcMessage.MAX_CHANNELS];
+
+	private SecretKeySpec sealKey = null;
+	private SecretKeySpec openKey = null;
+	private final long[] sealCounters = new long[NfcMessage.MAX_CHANNELS];
+	private final long[] openCounters = new long[NfcMessage.MAX_CHANNELS];
+
+	/**
+	 * Creates a new secure channel.
+	 *
+	 * @param key
+	 *            the key shared with the counterpart, at least 16 bytes
+	 * @throws IllegalArgumentException
+	 *             if the key is too short or AES/GCM is not available
+	 */
+	public SecureChannel(byte[] key) throws IllegalArgumentException {
+		if (key == null || key.length < KEY_LENGTH) {
+			throw new IllegalArgumentException("the key must have at least " + KEY_LENGTH + " bytes");
+		}
+		this.key = key.clone();
+		try {
+			sealCipher = Cipher.getInstance(TRANSFORMATION);
+			openCipher = Cipher.getInstance(TRANSFORMATION);
+			for (int i = 0; i < pipelineCiphers.length; i++) {
+				pipelineCiphers[i] = Cipher.getInstance(TRANSFORMATION);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException(TRANSFORMATION + " not available", e);
+		}
+	}
+
+	/**
+	 * Returns a new random nonce to be sent in the handshake. 0 is never
+	 * returned, as it means that no nonce has been sent.
+	 */
+	public long newNonce() {
+		long nonce;
+		do {
+			nonce = random.nextLong();
+		} while (nonce == 0);
+		return nonce;
+	}
+
+	/**
+	 * Derives the session keys from the shared key and the nonces of both
+	 * parties and resets the message counters.
+	 *
+	 * @param initiatorNonce
+	 *            the nonce sent by the {@link ch.uzh.csg.nfclib.NfcInitiator}
+	 * @param responderNonce
+	 *            the nonce sent by the {@link ch.uzh.csg.nfclib.NfcResponder}
+	 * @param initiator
+	 *            true if this is the initiator's side of the channel
+	 * @throws GeneralSecurityException
+	 *             if the keys cannot be derived
+	 */
+	public void init(long initiatorNonce, long responderNonce, boolean initiator) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		mac.update(LABEL);
+		for (int i = 7; i >= 0; i--) {
+			mac.update((byte) (initiatorNonce >>> (i * 8)));
+		}
+		for (int i = 7; i >= 0; i--) {
+			mac.update((byte) (responderNonce >>> (i * 8)));
+		}
+		final byte[] keys = mac.doFinal();
+
+		// the first half is used from the initiator to the responder
+		SecretKeySpec toResponder = new SecretKeySpec(keys, 0, KEY_LENGTH, "AES");
+		SecretKeySpec toInitiator = new SecretKeySpec(keys, KEY_LENGTH, KEY_LENGTH, "AES");
+		sealKey = initiator ? toResponder : toInitiator;
+		openKey = initiator ? toInitiator : toResponder;
+		Arrays.fill(sealCounters, 0);
+		Arrays.fill(openCounters, 0);
+	}
+
+	/**
+	 * Returns true if the session keys have been derived.
+	 */
+	public boolean isInitialized() {
+		return sealKey != null;
+	}
+
+	/**
+	 * Encrypts and authenticates the given message.
+	 *
+	 * @param plaintext
+	 *            the message to send
+	 * @return the ciphertext followed by the tag
+	 * @throws GeneralSecurityException
+	 *             if the message cannot be encrypted
+	 */
+	public byte[] seal(byte[] plaintext) throws GeneralSecurityException {
+		return seal(0, plaintext);
+	}
+
+	/**
+	 * Encrypts and authenticates the given message of the given logical
+	 * channel.
+	 *
+	 * @param channel
+	 *            the channel the message is sent on
+	 * @param plaintext
+	 *            the message to send
+	 * @return the ciphertext followed by the tag
+	 * @throws GeneralSecurityException
+	 *             if the message cannot be encrypted
+	 */
+	public byte[] seal(int channel, byte[] plaintext) throws GeneralSecurityException {
+		final byte[] output = new byte[plaintext.length + TAG_LENGTH];
+		seal(channel, plaintext, output, 0);
+		return output;
+	}
+
+	/**
+	 * Encrypts and authenticates the given message of the given logical
+	 * channel into the given buffer, e.g., the payload of a fragment.
+	 *
+	 * @param channel
+	 *            the channel the message is sent on
+	 * @param plaintext
+	 *            the message to send
+	 * @param output
+	 *            the buffer for the ciphertext followed by the tag, with room
+	 *            for plaintext.length + TAG_LENGTH bytes
+	 * @param offset
+	 *            the start of the sealed message in the buffer
+	 * @throws GeneralSecurityException
+	 *             if the message cannot be encrypted or the buffer is too
+	 *             short
+	 */
+	public synchronized void seal(int channel, byte[] plaintext, byte[] output, int offset) throws GeneralSecurityException {
+		setCounter(sealIv, channel, sealCounters[channel]++);
+		sealCipher.init(Cipher.ENCRYPT_MODE, sealKey, new GCMParameterSpec(TAG_LENGTH * 8, sealIv));
+		sealCipher.doFinal(plaintext, 0, plaintext.length, output, offset);
+	}
+
+	/**
+	 * Returns true if the AES/GCM cipher of this platform emits the
+	 * ciphertext while the plaintext comes in. Some providers (e.g.,
+	 * Conscrypt on Android) buffer the whole message until doFinal(), then a
+	 * {@link FragmentPipeline} cannot send anything before the whole message
+	 * is encrypted and only adds a thread hand-over.
+	 */
+	public static boolean isStreaming() {
+		return STREAMING;
+	}
+
+	/**
+	 * Returns the cipher of the given logical channel, initialized to seal
+	 * the next message of this channel piece by piece, e.g., by a
+	 * {@link FragmentPipeline}. The output is the same as the one of
+	 * seal(int, byte[]). Each channel has its own cipher, which is reused
+	 * for every message of this channel, so only one message per channel can
+	 * be sealed this way at a time. The user has to hold the lock of the
+	 * cipher while using it; if the previous message of this channel is still
+	 * being sealed, this waits until it is done.
+	 *
+	 * @param channel
+	 *            the channel the message is sent on
+	 * @return the initialized cipher, doFinal() appends the tag
+	 * @throws GeneralSecurityException
+	 *             if the cipher cannot be initialized
+	 */
+	public Cipher sealer(int channel) throws GeneralSecurityException {
+		final Cipher cipher = pipelineCiphers[channel];
+		final byte[] iv = new byte[IV_LENGTH];
+		final SecretKeySpec key;
+		synchronized (this) {
+			setCounter(iv, channel, sealCounters[channel]++);
+			key = sealKey;
+		}
+		// a cancelled pipeline may take a moment to stop, the other channels
+		// can seal in the meantime
+		synchronized (cipher) {
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+		}
+		return cipher;
+	}
+
+	/**
+	 * Decrypts and verifies a message sealed by the counterpart.
+	 *
+	 * @param input
+	 *            the buffer which contains the ciphertext followed by the tag
+	 * @param offset
+	 *            the start of the message in the buffer
+	 * @param len
+	 *            the length of the message including the tag
+	 * @return the plaintext
+	 * @throws GeneralSecurityException
+	 *             if the message has been altered, replayed, or is not
+	 *             encrypted with the session key
+	 */
+	public byte[] open(byte[] input, int offset, int len) throws GeneralSecurityException {
+		return open(0, input, offset, len);
+	}
+
+	/**
+	 * Decrypts and verifies a message of the given logical channel sealed by
+	 * the counterpart.
+	 *
+	 * @param channel
+	 *            the channel the message has been received on
+	 * @param input
+	 *            the buffer which contains the ciphertext followed by the tag
+	 * @param offset
+	 *            the start of the message in the buffer
+	 * @param len
+	 *            the length of the message including the tag
+	 * @return the plaintext
+	 * @throws GeneralSecurityException
+	 *             if the message has been altered, replayed, or is not
+	 *             encrypted with the session key
+	 */
+	public synchronized byte[] open(int channel, byte[] input, int offset, int len) throws GeneralSecurityException {
+		if (len < TAG_LENGTH) {
+			throw new GeneralSecurityException("message too short");
+		}
+		setCounter(openIv, channel, openCounters[channel]);
+		openCipher.init(Cipher.DECRYPT_MODE, openKey, new GCMParameterSpec(TAG_LENGTH * 8, openIv));
+		byte[] output = new byte[len - TAG_LENGTH];
+		openCipher.doFinal(input, offset, len, output, 0);
+		// only advance if the tag is valid, the counterpart might repeat it
+		openCounters[channel]++;
+		return output;
+	}
+
+	/*
+	 * Encrypts a few blocks with a throwaway key and checks whether update()
+	 * returns any ciphertext.
+	 */
+	/**
+	 * Decrypts and verifies a message of the given logical channel sealed by
+	 * the counterpart, which is read from the remaining bytes of the buffer,
+	 * e.g., a memory-mapped file.
+	 *
+	 * @param channel
+	 *            the channel the message has been received on
+	 * @param input
+	 *            the ciphertext followed by the tag
+	 * @return the plaintext
+	 * @throws GeneralSecurityException
+	 *             if the message has been altered, replayed, or is not
+	 *             encrypted with the session key
+	 */
+	public synchronized byte[] open(int channel, ByteBuffer input) throws GeneralSecurityException {
+		final int len = input.remaining();
+		if (len < TAG_LENGTH) {
+			throw new GeneralSecurityException("message too short");
+		}
+		setCounter(openIv, channel, openCounters[channel]);
+		openCipher.init(Cipher.DECRYPT_MODE, openKey, new GCMParameterSpec(TAG_LENGTH * 8, openIv));
+		byte[] output = new byte[len - TAG_LENGTH];
+		openCipher.doFinal(input, ByteBuffer.wrap(output));
+		// only advance if the tag is valid, the counterpart might repeat it
+		openCounters[channel]++;
+		return output;
+	}
+
+	private static boolean probeStreaming() {
+		try {
+			final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[KEY_LENGTH], "AES"), new GCMParameterSpec(TAG_LENGTH * 8, new byte[IV_LENGTH]));
+			final byte[] output = cipher.update(new byte[PROBE_LENGTH]);
+			return output != null && output.length > 0;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	private static void setCounter(byte[] iv, int channel, long counter) {
+		iv[0] = (byte) channel;
+		for (int i = 0; i < 8; i++) {
+			iv[IV_LENGTH - 1 - i] = (byte) (counter >>> (i * 8));
+		}
+	}
+
+}
@@ -0,0 +1,284 @@
+package ch.uzh.csg.nfclib.transceiver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ch.uzh.csg.nfclib.NfcInitiator.TagDiscoveredHandler;
+import ch.uzh.csg.nfclib.NfcLibException;
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+import ch.uzh.csg.nfclib.utils.Config;
+import ch.uzh.csg.nfclib.utils.Log;
+
+/**
+ * This transceiver delegates to one of several {@link INfcTransceiver}s (e.g.,
+ * an USB reader and the built-in NFC controller) and switches between them at
+ * runtime, so the NfcInitiator does not have to be created again if a reader
+ * is attached or removed.
+ *
+ * The candidates are given in the order of preference. The first available
+ * candidate which can be turned on is used. A candidate is marked as
+ * (un)available with {@link #available(INfcTransceiver, boolean)}, e.g., if
+ * the USB reader is attached or detached. If the active candidate is turned
+ * off or fails {@link #MAX_FAILURES} writes in a row, the next candidate is
+ * used. A failed candidate is used again once it has been marked as available
+ * again or no other candidate is left.
+ *
+ * The NfcInitiator picks up the frame length of the active candidate with
+ * every new session. A session interrupted by a switch to a candidate with
+ * shorter frames cannot be resumed. The writes are always blocking, also if
+ * a candidate implements {@link IAsyncNfcTransceiver}.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class FailoverNfcTransceiver implements INfcTransceiver {
+
+	private static final String TAG = "ch.uzh.csg.nfclib.transceiver.FailoverNfcTransceiver";
+
+	/**
+	 * The number of failed writes in a row after which the next candidate is
+	 * used. A single failure is usually a counterpart which has been moved
+	 * away.
+	 */
+	public static final int MAX_FAILURES = 3;
+
+	private final List<INfcTransceiver> candidates;
+	private final Set<INfcTransceiver> unavailable = new HashSet<INfcTransceiver>();
+	private final Set<INfcTransceiver> failed = new HashSet<INfcTransceiver>();
+	private final Object lock = new Object();
+
+	private volatile INfcTransceiver active = null;
+	private TagDiscoveredHandler nfcInit = null;
+	private boolean turnedOn = false;
+	private boolean enabled = false;
+	private volatile int timeout = 0;
+	// consecutive failed writes of the active candidate
+	private int failures = 0;
+
+	/**
+	 * Creates a new instance, all candidates are available.
+	 *
+	 * @param candidates
+	 *            the transceivers to use, the preferred one first
+	 * @throws IllegalArgumentException
+	 *             if no candidate is given
+	 */
+	public FailoverNfcTransceiver(INfcTransceiver... candidates) throws IllegalArgumentException {
+		if (candidates.length == 0) {
+			throw new IllegalArgumentException("no transceiver given");
+		}
+		this.candidates = new ArrayList<INfcTransceiver>(Arrays.asList(candidates));
+	}
+
+	/**
+	 * Marks a candidate as (un)available and switches to the preferred
+	 * available candidate, if turned on. This can be called from any thread.
+	 *
+	 * @param candidate
+	 *            one of the candidates
+	 * @param available
+	 *            true if it can be used, false otherwise
+	 */
+	public void available(INfcTransceiver candidate, boolean available) {
+		synchronized (lock) {
+			if (available) {
+				unavailable.remove(candidate);
+				failed.remove(candidate);
+			} else {
+				unavailable.add(candidate);
+			}
+			if (turnedOn) {
+				select();
+			}
+		}
+	}
+
+	/**
+	 * Returns the candidate currently used, or null if none is turned on.
+	 */
+	public INfcTransceiver active() {
+		return active;
+	}
+
+	@Override
+	public void turnOn(TagDiscoveredHandler nfcInit) throws NfcLibException {
+		synchronized (lock) {
+			this.nfcInit = nfcInit;
+			turnedOn = true;
+			if (!select()) {
+				turnedOn = false;
+				throw new NfcLibException("no transceiver could be turned on");
+			}
+		}
+	}
+
+	@Override
+	public void turnOff() {
+		synchronized (lock) {
+			turnedOn = false;
+			enabled = false;
+			if (active != null) {
+				active.turnOff();
+				active = null;
+			}
+		}
+	}
+
+	@Override
+	public void enable() {
+		synchronized (lock) {
+			enabled = true;
+			if (active != null) {
+				active.enable();
+			}
+		}
+	}
+
+	@Override
+	public void disable() {
+		synchronized (lock) {
+			enabled = false;
+			if (active != null) {
+				active.disable();
+			}
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		final INfcTransceiver current = active;
+		return current != null && current.isEnabled();
+	}
+
+	@Override
+	public NfcMessage write(NfcMessage input) throws IOException {
+		INfcTransceiver current = active;
+		if (current != null && !current.isEnabled()) {
+			// e.g., the reader has been detached
+			failover(current);
+			current = active;
+		}
+		if (current == null) {
+			throw new IOException("no transceiver available");
+		}
+		try {
+			final NfcMessage response = current.write(input);
+			synchronized (lock) {
+				failures = 0;
+			}
+			return response;
+		} catch (IOException e) {
+			boolean failover;
+			synchronized (lock) {
+				failover = current == active && ++failures >= MAX_FAILURES;
+			}
+			if (failover) {
+				failover(current);
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public int maxLen() {
+		final INfcTransceiver current = active;
+		return current != null ? current.maxLen() : candidates.get(0).maxLen();
+	}
+
+	@Override
+	public void timeout(int timeout) {
+		this.timeout = timeout;
+		final INfcTransceiver current = active;
+		if (current != null) {
+			current.timeout(timeout);
+		}
+	}
+
+	@Override
+	public void cancel() {
+		final INfcTransceiver current = active;
+		if (current != null) {
+			current.cancel();
+		}
+	}
+
+	private void failover(INfcTransceiver candidate) {
+		synchronized (lock) {
+			if (candidate != active) {
+				// already switched by another thread
+				return;
+			}
+			if (Config.DEBUG)
+				Log.d(TAG, "transceiver failed, switching: " + candidate);
+
+			failed.add(candidate);
+			select();
+		}
+	}
+
+	/*
+	 * Switches to the preferred candidate which is neither unavailable nor
+	 * failed, or to a failed one if no other is left. Returns false if none
+	 * could be turned on. Has to be called with the lock held.
+	 */
+	private boolean select() {
+		final List<INfcTransceiver> order = new ArrayList<INfcTransceiver>(candidates.size());
+		for (INfcTransceiver candidate : candidates) {
+			if (!unavailable.contains(candidate) && !failed.contains(candidate)) {
+				order.add(candidate);
+			}
+		}
+		for (INfcTransceiver candidate : candidates) {
+			if (!unavailable.contains(candidate) && failed.contains(candidate)) {
+				order.add(candidate);
+			}
+		}
+		for (INfcTransceiver candidate : order) {
+			if (candidate == active) {
+				return true;
+			}
+			if (activate(candidate)) {
+				return true;
+			}
+		}
+		if (active != null) {
+			active.turnOff();
+			active = null;
+		}
+		return false;
+	}
+
+	private boolean activate(INfcTransceiver candidate) {
+		final INfcTransceiver previous = active;
+		if (previous != null) {
+			previous.turnOff();
+			active = null;
+		}
+		try {
+			candidate.turnOn(nfcInit);
+		} catch (NfcLibException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "could not turn on transceiver " + candidate, e);
+
+			failed.add(candidate);
+			return false;
+		}
+		candidate.timeout(timeout);
+		if (enabled) {
+			candidate.enable();
+		}
+		failures = 0;
+		active = candidate;
+
+		if (Config.DEBUG)
+			Log.d(TAG, "using transceiver " + candidate);
+
+		return true;
+	}
+
+}
@@ -0,0 +1,32 @@
+package ch.uzh.csg.nfclib.transceiver;
+
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+
+/**
+ * An {@link INfcTransceiver} which can also write without blocking the calling
+ * thread. If the transceiver implements this interface, the NfcInitiator
+ * writes the messages of a session this way, so no thread waits for the
+ * responses.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public interface IAsyncNfcTransceiver extends INfcTransceiver {
+
+	/**
+	 * Writes a {@link NfcMessage} to the NFC partner and returns right away.
+	 * The callback is notified once the response has arrived or the write
+	 * failed. As with the blocking write, cancel() aborts the pending write,
+	 * which then fails.
+	 * 
+	 * @param input
+	 *            the {@link NfcMessage} to be send
+	 * @param callback
+	 *            the callback to notify with the response
+	 * @throws IllegalArgumentException
+	 *             if the message is too long
+	 */
+	public void write(NfcMessage input, INfcWriteCallback callback) throws IllegalArgumentException;
+
+}
@@ -2,9 +2,9 @@ package ch.uzh.csg.nfclib.transceiver;
 
 import java.io.IOException;
 
+import ch.uzh.csg.nfclib.NfcInitiator.TagDiscoveredHandler;
 import ch.uzh.csg.nfclib.NfcLibException;
 import ch.uzh.csg.nfclib.messages.NfcMessage;
-import android.app.Activity;
 
 /**
  * The implementation of this interface must handle the initialization and the
@@ -20,20 +20,20 @@ public interface INfcTransceiver {
 	public static final String UNEXPECTED_ERROR = "An unexpected error occured while writing over NFC.";
 
 	/**
-	 * Turns on the NFC controller, i.e., binds the NFC controller to the given
-	 * activity.
+	 * Turns on the NFC controller (e.g., binds it to the activity on Android).
 	 * 
+	 * @param nfcInit
+	 *            the {@link TagDiscoveredHandler} which is notified as soon as
+	 *            a NFC connection is established (may not be null)
 	 * @throws NfcLibException
 	 */
-	public void turnOn(Activity activity) throws NfcLibException;
+	public void turnOn(TagDiscoveredHandler nfcInit) throws NfcLibException;
 
 	/**
-	 * Turns off the NFC controller, i.e., removes the binding between the NFC
-	 * controller and the given activity.
-	 * 
-	 * @throws IOException
+	 * Turns off the NFC controller (e.g., removes the binding to the activity
+	 * on Android).
 	 */
-	public void turnOff(Activity activity);
+	public void turnOff();
 
 	/**
 	 * Enables the NFC message exchange (as soon as a NFC device is in range,
@@ -77,4 +77,22 @@ public interface INfcTransceiver {
 	 */
 	public int maxLen();
 
+	/**
+	 * Sets the time to wait for the response of the following writes. If the
+	 * response does not arrive in time, write throws an {@link IOException}.
+	 * 
+	 * @param timeout
+	 *            the timeout in milliseconds, 0 to use the default of the NFC
+	 *            controller
+	 */
+	public void timeout(int timeout);
+
+	/**
+	 * Aborts the write currently waiting for a response (if any), which then
+	 * throws an {@link IOException}. This can be called from any thread. The
+	 * connection is not usable afterwards until the next NFC device is
+	 * discovered.
+	 */
+	public void cancel();
+
 }
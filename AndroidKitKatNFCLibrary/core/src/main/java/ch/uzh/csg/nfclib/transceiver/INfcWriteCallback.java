@@ -0,0 +1,37 @@
+package ch.uzh.csg.nfclib.transceiver;
+
+import java.io.IOException;
+
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+
+/**
+ * The implementation of this interface is notified once an asynchronous write
+ * of an {@link IAsyncNfcTransceiver} has completed. Exactly one of the methods
+ * is called for every write, on any thread (also on the thread which called
+ * write).
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public interface INfcWriteCallback {
+
+	/**
+	 * Called with the response to the message written.
+	 * 
+	 * @param response
+	 *            the response as {@link NfcMessage}
+	 */
+	public void completed(NfcMessage response);
+
+	/**
+	 * Called if the message could not be written or the response did not
+	 * arrive, e.g., due to a connection loss or since the write has been
+	 * cancelled.
+	 * 
+	 * @param e
+	 *            the cause
+	 */
+	public void failed(IOException e);
+
+}
@@ -0,0 +1,378 @@
+package ch.uzh.csg.nfclib.transceiver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+import ch.uzh.csg.nfclib.NfcInitiator.TagDiscoveredHandler;
+import ch.uzh.csg.nfclib.NfcLibException;
+import ch.uzh.csg.nfclib.events.INfcEventHandler;
+import ch.uzh.csg.nfclib.events.NfcEvent;
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+import ch.uzh.csg.nfclib.messages.NfcMessage.Type;
+import ch.uzh.csg.nfclib.utils.Config;
+import ch.uzh.csg.nfclib.utils.Log;
+
+/**
+ * This class handles the message exchange over a PC/SC reader using
+ * javax.smartcardio, e.g., on a desktop or server JVM.
+ *
+ * Once turned on, a monitor thread waits for a card (i.e., the HCE device) to
+ * be presented to the terminal and notifies the {@link TagDiscoveredHandler}.
+ * The monitor runs the session and then waits for the card to be removed. Use
+ * one instance (and one NfcInitiator) per terminal to serve several readers in
+ * parallel.
+ *
+ * The frames are transmitted as they are. The PC/SC provider of the JDK
+ * rejects commands shorter than 4 bytes, which are only sent to counterparts
+ * which do not support the extended header with checksums. As the responses
+ * are no ISO/IEC 7816-4 responses, the automatic GET RESPONSE of the provider
+ * is turned off.
+ *
+ * Like the ACR122u reader library, javax.smartcardio has no timeout for a
+ * single transmit, so the transmit runs on a separate thread as in
+ * the ExternalNfcTransceiver (Android module). Asynchronous writes complete on
+ * that thread, the timeout only applies to blocking writes. The deadline of
+ * the NfcInitiator cancels pending asynchronous writes.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class SmartcardNfcTransceiver implements IAsyncNfcTransceiver {
+
+	private static final String TAG = "ch.uzh.csg.nfclib.transceiver.SmartcardNfcTransceiver";
+
+	// same limit as the HCE side of the internal NFC controller
+	private static final int MAX_WRITE_LENGTH = 245;
+	// the PC/SC provider requires space for a short response and the status word
+	private static final int RESPONSE_BUFFER_LENGTH = 258;
+	// how often the monitor checks if it has been turned off
+	private static final int PRESENCE_CHECK_INTERVAL = 250;
+
+	private static final String T0_GET_RESPONSE = "sun.security.smartcardio.t0GetResponse";
+	private static final String T1_GET_RESPONSE = "sun.security.smartcardio.t1GetResponse";
+
+	private final INfcEventHandler eventHandler;
+	private final CardTerminal terminal;
+	private volatile TagDiscoveredHandler nfcInit;
+
+	private volatile Card card = null;
+	private volatile CardChannel channel = null;
+	private volatile Thread monitor = null;
+	private ExecutorService transmitter;
+	private volatile Transmit pending = null;
+	// the timeout requested for the following writes, 0 to wait for the reader
+	private volatile int timeout = 0;
+	private volatile boolean enabled = false;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param eventHandler
+	 *            the {@link INfcEventHandler} (may not be null)
+	 * @param terminal
+	 *            the PC/SC terminal to use (may not be null)
+	 */
+	public SmartcardNfcTransceiver(INfcEventHandler eventHandler, CardTerminal terminal) {
+		this.eventHandler = eventHandler;
+		this.terminal = terminal;
+	}
+
+	@Override
+	public void turnOn(TagDiscoveredHandler nfcInit) throws NfcLibException {
+		if (monitor != null) {
+			return;
+		}
+		this.nfcInit = nfcInit;
+		// read by the provider when the first card is connected
+		if (System.getProperty(T0_GET_RESPONSE) == null) {
+			System.setProperty(T0_GET_RESPONSE, "false");
+		}
+		if (System.getProperty(T1_GET_RESPONSE) == null) {
+			System.setProperty(T1_GET_RESPONSE, "false");
+		}
+		transmitter = Executors.newSingleThreadExecutor();
+		monitor = new Thread(new PresenceMonitor(), "nfc-" + terminal.getName());
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	@Override
+	public void turnOff() {
+		disable();
+		final Thread current = monitor;
+		monitor = null;
+		if (current != null) {
+			current.interrupt();
+		}
+		disconnect();
+		if (transmitter != null) {
+			transmitter.shutdownNow();
+		}
+	}
+
+	@Override
+	public void enable() {
+		enabled = true;
+	}
+
+	@Override
+	public void disable() {
+		enabled = false;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return monitor != null;
+	}
+
+	@Override
+	public int maxLen() {
+		return MAX_WRITE_LENGTH;
+	}
+
+	@Override
+	public void timeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public void cancel() {
+		final Transmit current = pending;
+		if (current != null) {
+			current.cancel(true);
+		}
+	}
+
+	@Override
+	public NfcMessage write(NfcMessage input) throws IOException {
+		final CardChannel current = connected(input);
+		if (current == null) {
+			return new NfcMessage(Type.ERROR).sequenceNumber(input);
+		}
+
+		final Transmit transmit = new Transmit(current, input, null);
+		pending = transmit;
+		transmitter.execute(transmit);
+		try {
+			final int waitTime = timeout;
+			return waitTime > 0 ? transmit.get(waitTime, TimeUnit.MILLISECONDS) : transmit.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			return failed(input, e.getCause());
+		} catch (TimeoutException e) {
+			transmit.cancel(true);
+			throw new IOException("no response within " + timeout + "ms");
+		} catch (CancellationException e) {
+			throw new IOException("write cancelled");
+		} catch (InterruptedException e) {
+			transmit.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("write interrupted");
+		} finally {
+			pending = null;
+		}
+	}
+
+	@Override
+	public void write(NfcMessage input, INfcWriteCallback callback) {
+		final CardChannel current = connected(input);
+		if (current == null) {
+			callback.completed(new NfcMessage(Type.ERROR).sequenceNumber(input));
+			return;
+		}
+
+		final Transmit transmit = new Transmit(current, input, callback);
+		pending = transmit;
+		transmitter.execute(transmit);
+	}
+
+	/*
+	 * Returns the channel to the card, or null if the terminal is not enabled
+	 * or no card is connected.
+	 */
+	private CardChannel connected(NfcMessage input) {
+		if (!isEnabled()) {
+			if (Config.DEBUG)
+				Log.d(TAG, "could not write message, terminal is not enabled");
+
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NFCTRANSCEIVER_NOT_CONNECTED);
+			return null;
+		}
+
+		final CardChannel current = channel;
+		if (current == null) {
+			if (Config.DEBUG)
+				Log.d(TAG, "could not write message, card is not or no longer connected");
+
+			eventHandler.handleMessage(NfcEvent.FATAL_ERROR, NFCTRANSCEIVER_NOT_CONNECTED);
+			return null;
+		}
+
+		if (input.bytes().length > MAX_WRITE_LENGTH) {
+			throw new IllegalArgumentException("The message length exceeds the maximum capacity of " + MAX_WRITE_LENGTH + " bytes.");
+		}
+		return current;
+	}
+
+	private NfcMessage failed(NfcMessage input, Throwable t) {
+		if (Config.DEBUG)
+			Log.e(TAG, "could not write message", t);
+
+		eventHandler.handleMessage(NfcEvent.FATAL_ERROR, UNEXPECTED_ERROR);
+		return new NfcMessage(Type.ERROR).sequenceNumber(input);
+	}
+
+	/*
+	 * Transmits a frame on the transmitter thread. If a callback is given, it
+	 * is notified on that thread once the response has arrived, or on the
+	 * thread cancelling the write.
+	 */
+	private class Transmit extends FutureTask<NfcMessage> {
+		private final NfcMessage input;
+		private final INfcWriteCallback callback;
+
+		private Transmit(final CardChannel current, final NfcMessage input, INfcWriteCallback callback) {
+			super(new Callable<NfcMessage>() {
+				@Override
+				public NfcMessage call() throws IOException {
+					final ByteBuffer response = ByteBuffer.allocate(RESPONSE_BUFFER_LENGTH);
+					final int length;
+					try {
+						length = current.transmit(ByteBuffer.wrap(input.bytes()), response);
+					} catch (CardException e) {
+						// the card has been removed, the session can be resumed
+						throw new IOException("transmit failed", e);
+					}
+					if (length <= 0) {
+						throw new IllegalStateException("return value is 0");
+					}
+					byte[] result = new byte[length];
+					response.flip();
+					response.get(result);
+					return new NfcMessage(result);
+				}
+			});
+			this.input = input;
+			this.callback = callback;
+		}
+
+		@Override
+		protected void done() {
+			if (callback == null) {
+				return;
+			}
+			if (pending == this) {
+				pending = null;
+			}
+			if (isCancelled()) {
+				callback.failed(new IOException("write cancelled"));
+				return;
+			}
+			final NfcMessage response;
+			try {
+				response = get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					callback.failed((IOException) e.getCause());
+				} else {
+					callback.completed(failed(input, e.getCause()));
+				}
+				return;
+			} catch (InterruptedException e) {
+				// the task is done, get does not block
+				Thread.currentThread().interrupt();
+				callback.failed(new IOException("write interrupted"));
+				return;
+			}
+			callback.completed(response);
+		}
+	}
+
+	private void connect() throws CardException {
+		card = terminal.connect("*");
+		channel = card.getBasicChannel();
+	}
+
+	private void disconnect() {
+		final Card current = card;
+		channel = null;
+		card = null;
+		if (current == null) {
+			return;
+		}
+		try {
+			current.disconnect(false);
+		} catch (CardException e) {
+			if (Config.DEBUG)
+				Log.d(TAG, "could not disconnect card", e);
+		}
+	}
+
+	private class PresenceMonitor implements Runnable {
+		@Override
+		public void run() {
+			final Thread self = Thread.currentThread();
+			while (monitor == self) {
+				try {
+					if (!terminal.waitForCardPresent(PRESENCE_CHECK_INTERVAL)) {
+						continue;
+					}
+					if (!enabled) {
+						if (Config.DEBUG)
+							Log.d(TAG, "tag discovered, but SmartcardNfcTransceiver not enabled");
+					} else {
+						cardPresent();
+					}
+					while (monitor == self && !terminal.waitForCardAbsent(PRESENCE_CHECK_INTERVAL)) {
+						// wait until the card has been removed
+					}
+					disconnect();
+				} catch (CardException e) {
+					if (Config.DEBUG)
+						Log.e(TAG, "terminal not available: ", e);
+
+					disconnect();
+					try {
+						Thread.sleep(PRESENCE_CHECK_INTERVAL);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		}
+
+		private void cardPresent() {
+			try {
+				connect();
+				nfcInit.tagDiscovered();
+			} catch (CardException e) {
+				if (Config.DEBUG)
+					Log.e(TAG, "Could not connnect card (CardException): ", e);
+
+				eventHandler.handleMessage(NfcEvent.INIT_FAILED, null);
+			} catch (IOException e) {
+				if (Config.DEBUG)
+					Log.e(TAG, "Could not connnect card (IOException): ", e);
+
+				eventHandler.handleMessage(NfcEvent.INIT_FAILED, null);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,299 @@
+package ch.uzh.csg.nfclib.transfer;
+
+import static ch.uzh.csg.nfclib.transfer.FileTransferSource.TAG_DATA;
+import static ch.uzh.csg.nfclib.transfer.FileTransferSource.TAG_ERROR;
+import static ch.uzh.csg.nfclib.transfer.FileTransferSource.TAG_LENGTH;
+import static ch.uzh.csg.nfclib.transfer.FileTransferSource.TAG_NAME;
+import static ch.uzh.csg.nfclib.transfer.FileTransferSource.TAG_OFFSET;
+import static ch.uzh.csg.nfclib.transfer.FileTransferSource.TAG_SIZE;
+import static ch.uzh.csg.nfclib.transfer.FileTransferSource.TAG_VERSION;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ch.uzh.csg.nfclib.messages.PayloadReader;
+import ch.uzh.csg.nfclib.messages.PayloadWriter;
+import ch.uzh.csg.nfclib.utils.Config;
+import ch.uzh.csg.nfclib.utils.Log;
+
+/**
+ * Receives a file from a {@link FileTransferSource} over several taps. The
+ * sink drives the transfer: it requests the chunk at its current offset
+ * (pass {@link #request()} to NfcInitiator.transceive(byte[]) on INITIALIZED)
+ * and stores the response (pass the MESSAGE_RECEIVED payload to
+ * {@link #receive(byte[])} and request the next chunk until it returns
+ * true).
+ *
+ * Every chunk is written directly into the memory-mapped target file, forced
+ * to disk, and then the offset is persisted in the checkpoint file. If the
+ * device is lifted, a new sink with the same target and checkpoint continues
+ * at that offset on the next tap. If the source serves a different version
+ * of the file, the transfer starts over. The checkpoint is deleted once the
+ * file is complete.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class FileTransferSink {
+
+	private static final String TAG = "ch.uzh.csg.nfclib.transfer.FileTransferSink";
+
+	private final String name;
+	private final File target;
+	private final File checkpoint;
+
+	// unknown until the first response or loaded from the checkpoint
+	private long size = -1;
+	private long version = 0;
+	private long offset = 0;
+	private int chunkSize = 0;
+
+	private FileChannel channel = null;
+	private MappedByteBuffer mapped = null;
+
+	/**
+	 * Creates a sink and loads the checkpoint of an interrupted transfer, if
+	 * there is one.
+	 *
+	 * @param name
+	 *            the name of the file served by the source
+	 * @param target
+	 *            the file to write
+	 * @param checkpoint
+	 *            the file to persist the progress in
+	 */
+	public FileTransferSink(String name, File target, File checkpoint) {
+		this.name = name;
+		this.target = target;
+		this.checkpoint = checkpoint;
+		load();
+	}
+
+	/**
+	 * Limits the number of bytes requested per chunk, by default the chunk
+	 * size of the source is used.
+	 */
+	public FileTransferSink chunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * Returns the number of bytes stored so far.
+	 */
+	public long offset() {
+		return offset;
+	}
+
+	/**
+	 * Returns the size of the file, or -1 if not known yet.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns true if the file has been received completely.
+	 */
+	public boolean isComplete() {
+		return size >= 0 && offset == size;
+	}
+
+	/**
+	 * Returns the request for the next chunk.
+	 */
+	public byte[] request() {
+		final PayloadWriter writer = new PayloadWriter();
+		writer.writeString(TAG_NAME, name).writeLong(TAG_OFFSET, offset);
+		if (chunkSize > 0) {
+			writer.writeInt(TAG_LENGTH, chunkSize);
+		}
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Stores the chunk contained in the response and persists the new offset.
+	 *
+	 * @param response
+	 *            the response of the source to {@link #request()}
+	 * @return true if the file is complete, false if the next chunk has to be
+	 *         requested
+	 * @throws IOException
+	 *             if the source returned an error or the chunk could not be
+	 *             stored
+	 * @throws IllegalArgumentException
+	 *             if the response is malformed
+	 */
+	public boolean receive(byte[] response) throws IOException, IllegalArgumentException {
+		String received = null;
+		long receivedSize = -1;
+		long receivedVersion = 0;
+		long receivedOffset = -1;
+		ByteBuffer data = null;
+
+		final PayloadReader reader = new PayloadReader(response);
+		while (reader.next()) {
+			switch (reader.tag()) {
+			case TAG_NAME:
+				received = reader.readString();
+				break;
+			case TAG_SIZE:
+				receivedSize = reader.readLong();
+				break;
+			case TAG_VERSION:
+				receivedVersion = reader.readLong();
+				break;
+			case TAG_OFFSET:
+				receivedOffset = reader.readLong();
+				break;
+			case TAG_DATA:
+				data = reader.readBytes();
+				break;
+			case TAG_ERROR:
+				throw new IOException("file transfer failed: " + reader.readString());
+			}
+		}
+		if (!name.equals(received) || data == null || receivedSize < 0) {
+			throw new IOException("unexpected file transfer response for " + received);
+		}
+		if (receivedSize != size || receivedVersion != version) {
+			if (Config.DEBUG)
+				Log.d(TAG, "start transfer of " + name + " with " + receivedSize + " bytes");
+			size = receivedSize;
+			version = receivedVersion;
+			offset = 0;
+			map();
+		}
+		if (receivedOffset != offset) {
+			// e.g., the answer to a request sent before the source changed
+			if (Config.DEBUG)
+				Log.d(TAG, "ignore chunk at " + receivedOffset + ", expected " + offset);
+			return false;
+		}
+		if (offset + data.remaining() > size) {
+			throw new IOException("chunk exceeds file size " + size);
+		}
+
+		if (mapped == null) {
+			map();
+		}
+		mapped.position((int) offset);
+		offset += data.remaining();
+		mapped.put(data);
+		// the checkpoint must never be ahead of the data on disk
+		mapped.force();
+		if (isComplete()) {
+			close();
+			checkpoint.delete();
+			if (Config.DEBUG)
+				Log.d(TAG, "transfer of " + name + " complete");
+			return true;
+		}
+		save();
+		return false;
+	}
+
+	/**
+	 * Closes the target file, e.g., when the transfer is abandoned. The
+	 * checkpoint is kept.
+	 */
+	public void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				if (Config.DEBUG)
+					Log.e(TAG, "could not close " + target, e);
+			}
+			channel = null;
+			mapped = null;
+		}
+	}
+
+	private void map() throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("file too large to be mapped: " + size);
+		}
+		close();
+		final RandomAccessFile file = new RandomAccessFile(target, "rw");
+		file.setLength(size);
+		channel = file.getChannel();
+		mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private void load() {
+		if (!checkpoint.exists()) {
+			return;
+		}
+		try {
+			final byte[] bytes = new byte[(int) checkpoint.length()];
+			final RandomAccessFile file = new RandomAccessFile(checkpoint, "r");
+			try {
+				file.readFully(bytes);
+			} finally {
+				file.close();
+			}
+			String stored = null;
+			final PayloadReader reader = new PayloadReader(bytes);
+			while (reader.next()) {
+				switch (reader.tag()) {
+				case TAG_NAME:
+					stored = reader.readString();
+					break;
+				case TAG_SIZE:
+					size = reader.readLong();
+					break;
+				case TAG_VERSION:
+					version = reader.readLong();
+					break;
+				case TAG_OFFSET:
+					offset = reader.readLong();
+					break;
+				}
+			}
+			if (name.equals(stored) && target.length() == size && offset >= 0 && offset <= size) {
+				if (Config.DEBUG)
+					Log.d(TAG, "continue transfer of " + name + " at " + offset + " of " + size);
+				return;
+			}
+		} catch (IOException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "could not read checkpoint " + checkpoint, e);
+		} catch (IllegalArgumentException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "corrupt checkpoint " + checkpoint, e);
+		}
+		// the checkpoint does not match the target, start over
+		size = -1;
+		version = 0;
+		offset = 0;
+	}
+
+	private void save() throws IOException {
+		final PayloadWriter writer = new PayloadWriter();
+		writer.writeString(TAG_NAME, name).writeLong(TAG_SIZE, size);
+		writer.writeLong(TAG_VERSION, version).writeLong(TAG_OFFSET, offset);
+		// write a new file and rename it, a crash must not leave half a checkpoint
+		final File tmp = new File(checkpoint.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(writer.toByteArray());
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(checkpoint)) {
+			checkpoint.delete();
+			if (!tmp.renameTo(checkpoint)) {
+				throw new IOException("could not write checkpoint " + checkpoint);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+package ch.uzh.csg.nfclib.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ch.uzh.csg.nfclib.ISendLater;
+import ch.uzh.csg.nfclib.ITransceiveHandler;
+import ch.uzh.csg.nfclib.messages.PayloadReader;
+import ch.uzh.csg.nfclib.messages.PayloadWriter;
+import ch.uzh.csg.nfclib.utils.Config;
+import ch.uzh.csg.nfclib.utils.Log;
+
+/**
+ * Serves a file, e.g., a firmware or configuration bundle, to a
+ * {@link FileTransferSink} on the other device. Register it as
+ * {@link ITransceiveHandler} of the NfcResponder (or of a channel).
+ *
+ * The file is memory-mapped read-only, every request of the sink is answered
+ * with the chunk at the requested offset, which is read directly from the
+ * mapping and fragmented by the library. The source does not keep any state
+ * per transfer, i.e., the sink may continue at any offset after the device
+ * has been lifted.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class FileTransferSource implements ITransceiveHandler {
+
+	private static final String TAG = "ch.uzh.csg.nfclib.transfer.FileTransferSource";
+
+	/*
+	 * Fields of a request (name, offset, length) and of a response (name,
+	 * size, version, offset, data or error).
+	 */
+	static final int TAG_NAME = 1;
+	static final int TAG_OFFSET = 2;
+	static final int TAG_LENGTH = 3;
+	static final int TAG_SIZE = 4;
+	static final int TAG_VERSION = 5;
+	static final int TAG_DATA = 6;
+	static final int TAG_ERROR = 7;
+
+	public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+	private final String name;
+	private final long version;
+	private final FileChannel channel;
+	private final MappedByteBuffer mapped;
+	private final PayloadWriter writer = new PayloadWriter(DEFAULT_CHUNK_SIZE + 64);
+
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * Maps the file to be served.
+	 *
+	 * @param name
+	 *            the name under which the sink requests the file
+	 * @param file
+	 *            the file to serve, it must not be modified during the
+	 *            transfer
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 */
+	public FileTransferSource(String name, File file) throws IOException {
+		if (file.length() > Integer.MAX_VALUE) {
+			throw new IOException("file too large to be mapped: " + file);
+		}
+		this.name = name;
+		this.version = file.lastModified();
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+		this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	}
+
+	/**
+	 * Sets the maximum number of bytes returned per request. Every chunk is
+	 * one message, i.e., the sink persists its progress once per chunk. The
+	 * chunk must be smaller than the maximum message size of the counterpart.
+	 *
+	 * @param chunkSize
+	 *            the number of bytes per chunk
+	 * @throws IllegalArgumentException
+	 *             if the chunk size is not positive
+	 */
+	public FileTransferSource chunkSize(int chunkSize) throws IllegalArgumentException {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunk size must be positive");
+		}
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * Returns the size of the file served.
+	 */
+	public long size() {
+		return mapped.capacity();
+	}
+
+	@Override
+	public synchronized byte[] handleMessage(byte[] message, ISendLater sendLater) {
+		writer.reset();
+		String requested = null;
+		long offset = -1;
+		int length = chunkSize;
+		try {
+			final PayloadReader reader = new PayloadReader(message);
+			while (reader.next()) {
+				switch (reader.tag()) {
+				case TAG_NAME:
+					requested = reader.readString();
+					break;
+				case TAG_OFFSET:
+					offset = reader.readLong();
+					break;
+				case TAG_LENGTH:
+					length = Math.min(chunkSize, reader.readInt());
+					break;
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "malformed file transfer request", e);
+			return writer.writeString(TAG_ERROR, "malformed request").toByteArray();
+		}
+
+		if (!name.equals(requested)) {
+			return writer.writeString(TAG_ERROR, "unknown file " + requested).toByteArray();
+		}
+		final int size = mapped.capacity();
+		if (offset < 0 || offset > size || length <= 0) {
+			return writer.writeString(TAG_ERROR, "invalid range " + offset + "/" + length).toByteArray();
+		}
+
+		final int start = (int) offset;
+		final ByteBuffer chunk = mapped.duplicate();
+		chunk.limit(start + Math.min(length, size - start)).position(start);
+		if (Config.DEBUG)
+			Log.d(TAG, "serve " + name + " from " + start + ", " + chunk.remaining() + " of " + size + " bytes");
+
+		writer.writeString(TAG_NAME, name).writeLong(TAG_SIZE, size).writeLong(TAG_VERSION, version);
+		writer.writeLong(TAG_OFFSET, start).writeBytes(TAG_DATA, chunk);
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Closes the file. The mapping is released by the garbage collector.
+	 */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			if (Config.DEBUG)
+				Log.e(TAG, "could not close " + name, e);
+		}
+	}
+
+}
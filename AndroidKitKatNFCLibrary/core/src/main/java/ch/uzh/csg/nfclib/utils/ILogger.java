@@ -0,0 +1,49 @@
+package ch.uzh.csg.nfclib.utils;
+
+/**
+ * The implementation of this interface writes the log messages of the library
+ * to the log of the platform (see {@link Log}).
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public interface ILogger {
+
+	/**
+	 * Writes a debug message.
+	 * 
+	 * @param tag
+	 *            the class the message comes from
+	 * @param msg
+	 *            the message
+	 * @param tr
+	 *            the exception to log or null
+	 */
+	public void d(String tag, String msg, Throwable tr);
+
+	/**
+	 * Writes a warning.
+	 * 
+	 * @param tag
+	 *            the class the message comes from
+	 * @param msg
+	 *            the message
+	 * @param tr
+	 *            the exception to log or null
+	 */
+	public void w(String tag, String msg, Throwable tr);
+
+	/**
+	 * Writes an error message.
+	 * 
+	 * @param tag
+	 *            the class the message comes from
+	 * @param msg
+	 *            the message
+	 * @param tr
+	 *            the exception to log or null
+	 */
+	public void e(String tag, String msg, Throwable tr);
+
+}
@@ -0,0 +1,80 @@
+package ch.uzh.csg.nfclib.utils;
+
+import java.io.PrintStream;
+
+/**
+ * This class is used for logging instead of android.util.Log, so that the
+ * protocol engine runs on any JVM. By default, messages are written to
+ * System.err. The Android module replaces this with the Android log as soon as
+ * it is used.
+ * 
+ * Only log if {@link Config#DEBUG} is set, as for android.util.Log.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public final class Log {
+
+	private static volatile ILogger logger = new ILogger() {
+		@Override
+		public void d(String tag, String msg, Throwable tr) {
+			print("D", tag, msg, tr);
+		}
+
+		@Override
+		public void w(String tag, String msg, Throwable tr) {
+			print("W", tag, msg, tr);
+		}
+
+		@Override
+		public void e(String tag, String msg, Throwable tr) {
+			print("E", tag, msg, tr);
+		}
+
+		private void print(String level, String tag, String msg, Throwable tr) {
+			final PrintStream out = System.err;
+			out.println(level + "/" + tag + ": " + msg);
+			if (tr != null) {
+				tr.printStackTrace(out);
+			}
+		}
+	};
+
+	private Log() {
+	}
+
+	/**
+	 * Sets the {@link ILogger} to write the log messages to.
+	 * 
+	 * @param logger
+	 *            the logger (may not be null)
+	 */
+	public static void logger(ILogger logger) {
+		if (logger == null) {
+			throw new IllegalArgumentException("logger must not be null");
+		}
+		Log.logger = logger;
+	}
+
+	public static void d(String tag, String msg) {
+		logger.d(tag, msg, null);
+	}
+
+	public static void d(String tag, String msg, Throwable tr) {
+		logger.d(tag, msg, tr);
+	}
+
+	public static void w(String tag, String msg) {
+		logger.w(tag, msg, null);
+	}
+
+	public static void e(String tag, String msg) {
+		logger.e(tag, msg, null);
+	}
+
+	public static void e(String tag, String msg, Throwable tr) {
+		logger.e(tag, msg, tr);
+	}
+
+}
@@ -0,0 +1,177 @@
+package ch.uzh.csg.nfclib.utils;
+
+/**
+ * This is a class for miscellaneous functions.
+ * 
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ * 
+ */
+public class Utils {
+
+	/**
+	 * Returns a long as a byte array.
+	 */
+	public static byte[] longToByteArray(long value) {
+		return new byte[] {
+				(byte) (value >> 56),
+				(byte) (value >> 48),
+				(byte) (value >> 40),
+				(byte) (value >> 32),
+				(byte) (value >> 24),
+				(byte) (value >> 16),
+				(byte) (value >> 8),
+				(byte) value
+			};
+	}
+
+	/**
+	 * Returns a byte array as long.
+	 * 
+	 * @param array
+	 *            the byte array (including possibly also other data)
+	 * @param offset
+	 *            the index where to start reading the 8 bytes to convert to a
+	 *            long
+	 */
+	public static long byteArrayToLong(byte[] array, int offset) {
+		return ((long) (array[offset] & 0xff) << 56)
+				| ((long) (array[offset + 1] & 0xff) << 48)
+				| ((long) (array[offset + 2] & 0xff) << 40)
+				| ((long) (array[offset + 3] & 0xff) << 32)
+				| ((long) (array[offset + 4] & 0xff) << 24)
+				| ((long) (array[offset + 5] & 0xff) << 16)
+				| ((long) (array[offset + 6] & 0xff) << 8)
+				| ((long) (array[offset + 7] & 0xff));
+	}
+
+	/**
+	 * Returns an integer as a byte array.
+	 */
+	public static byte[] intToByteArray(int value) {
+		return new byte[] {
+				(byte) (value >>> 24),
+				(byte) (value >>> 16),
+				(byte) (value >>> 8),
+				(byte) value
+			};
+	}
+
+	/**
+	 * Returns a byte array as integer.
+	 * 
+	 * @param array
+	 *            the byte array (including possibly also other data)
+	 * @param offset
+	 *            the index where to start reading the 4 bytes to convert to a
+	 *            long
+	 */
+	public static int byteArrayToInt(byte[] array, int offset) {
+		return (array[offset] & 0xff) << 24
+				| (array[offset + 1] & 0xff) << 16
+				| (array[offset + 2] & 0xff) << 8
+				| (array[offset + 3] & 0xff);
+	}
+
+	/**
+	 * Merges two byte arrays into one.
+	 */
+	public static byte[] merge(byte[] array1, byte[] array2) {
+		byte[] combined = new byte[array1.length + array2.length];
+		System.arraycopy(array1, 0, combined, 0, array1.length);
+		System.arraycopy(array2, 0, combined, array1.length, array2.length);
+		return combined;
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode the given value as varint
+	 * (7 bits per byte, the most significant bit indicates that more bytes
+	 * follow).
+	 */
+	public static int varIntLength(int value) {
+		int len = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			len++;
+		}
+		return len;
+	}
+
+	/**
+	 * Writes the given value as varint into the given array.
+	 * 
+	 * @param value
+	 *            the value to write
+	 * @param array
+	 *            the destination, which needs to have enough space left (see
+	 *            varIntLength)
+	 * @param offset
+	 *            the index where to start writing
+	 * @return the index after the last byte written
+	 */
+	public static int writeVarInt(int value, byte[] array, int offset) {
+		while ((value & ~0x7F) != 0) {
+			array[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		array[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Returns a varint of the byte array as integer. Use varIntLength to get
+	 * the number of bytes read.
+	 * 
+	 * @param array
+	 *            the byte array (including possibly also other data)
+	 * @param offset
+	 *            the index where to start reading the varint
+	 * @throws IllegalArgumentException
+	 *             if the varint is malformed
+	 */
+	public static int readVarInt(byte[] array, int offset) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (offset >= array.length) {
+				throw new IllegalArgumentException("truncated varint");
+			}
+			final byte b = array[offset++];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("malformed varint");
+	}
+
+	private static final int[] CRC16_TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 8;
+			for (int j = 0; j < 8; j++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+			CRC16_TABLE[i] = crc & 0xFFFF;
+		}
+	}
+
+	/**
+	 * Returns the CRC-16 (CCITT, initial value 0xFFFF) of the given range of
+	 * the byte array.
+	 * 
+	 * @param array
+	 *            the byte array (including possibly also other data)
+	 * @param offset
+	 *            the index of the first byte to include
+	 * @param length
+	 *            the number of bytes to include
+	 */
+	public static int crc16(byte[] array, int offset, int length) {
+		int crc = 0xFFFF;
+		for (int i = offset; i < offset + length; i++) {
+			crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ array[i]) & 0xFF]) & 0xFFFF;
+		}
+		return crc;
+	}
+
+}
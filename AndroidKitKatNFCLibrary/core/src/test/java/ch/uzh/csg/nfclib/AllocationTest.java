@@ -0,0 +1,206 @@
+package ch.uzh.csg.nfclib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.NfcInitiator.TagDiscoveredHandler;
+import ch.uzh.csg.nfclib.events.INfcEventHandler;
+import ch.uzh.csg.nfclib.events.NfcEvent;
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+import ch.uzh.csg.nfclib.transceiver.INfcTransceiver;
+
+/**
+ * Fails if the protocol path allocates more than the budgets below. Both sides
+ * run on the calling thread over an in-memory transceiver, so the allocation
+ * counter of this thread covers the fragmentation, the framing, the
+ * reassembly, and the handshake of initiator and responder.
+ *
+ * The measured value is the smallest allocation of RUNS runs after WARMUP
+ * runs, it is reported in the message of the failing assertion. If a change
+ * needs more memory on purpose, set the budget to 0 to read the new value from
+ * that message, and raise the budget in the same commit.
+ *
+ * @author Jeton Memeti
+ * @author Thomas Bocek
+ *
+ */
+public class AllocationTest {
+
+	/*
+	 * Budgets in bytes, with about 40-50% headroom over the measured values
+	 * (2664 per session, 1441 per frame) to absorb differences between JVMs.
+	 */
+	private static final long BUDGET_SESSION = 4 * 1024;
+	private static final long BUDGET_FRAME = 2 * 1024;
+
+	private static final int WARMUP = 50;
+	private static final int RUNS = 10;
+
+	private com.sun.management.ThreadMXBean threadMXBean;
+
+	private byte[] received;
+
+	private final INfcEventHandler initiatorHandler = new INfcEventHandler() {
+		@Override
+		public void handleMessage(NfcEvent event, Object object) {
+			if (event == NfcEvent.MESSAGE_RECEIVED) {
+				received = (byte[]) object;
+			}
+		}
+	};
+
+	private final INfcEventHandler responderHandler = new INfcEventHandler() {
+		@Override
+		public void handleMessage(NfcEvent event, Object object) {
+		}
+	};
+
+	/*
+	 * Passes the frames directly to the responder on the calling thread.
+	 */
+	private static class LoopbackNfcTransceiver implements INfcTransceiver {
+
+		private final NfcResponder responder;
+		private boolean enabled = false;
+		private int writes = 0;
+
+		public LoopbackNfcTransceiver(NfcResponder responder) {
+			this.responder = responder;
+		}
+
+		@Override
+		public NfcMessage write(NfcMessage input) throws IOException {
+			writes++;
+			return new NfcMessage(responder.processIncomingData(input.bytes()));
+		}
+
+		@Override
+		public int maxLen() {
+			return 245;
+		}
+
+		@Override
+		public void timeout(int timeout) {
+		}
+
+		@Override
+		public void cancel() {
+		}
+
+		@Override
+		public void turnOn(TagDiscoveredHandler handler) throws NfcLibException {
+		}
+
+		@Override
+		public void turnOff() {
+			disable();
+		}
+
+		@Override
+		public void enable() {
+			enabled = true;
+		}
+
+		@Override
+		public void disable() {
+			enabled = false;
+		}
+
+		@Override
+		public boolean isEnabled() {
+			return enabled;
+		}
+	}
+
+	@Before
+	public void before() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threadMXBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+		threadMXBean.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	@Test
+	public void testAllocation_Session() {
+		final byte[] request = TestUtils.getRandomBytes(64);
+		final byte[] response = TestUtils.getRandomBytes(64);
+		final Scenario scenario = new Scenario(response);
+
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < WARMUP + RUNS; i++) {
+			final long allocated = scenario.session(request);
+			if (i >= WARMUP) {
+				min = Math.min(min, allocated);
+			}
+		}
+		scenario.close();
+		assertTrue(Arrays.equals(response, received));
+
+		assertTrue("allocated " + min + " bytes per session, budget is " + BUDGET_SESSION, min <= BUDGET_SESSION);
+	}
+
+	@Test
+	public void testAllocation_Frame() {
+		final byte[] request = TestUtils.getRandomBytes(8000);
+		final byte[] response = TestUtils.getRandomBytes(8000);
+		final Scenario scenario = new Scenario(response);
+
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < WARMUP + RUNS; i++) {
+			final int writes = scenario.transceiver.writes;
+			final long allocated = scenario.session(request);
+			if (i >= WARMUP) {
+				min = Math.min(min, allocated / (scenario.transceiver.writes - writes));
+			}
+		}
+		scenario.close();
+		assertEquals(response.length, received.length);
+
+		assertTrue("allocated " + min + " bytes per frame, budget is " + BUDGET_FRAME, min <= BUDGET_FRAME);
+	}
+
+	private class Scenario {
+
+		private final NfcInitiator initiator;
+		private final LoopbackNfcTransceiver transceiver;
+
+		public Scenario(final byte[] response) {
+			final NfcResponder responder = new NfcResponder(responderHandler, new ITransceiveHandler() {
+				@Override
+				public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+					return response;
+				}
+			});
+			transceiver = new LoopbackNfcTransceiver(responder);
+			initiator = new NfcInitiator(initiatorHandler, TransceiverTest.userId, transceiver);
+			initiator.enable();
+		}
+
+		/*
+		 * One tap: handshake and one message in each direction. Returns the
+		 * number of bytes allocated by this thread.
+		 */
+		public long session(byte[] request) {
+			received = null;
+			final long threadId = Thread.currentThread().getId();
+			final long start = threadMXBean.getThreadAllocatedBytes(threadId);
+			initiator.initNfc();
+			initiator.transceive(request);
+			return threadMXBean.getThreadAllocatedBytes(threadId) - start;
+		}
+
+		public void close() {
+			initiator.disable();
+		}
+	}
+
+}
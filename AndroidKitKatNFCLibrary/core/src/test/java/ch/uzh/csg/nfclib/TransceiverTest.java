@@ -0,0 +1,1847 @@
+package ch.uzh.csg.nfclib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.NfcInitiator.TagDiscoveredHandler;
+import ch.uzh.csg.nfclib.events.INfcEventHandler;
+import ch.uzh.csg.nfclib.events.NfcEvent;
+import ch.uzh.csg.nfclib.messages.BlobStore;
+import ch.uzh.csg.nfclib.messages.DeltaStore;
+import ch.uzh.csg.nfclib.messages.IdempotencyCache;
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+import ch.uzh.csg.nfclib.messages.NfcMessage.Type;
+import ch.uzh.csg.nfclib.messages.OutboxJournal;
+import ch.uzh.csg.nfclib.transceiver.IAsyncNfcTransceiver;
+import ch.uzh.csg.nfclib.transceiver.INfcTransceiver;
+import ch.uzh.csg.nfclib.transceiver.INfcWriteCallback;
+import ch.uzh.csg.nfclib.utils.ILogger;
+import ch.uzh.csg.nfclib.utils.Log;
+
+public class TransceiverTest {
+
+	public static long userId = 1234567891011121314L;
+
+	private static class State {
+		NfcEvent event;
+		private byte[] response = null;
+	}
+
+	private List<State> states = new ArrayList<State>();
+
+	private INfcEventHandler eventHandler1 = new INfcEventHandler() {
+		@Override
+		public synchronized void handleMessage(NfcEvent event, Object object) {
+			State state = new State();
+			state.event = event;
+			switch (event) {
+			case FATAL_ERROR:
+				if (object != null) {
+					if (object instanceof Throwable) {
+						((Throwable) object).printStackTrace();
+					} else if (object instanceof String) {
+						state.response = ((String) object).getBytes();
+					}
+				}
+				break;
+			case MESSAGE_RECEIVED:
+				if (object != null && object instanceof byte[]) {
+					state.response = (byte[]) object;
+				}
+				break;
+			default:
+				break;
+			}
+			states.add(state);
+		}
+	};
+	
+	private INfcEventHandler eventHandler2 = new INfcEventHandler() {
+		@Override
+		public synchronized void handleMessage(NfcEvent event, Object object) {
+			State state = new State();
+			state.event = event;
+			switch (event) {
+			case FATAL_ERROR:
+				if (object != null) {
+					if (object instanceof Throwable) {
+						((Throwable) object).printStackTrace();
+					} else if (object instanceof String) {
+						state.response = ((String) object).getBytes();
+					}
+				}
+				break;
+			case MESSAGE_RECEIVED:
+				if (object != null && object instanceof byte[]) {
+					state.response = (byte[]) object;
+				}
+				break;
+			default:
+				break;
+			}
+			states.add(state);
+			if(event != NfcEvent.INITIALIZED) {
+				if (object != null && object instanceof byte[]) {
+					byteCallable.set((byte[]) object);
+				} else {
+					byteCallable.set(null);
+				}
+			}
+		}
+	};
+	
+	private ByteCallable byteCallable = null;
+	private FutureTask<byte[]> futureTask = null;
+	
+	private static class ByteCallable implements Callable<byte[]> {
+		private byte[] value;
+		private FutureTask<byte[]> futureTask;
+
+		public void set(byte[] value) {
+			synchronized (this) {
+				this.value = value;
+			}
+			futureTask.run();
+		}
+
+		public void future(FutureTask<byte[]> futureTask) {
+			synchronized (this) {
+				this.futureTask = futureTask;
+			}
+		}
+
+		@Override
+		public byte[] call() throws Exception {
+			synchronized (this) {
+				return value;
+			}
+		}
+	};
+
+	private class MyNfcTransceiverImpl implements INfcTransceiver {
+
+		private boolean enabled = false;
+		private final NfcResponder customHostApduService;
+		private int counterRequest = 0;
+		private int counterResponse = 0;
+		private final int limitRequest;
+		private final int limitResponse;
+		private final boolean process;
+		private final int timeout;
+		private int maxLen = 30;
+		// rejects frames longer than maxLen, as the ACR122u does
+		private boolean strict = false;
+		private int ticketResumes = 0;
+		// drops the response to the n-th handshake, 0 for none
+		private int dropHandshake = 0;
+		private int handshakes = 0;
+		// drops the n-th write before it reaches the responder, 0 for none
+		private int dropWrite = 0;
+		// flips a bit in every n-th frame with checksum, alternating request and response
+		private int corrupt = 0;
+		private int counterCorrupt = 0;
+		private int corrupted = 0;
+		// flips a bit of the header instead of the checksum
+		private boolean corruptHeader = false;
+		private int writes = 0;
+		// runs onWrite at the beginning of the n-th write, 0 for none
+		private int hookWrite = 0;
+		private Runnable onWrite = null;
+		// time the counterpart needs to answer a frame
+		private int delay = 0;
+		private volatile int writeTimeout = 0;
+		private volatile int lastTimeout = 0;
+		private volatile boolean cancelled = false;
+		private volatile boolean writing = false;
+
+		private TagDiscoveredHandler handler;
+
+		public MyNfcTransceiverImpl(NfcResponder customHostApduService, int limitRequest, int limitResponse, boolean process, int timeout) {
+			this.customHostApduService = customHostApduService;
+			this.limitRequest = limitRequest;
+			this.limitResponse = limitResponse;
+			this.process = process;
+			this.timeout = timeout;
+		}
+
+		@Override
+		public NfcMessage write(NfcMessage input) throws IOException {
+			writing = true;
+			try {
+				return transfer(input);
+			} finally {
+				writing = false;
+			}
+		}
+
+		private NfcMessage transfer(NfcMessage input) throws IOException {
+			writes++;
+			if (writes == hookWrite) {
+				onWrite.run();
+			}
+			if (strict && input.bytes().length > maxLen) {
+				throw new IllegalArgumentException("the message is longer than " + maxLen + " bytes");
+			}
+			lastTimeout = writeTimeout;
+			final long start = System.currentTimeMillis();
+			while (System.currentTimeMillis() - start < delay) {
+				if (cancelled) {
+					throw new IOException("fake cancel");
+				}
+				if (writeTimeout > 0 && System.currentTimeMillis() - start >= writeTimeout) {
+					throw new IOException("fake timeout");
+				}
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					throw new IOException("fake interrupt");
+				}
+			}
+			if (writes == dropWrite) {
+				startThread();
+				throw new IOException("fake exception");
+			}
+			if (input.isSelectAidApdu() && input.resumeFrame() != null) {
+				ticketResumes++;
+			}
+			if (input.isSelectAidApdu() && ++handshakes == dropHandshake) {
+				startThread();
+				return null;
+			}
+			if (limitRequest > 0) {
+				counterRequest++;
+				if (counterRequest > limitRequest) {
+					counterRequest = 0;
+					startThread();
+					throw new IOException("fake exception");
+				}
+			}
+			if (limitResponse > 0) {
+				counterResponse++;
+				if (counterResponse > limitResponse) {
+					counterResponse = 0;
+					if (process) {
+						customHostApduService.processIncomingData(input.bytes());
+					}
+					startThread();
+					return null;
+				} else {
+					byte[] repsonse = customHostApduService.processIncomingData(input.bytes());
+					return new NfcMessage(repsonse);
+				}
+			} else {
+				boolean corruptResponse = false;
+				byte[] request = input.bytes();
+				if (corrupt > 0 && input.hasChecksum() && ++counterCorrupt % corrupt == 0) {
+					corrupted++;
+					if ((counterCorrupt / corrupt) % 2 == 1) {
+						flip(request);
+					} else {
+						corruptResponse = true;
+					}
+				}
+				byte[] repsonse = customHostApduService.processIncomingData(request);
+				if(repsonse == null) {
+					repsonse = customHostApduService.processIncomingData(input.bytes());
+					return null;
+				}
+				if (corruptResponse) {
+					flip(repsonse);
+				}
+				return new NfcMessage(repsonse);
+			}
+		}
+
+		/*
+		 * The header bits are flipped in turn, each one in a request and in a
+		 * response.
+		 */
+		private void flip(byte[] frame) {
+			if (corruptHeader) {
+				frame[0] ^= 1 << (corrupted / 2 % 8);
+			} else {
+				frame[frame.length - 1] ^= 0x01;
+			}
+		}
+
+		private void startThread() {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					if (handler != null) {
+						try {
+							if (timeout > 0) {
+								Thread.sleep(timeout);
+							}
+							handler.tagDiscovered();
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}).start();
+		}
+
+		@Override
+		public int maxLen() {
+			return maxLen;
+		}
+
+		@Override
+		public void timeout(int timeout) {
+			writeTimeout = timeout;
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+
+		@Override
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		@Override
+		public void turnOn(TagDiscoveredHandler handler) throws NfcLibException {
+			this.handler = handler;
+		}
+
+		@Override
+		public void turnOff() {
+			disable();
+		}
+
+		@Override
+		public void enable() {
+			enabled = true;
+		}
+
+		@Override
+		public void disable() {
+			enabled = false;
+		}
+	};
+
+	/*
+	 * Completes the writes on a separate thread, like a transceiver with an
+	 * event loop.
+	 */
+	private class MyAsyncNfcTransceiverImpl extends MyNfcTransceiverImpl implements IAsyncNfcTransceiver {
+
+		private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+		public MyAsyncNfcTransceiverImpl(NfcResponder customHostApduService, int limitRequest, int limitResponse, boolean process, int timeout) {
+			super(customHostApduService, limitRequest, limitResponse, process, timeout);
+		}
+
+		@Override
+		public void write(final NfcMessage input, final INfcWriteCallback callback) {
+			executorService.execute(new Runnable() {
+				@Override
+				public void run() {
+					final NfcMessage response;
+					try {
+						response = write(input);
+					} catch (IOException e) {
+						callback.failed(e);
+						return;
+					}
+					callback.completed(response);
+				}
+			});
+		}
+	}
+
+	private boolean async = false;
+	// the transceiver created by the last call of createTransceiver
+	private MyNfcTransceiverImpl nfcTransceiver = null;
+
+	public NfcInitiator createTransceiver() {
+		return createTransceiver((byte[]) null, -1, -1, false, -1, false, -1);
+	}
+
+	public NfcInitiator createTransceiver(final byte[] payload) {
+		return createTransceiver(payload, -1, -1, false, -1, false, -1);
+	}
+
+	public NfcInitiator createTransceiver(final byte[] payload, int limitRequest, int limitResponse, boolean process, int timeout, final boolean sendLaterr, final int sendLaterTimeout) {
+		final NfcResponder customHostApduService = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+
+	        @Override
+	        public byte[] handleMessage(byte[] message, final ISendLater sendLater) {
+	        	if(sendLaterr) {
+	        		new Thread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+                                Thread.sleep(sendLaterTimeout);
+                            } catch (InterruptedException e) {
+                                e.printStackTrace();
+                            }
+							sendLater.sendLater(payload);
+						}
+					}).start();
+	        		return null;
+	        	}
+		        if (payload != null) {
+			        return payload;
+		        } else {
+			        return new NfcMessage(Type.DEFAULT).bytes();
+		        }
+
+	        }
+        });
+		return createTransceiver(customHostApduService, limitRequest, limitResponse, process, timeout);
+	}
+
+	public NfcInitiator createTransceiver(NfcResponder customHostApduService) {
+		return createTransceiver(customHostApduService, -1, -1, false, -1);
+	}
+
+	public NfcInitiator createTransceiver(NfcResponder customHostApduService, int limitRequest, int limitResponse, boolean process, int timeout) {
+		MyNfcTransceiverImpl myNfcTransceiverImpl = async ? new MyAsyncNfcTransceiverImpl(customHostApduService, limitRequest, limitResponse, process, timeout) : new MyNfcTransceiverImpl(customHostApduService, limitRequest, limitResponse, process, timeout);
+		NfcInitiator nfc = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		nfc.enable();
+		nfcTransceiver = myNfcTransceiverImpl;
+		return nfc;
+	}
+	
+	final static ILogger logger = new ILogger() {
+		@Override
+		public void d(String tag, String msg, Throwable tr) {
+			System.err.println("DBG:{"+Thread.currentThread().getName()+"}" + tag + ": " + msg);
+		}
+
+		@Override
+		public void w(String tag, String msg, Throwable tr) {
+			System.err.println("DBG:{"+Thread.currentThread().getName()+"}" + tag + ": " + msg);
+		}
+
+		@Override
+		public void e(String tag, String msg, Throwable tr) {
+			System.err.println("ERR:{"+Thread.currentThread().getName()+"}" + tag + ": " + msg + (tr == null ? "" : " " + tr));
+		}
+	};
+
+	@Before
+	public void before() {
+		Log.logger(logger);
+	}
+
+	private void reset() {
+		states.clear();
+		async = false;
+		
+		if(byteCallable != null) {
+			byteCallable.set(null);
+		}
+		byteCallable = new ByteCallable();
+		futureTask = new FutureTask<byte[]>(byteCallable);
+		byteCallable.future(futureTask);
+	}
+
+	@Test
+	public void testInitNfc() throws IOException, InterruptedException {
+		reset();
+
+		NfcInitiator transceiver = createTransceiver();
+		transceiver.initNfc();
+
+		assertEquals(2, states.size());
+
+		assertEquals(NfcEvent.INITIALIZED, states.get(0).event);
+		assertEquals(NfcEvent.INITIALIZED, states.get(1).event);
+	}
+
+	@Test
+	public void testInitNfc_Fail() throws IOException, InterruptedException, NfcLibException {
+		reset();
+
+		NfcResponder c = mock(NfcResponder.class);
+		// return error after first message
+		when(c.processIncomingData(any(byte[].class))).thenReturn(new NfcMessage(Type.ERROR).bytes());
+		NfcInitiator transceiver = createTransceiver(c);
+		transceiver.initNfc();
+
+		assertEquals(1, states.size());
+		assertEquals(NfcEvent.INIT_FAILED, states.get(0).event);
+	}
+
+	@Test
+	public void testTransceive_Reassembly() throws IOException, IllegalArgumentException, InterruptedException {
+		reset();
+
+		NfcInitiator transceiver = createTransceiver();
+		transceiver.initNfc();
+
+		byte[] me = TestUtils.getRandomBytes(200);
+		transceiver.transceive(me);
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me, states.get(2).response));
+	}
+	
+	@Test
+	public void testTransceiveConsecutiveLoop() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		for(int i=0;i<20;i++) {
+			testTransceiveConsecutive();
+		}
+	}
+
+	@Test
+	public void testTransceiveConsecutive() throws IOException, IllegalArgumentException, InterruptedException {
+		reset();
+
+		NfcInitiator transceiver = createTransceiver();
+		transceiver.initNfc();
+
+		byte[] me = TestUtils.getRandomBytes(200);
+		transceiver.transceive(me);
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me, states.get(2).response));
+
+		reset();
+
+		me = TestUtils.getRandomBytes(300);
+		transceiver.transceive(me);
+		
+		assertEquals(2, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(1).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(0).event);
+		assertTrue(Arrays.equals(me, states.get(0).response));
+	}
+	
+	@Test
+	public void testTransceiveBigMessagesLoop() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		for(int i=0;i<20;i++) {
+			testTransceiveBigMessages();
+		}
+	}
+
+	@Test
+	public void testTransceiveBigMessages() throws IOException, IllegalArgumentException, InterruptedException {
+		reset();
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(4000);
+		transceiver.transceive(me2);
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+
+		reset();
+
+		me2 = TestUtils.getRandomBytes(300);
+		transceiver.transceive(me2);
+		
+		assertEquals(2, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(1).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(0).event);
+		assertTrue(Arrays.equals(me2, states.get(0).response));
+		assertTrue(Arrays.equals(me1, states.get(1).response));
+	}
+
+	@Test
+	public void testTransceiveResume_SenderException() throws IOException, IllegalArgumentException, InterruptedException {
+		reset();
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(4000);
+		transceiver.transceive(me2);
+
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+
+		reset();
+		transceiver.initNfc();
+
+		me2 = TestUtils.getRandomBytes(300);
+		transceiver.transceive(me2);
+
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveResume2_SenderException() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1, 19, -1, false, -1, false, -1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(2);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveResume3_SenderException() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1, 19, -1, false, -1, false, -1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(3000);
+		transceiver.transceive(me2);
+		futureTask.get();
+
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveAsync() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+		async = true;
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(3000);
+		transceiver.transceive(me2);
+		futureTask.get();
+
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveResumeAsync_SenderException() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+		async = true;
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1, 19, -1, false, -1, false, -1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(3000);
+		transceiver.transceive(me2);
+		futureTask.get();
+
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveResume1_ReceiverException() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1, -1, 19, false, -1, false, -1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(3000);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveResume_HandshakeLost() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		final byte[] me1 = TestUtils.getRandomBytes(200);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return me1;
+			}
+		});
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, 5, true, -1);
+		// the response to the first resume is lost as well
+		myNfcTransceiverImpl.dropHandshake = 2;
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.enable();
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(200);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		assertTrue(myNfcTransceiverImpl.handshakes > 2);
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveResume2_ReceiverException() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1, -1, 19, true, -1, false, -1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(3000);
+		transceiver.transceive(me2);
+		futureTask.get();
+
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveResume3_ReceiverExceptionLoop() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		for(int i=0;i<20;i++) {
+			testTransceiveResume3_ReceiverException();
+		}
+	}
+	
+	@Test
+	public void testTransceiveResume3_ReceiverException() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1, -1, 40, true, -1, false, -1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(3000);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+
+		reset();
+		me2 = TestUtils.getRandomBytes(3001);
+		transceiver.transceive(me2);
+		futureTask.get();
+
+		assertEquals(2, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(1).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(0).event);
+		assertTrue(Arrays.equals(me2, states.get(0).response));
+		assertTrue(Arrays.equals(me1, states.get(1).response));
+	}
+
+	@Test
+	public void testUltimate() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1, 42, 45, true, -1, false, -1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(3000);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+
+		reset();
+		me2 = TestUtils.getRandomBytes(3000);
+		transceiver.transceive(me2);
+		futureTask.get();
+
+		assertEquals(2, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(1).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(0).event);
+		assertTrue(Arrays.equals(me2, states.get(0).response));
+		assertTrue(Arrays.equals(me1, states.get(1).response));
+
+		reset();
+	}
+	
+	@Test
+	public void testTransceiveNoTimeout() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1, 27, 34, true, 300, false, -1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(3000);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+	}
+	
+	@Test
+	public void testTransceiveTimeout2() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1, 24, 18, true, 600, false, -1);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(3000);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		// if we sleep here, we will see two more events: INITIALIZED. This is
+		// due to onTagDiscovered, that this test will throw. So we'll
+		// initialize the library again.
+		Thread.sleep(1500);
+		
+		assertEquals(5, states.size());
+		assertEquals(NfcEvent.CONNECTION_LOST, states.get(2).event);
+	}
+	
+	@Test
+	public void testPolling() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+		
+		byte[] me1 = TestUtils.getRandomBytes(2000);
+		NfcInitiator transceiver = createTransceiver(me1, -1, 50, false, -1, true, 10);
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(3000);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+	
+	@Test
+	public void testTransceive_IllegalVersion_Responder() throws IOException, InterruptedException, NfcLibException, ExecutionException {
+		/*
+		 * Test when the NfcResponder returns a NfcMessage with an illegal
+		 * version
+		 */
+		reset();
+
+		// the NfcMessage with the invalid sequence number
+		byte header = (byte) 0x1C; // 00011100 (Type == USER_ID)
+		byte sqNr = 0x01;
+		NfcMessage m2 = new NfcMessage(new byte[] { header, sqNr });
+		
+		NfcResponder c = mock(NfcResponder.class);
+		when(c.processIncomingData(any(byte[].class)))
+			.thenReturn(new NfcMessage(Type.AID).response().bytes())
+			.thenReturn(m2.bytes());
+		
+		NfcInitiator transceiver = createTransceiver(c);
+		transceiver.initNfc();
+		
+		assertEquals(1, states.size());
+		assertEquals(NfcEvent.FATAL_ERROR, states.get(0).event);
+		assertNotNull(states.get(0).response);
+		assertEquals(NfcInitiator.INCOMPATIBLE_VERSIONS, new String(states.get(0).response));
+	}
+	
+	@Test
+	public void testTransceive_IllegalVersion_Initiator() throws IOException, InterruptedException, NfcLibException, ExecutionException {
+		/*
+		 * Test when the NfcInitiator sends a NfcMessage with an illegal version
+		 */
+		reset();
+
+		// the NfcMessage with the invalid sequence number
+		byte header = (byte) 0x1C; // 00011100 (Type == USER_ID)
+		byte sqNr = 0x01;
+		NfcMessage m2 = new NfcMessage(new byte[] { header, sqNr });
+		
+		NfcResponder responder = new NfcResponder(eventHandler1, null);
+		byte[] response = responder.processIncomingData(m2.bytes());
+		
+		assertEquals(1, states.size());
+		assertEquals(NfcEvent.FATAL_ERROR, states.get(0).event);
+		assertNotNull(states.get(0).response);
+		assertEquals(NfcInitiator.INCOMPATIBLE_VERSIONS, new String(states.get(0).response));
+		
+		assertNotNull(response);
+		NfcMessage msg = new NfcMessage(response);
+		assertTrue(msg.isError());
+		assertNotNull(msg.payload());
+		assertEquals(NfcInitiator.INCOMPATIBLE_VERSIONS, new String((byte[]) msg.payload()));
+	}
+	
+	@Test
+	public void testPolling_NfcInitiator() throws Exception {
+		reset();
+
+		byte[] me1 = TestUtils.getRandomBytes(20);
+		final byte[] me2 = TestUtils.getRandomBytes(20);
+		
+		final NfcInitiator transceiver = createTransceiver(me1, 1000, 1000, true, -1, false, -1);
+		transceiver.initNfc();
+		
+		/*
+		 * startPolling blocks, so the message is provided by the transceiver
+		 * after a fixed number of polls. Unlike a timer, this does not depend
+		 * on how fast the polls are, and the limits of 1000 frames are not
+		 * reached.
+		 */
+		nfcTransceiver.hookWrite = nfcTransceiver.writes + 20;
+		nfcTransceiver.onWrite = new Runnable() {
+			@Override
+			public void run() {
+				transceiver.sendLater(me2);
+			}
+		};
+		transceiver.startPolling();
+
+		futureTask.get();
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+
+		reset();
+	}
+	
+	@Test
+	public void testPolling_Outbox() throws Exception {
+		reset();
+
+		final byte[][] results = new byte[][] { TestUtils.getRandomBytes(20), TestUtils.getRandomBytes(100), TestUtils.getRandomBytes(5) };
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				for (byte[] result : results) {
+					sendLater.sendLater(result);
+				}
+				return null;
+			}
+		});
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.enable();
+		transceiver.initNfc();
+		
+		transceiver.transceive(TestUtils.getRandomBytes(10));
+		for (int i = 0; i < 100 && states.size() < 6; i++) {
+			Thread.sleep(10);
+		}
+		
+		// all results are streamed back in order during the same polling
+		assertEquals(6, states.size());
+		for (int i = 0; i < results.length; i++) {
+			assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3 + i).event);
+			assertTrue(Arrays.equals(results[i], states.get(3 + i).response));
+		}
+	}
+	
+	@Test
+	public void testSendLater_OutboxFull() throws Exception {
+		reset();
+
+		final List<Exception> exceptions = new ArrayList<Exception>();
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				try {
+					for (int i = 0; i <= NfcInitiator.OUTBOX_CAPACITY; i++) {
+						sendLater.sendLater(new byte[] { (byte) i });
+					}
+				} catch (IllegalStateException e) {
+					exceptions.add(e);
+				}
+				return null;
+			}
+		});
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.enable();
+		transceiver.initNfc();
+		
+		transceiver.transceive(TestUtils.getRandomBytes(10));
+		futureTask.get();
+		
+		// the offer beyond the capacity fails instead of overwriting
+		assertEquals(1, exceptions.size());
+	}
+	
+	@Test
+	public void testTransceiveDeadline() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		transceiveDeadline(false);
+	}
+
+	@Test
+	public void testTransceiveDeadline_SecureChannel() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		transceiveDeadline(true);
+	}
+
+	private void transceiveDeadline(boolean secureChannel) throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		final byte[] me1 = TestUtils.getRandomBytes(4000);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return me1;
+			}
+		});
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		if (secureChannel) {
+			byte[] key = TestUtils.getRandomBytes(16);
+			responder.secureChannel(key);
+			transceiver.secureChannel(key);
+		}
+		transceiver.enable();
+		transceiver.initNfc();
+		myNfcTransceiverImpl.delay = 20;
+
+		final long start = System.currentTimeMillis();
+		transceiver.transceive(TestUtils.getRandomBytes(200), 150);
+		futureTask.get();
+		
+		// the remaining time is handed to the transceiver, the request fails soon after the deadline
+		assertTrue(System.currentTimeMillis() - start < 400);
+		assertTrue(myNfcTransceiverImpl.lastTimeout > 0 && myNfcTransceiverImpl.lastTimeout <= 150);
+		assertEquals(NfcEvent.FATAL_ERROR, states.get(states.size() - 1).event);
+		assertTrue(Arrays.equals(NfcInitiator.DEADLINE_EXCEEDED.getBytes(), states.get(states.size() - 1).response));
+		
+		// the responder holds a part of the request
+		transceiveNextSession(transceiver, myNfcTransceiverImpl, me1);
+	}
+
+	@Test
+	public void testTransceiveCancel() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		transceiveCancel(false);
+	}
+
+	@Test
+	public void testTransceiveCancel_SecureChannel() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		transceiveCancel(true);
+	}
+
+	private void transceiveCancel(boolean secureChannel) throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		final byte[] me1 = TestUtils.getRandomBytes(10);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return me1;
+			}
+		});
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		final NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		if (secureChannel) {
+			byte[] key = TestUtils.getRandomBytes(16);
+			responder.secureChannel(key);
+			transceiver.secureChannel(key);
+		}
+		transceiver.enable();
+		transceiver.initNfc();
+		myNfcTransceiverImpl.delay = 5000;
+
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				transceiver.cancel();
+			}
+		}).start();
+		final long start = System.currentTimeMillis();
+		transceiver.transceive(TestUtils.getRandomBytes(10));
+		futureTask.get();
+		
+		// the pending write is aborted, no connection lost is reported
+		assertTrue(myNfcTransceiverImpl.cancelled);
+		assertTrue(System.currentTimeMillis() - start < 400);
+		assertEquals(NfcEvent.FATAL_ERROR, states.get(states.size() - 1).event);
+		assertTrue(Arrays.equals(NfcInitiator.REQUEST_CANCELLED.getBytes(), states.get(states.size() - 1).response));
+		
+		// the secure channel has sealed a message the responder never got
+		transceiveNextSession(transceiver, myNfcTransceiverImpl, me1);
+	}
+
+	/*
+	 * An aborted request ends the session. The next request is sent after the
+	 * handshake with the next NFC device discovered, and arrives as is.
+	 */
+	private void transceiveNextSession(NfcInitiator transceiver, MyNfcTransceiverImpl myNfcTransceiverImpl, byte[] response) throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		byte[] me2 = new byte[] { 9, 9, 9 };
+		try {
+			transceiver.transceive(me2);
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			// init not done
+		}
+		
+		// the aborted write returns before the next device is discovered
+		while (myNfcTransceiverImpl.writing) {
+			Thread.sleep(1);
+		}
+		reset();
+		myNfcTransceiverImpl.delay = 0;
+		transceiver.initNfc();
+		
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertTrue(Arrays.equals(response, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveCorrupt() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		final byte[] me1 = TestUtils.getRandomBytes(4000);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return me1;
+			}
+		});
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		myNfcTransceiverImpl.corrupt = 7;
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.enable();
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(200);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		// corrupt requests and responses are transmitted again
+		assertTrue(myNfcTransceiverImpl.corrupted > 10);
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveCorrupt_Header() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		final byte[] me1 = TestUtils.getRandomBytes(4000);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return me1;
+			}
+		});
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		myNfcTransceiverImpl.corrupt = 3;
+		myNfcTransceiverImpl.corruptHeader = true;
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.enable();
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(200);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		// a changed type or version is detected as well, no new session is started
+		assertTrue(myNfcTransceiverImpl.corrupted >= 16);
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveSecureChannel() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		final byte[] key = TestUtils.getRandomBytes(16);
+		final byte[] me1 = TestUtils.getRandomBytes(4000);
+		final byte[] me2 = TestUtils.getRandomBytes(200);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				assertTrue(Arrays.equals(me2, message));
+				return me1;
+			}
+		});
+		responder.secureChannel(key);
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.secureChannel(key);
+		transceiver.enable();
+		transceiver.initNfc();
+
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveSecureChannel_Pipelined() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		// both messages are large enough to be sealed while being sent
+		final byte[] key = TestUtils.getRandomBytes(16);
+		final byte[] me1 = TestUtils.getRandomBytes(20000);
+		final byte[] me2 = TestUtils.getRandomBytes(12000);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				assertTrue(Arrays.equals(me2, message));
+				return me1;
+			}
+		});
+		responder.secureChannel(key);
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		myNfcTransceiverImpl.corrupt = 50;
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.secureChannel(key);
+		transceiver.enable();
+		transceiver.initNfc();
+
+		transceiver.transceive(me2);
+		futureTask.get();
+
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+		assertTrue(myNfcTransceiverImpl.corrupted > 0);
+	}
+
+	@Test
+	public void testTransceiveSecureChannel_WrongKey() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return message;
+			}
+		});
+		responder.secureChannel(TestUtils.getRandomBytes(16));
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.secureChannel(TestUtils.getRandomBytes(16));
+		transceiver.enable();
+		transceiver.initNfc();
+
+		transceiver.transceive(TestUtils.getRandomBytes(200));
+		futureTask.get();
+		
+		// the responder cannot authenticate the message
+		assertEquals(NfcEvent.FATAL_ERROR, states.get(2).event);
+		assertTrue(Arrays.equals(NfcInitiator.SECURE_CHANNEL_ERROR.getBytes(), states.get(2).response));
+	}
+
+	@Test
+	public void testMaxMessageSize() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		final byte[] response = TestUtils.getRandomBytes(3000);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return response;
+			}
+		});
+		responder.maxMessageSize(1000);
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.maxMessageSize(2000);
+		transceiver.enable();
+		transceiver.initNfc();
+
+		// rejected before sending
+		final int writes = myNfcTransceiverImpl.writes;
+		try {
+			transceiver.transceive(TestUtils.getRandomBytes(1001));
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			assertEquals(writes, myNfcTransceiverImpl.writes);
+		}
+
+		// the responder does not send a response larger than the limit of the initiator
+		transceiver.transceive(TestUtils.getRandomBytes(1000));
+		futureTask.get();
+
+		// both sides are notified
+		assertEquals(5, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertEquals(NfcEvent.FATAL_ERROR, states.get(3).event);
+		assertEquals(NfcEvent.FATAL_ERROR, states.get(4).event);
+		assertTrue(Arrays.equals(NfcInitiator.MESSAGE_TOO_LARGE.getBytes(), states.get(4).response));
+	}
+
+	private int transceiveDelta(DeltaStore initiatorStore, DeltaStore responderStore, final byte[] request, final byte[] response) throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		return transceiveStores(initiatorStore, responderStore, null, null, request, response);
+	}
+
+	private int transceiveStores(DeltaStore initiatorStore, DeltaStore responderStore, BlobStore initiatorBlobs, BlobStore responderBlobs, final byte[] request, final byte[] response) throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+		
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return response;
+			}
+		}, 42);
+		responder.deltaStore(responderStore);
+		responder.blobStore(responderBlobs);
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.deltaStore(initiatorStore);
+		transceiver.blobStore(initiatorBlobs);
+		transceiver.enable();
+		transceiver.initNfc();
+
+		transceiver.transceive(request);
+		futureTask.get();
+		
+		assertEquals(4, states.size());
+		assertTrue(Arrays.equals(request, states.get(2).response));
+		assertTrue(Arrays.equals(response, states.get(3).response));
+		return myNfcTransceiverImpl.writes;
+	}
+
+	@Test
+	public void testTransceiveDelta() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		DeltaStore initiatorStore = new DeltaStore();
+		DeltaStore responderStore = new DeltaStore();
+		byte[] request = TestUtils.getRandomBytes(500);
+		byte[] response = TestUtils.getRandomBytes(1000);
+		int writesFull = transceiveDelta(initiatorStore, responderStore, request, response);
+		
+		// the next session only transmits the changed bytes
+		request[100]++;
+		response[500]++;
+		int writesDelta = transceiveDelta(initiatorStore, responderStore, request, response);
+		assertTrue(writesDelta < writesFull / 4);
+		
+		// the responder lost its store, the full messages are requested
+		request[200]++;
+		response[600]++;
+		int writesMiss = transceiveDelta(initiatorStore, new DeltaStore(), request, response);
+		assertTrue(writesMiss > writesFull);
+	}
+
+	@Test
+	public void testTransceiveBlob() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "nfclib-blob-transceiver-test");
+		BlobStore initiatorBlobs = new BlobStore(new File(directory, "initiator"));
+		BlobStore responderBlobs = new BlobStore(new File(directory, "responder"));
+		initiatorBlobs.clear();
+		responderBlobs.clear();
+		byte[] request = TestUtils.getRandomBytes(3000);
+		byte[] response = TestUtils.getRandomBytes(3000);
+		int writesFull = transceiveStores(null, null, initiatorBlobs, responderBlobs, request, response);
+		
+		// the next session only transmits the hashes
+		int writesBlob = transceiveStores(null, null, initiatorBlobs, responderBlobs, request, response);
+		assertTrue(writesBlob < writesFull / 4);
+		
+		// another counterpart does not know the blobs, the full messages are requested
+		BlobStore otherBlobs = new BlobStore(new File(directory, "other"));
+		otherBlobs.clear();
+		int writesMiss = transceiveStores(null, null, initiatorBlobs, otherBlobs, request, response);
+		assertTrue(writesMiss > writesFull);
+		initiatorBlobs.clear();
+		responderBlobs.clear();
+		otherBlobs.clear();
+	}
+
+	@Test
+	public void testSubscriber() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+		
+		final byte[] request = TestUtils.getRandomBytes(500);
+		final byte[] response = TestUtils.getRandomBytes(500);
+		final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+		final IMessageSubscription[] subscription = new IMessageSubscription[1];
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				// only handled once the subscriber requested it
+				assertEquals(1, received.size());
+				return response;
+			}
+		}, 42);
+		responder.subscribe(new IMessageSubscriber() {
+			@Override
+			public void onSubscribe(IMessageSubscription s) {
+				subscription[0] = s;
+			}
+
+			@Override
+			public void onNext(byte[] message) {
+				received.add(message);
+			}
+		});
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.enable();
+		transceiver.initNfc();
+		
+		// the subscriber is busy, the message is held back and the initiator polls
+		final boolean[] heldBack = new boolean[1];
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					return;
+				}
+				heldBack[0] = received.isEmpty();
+				subscription[0].request(1);
+			}
+		};
+		consumer.start();
+		transceiver.transceive(request);
+		futureTask.get();
+		consumer.join();
+		assertTrue(heldBack[0]);
+		assertEquals(1, received.size());
+		assertTrue(Arrays.equals(request, received.get(0)));
+		assertEquals(4, states.size());
+		assertTrue(Arrays.equals(response, states.get(3).response));
+	}
+
+	@Test
+	public void testOutboxJournal() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+		
+		File file = new File(System.getProperty("java.io.tmpdir"), "nfclib-journal-transceiver-test");
+		file.delete();
+		// a receipt which could not be sent in an earlier session
+		byte[] receipt = TestUtils.getRandomBytes(300);
+		new OutboxJournal(file).append(userId, receipt);
+		
+		final byte[] response = TestUtils.getRandomBytes(100);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return response;
+			}
+		}, 42);
+		OutboxJournal journal = new OutboxJournal(file);
+		responder.outboxJournal(journal);
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.enable();
+		transceiver.initNfc();
+		
+		byte[] request = TestUtils.getRandomBytes(100);
+		transceiver.transceive(request);
+		
+		// the receipt follows the response
+		assertEquals(5, states.size());
+		assertTrue(Arrays.equals(response, states.get(3).response));
+		assertTrue(Arrays.equals(receipt, states.get(4).response));
+		// the receipt may have been lost on the way
+		assertEquals(1, journal.size());
+		
+		// the next request proves that the receipt has been received
+		reset();
+		transceiver.transceive(request);
+		futureTask.get();
+		assertTrue(Arrays.equals(response, states.get(states.size() - 1).response));
+		assertEquals(0, journal.size());
+		assertEquals(0, new OutboxJournal(file).size());
+		file.delete();
+	}
+
+	@Test
+	public void testIdempotency() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+		
+		final AtomicInteger handled = new AtomicInteger();
+		final byte[] response = TestUtils.getRandomBytes(1000);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				handled.incrementAndGet();
+				return response;
+			}
+		}, 42);
+		responder.idempotencyCache(new IdempotencyCache());
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, new MyNfcTransceiverImpl(responder, -1, -1, false, -1));
+		transceiver.enable();
+		transceiver.initNfc();
+		
+		byte[] request = TestUtils.getRandomBytes(500);
+		transceiver.transceive(request);
+		futureTask.get();
+		assertEquals(1, handled.get());
+		assertEquals(4, states.size());
+		assertTrue(Arrays.equals(response, states.get(3).response));
+		
+		// a distinct request with the same payload
+		reset();
+		transceiver.transceive(request);
+		futureTask.get();
+		assertEquals(2, handled.get());
+		assertEquals(2, states.size());
+		assertTrue(Arrays.equals(response, states.get(1).response));
+		
+		// the protocol is restarted and the request is sent again with its id
+		reset();
+		transceiver.transceive(request, 0, 42);
+		futureTask.get();
+		assertEquals(3, handled.get());
+		reset();
+		transceiver = new NfcInitiator(eventHandler2, userId, new MyNfcTransceiverImpl(responder, -1, -1, false, -1));
+		transceiver.enable();
+		transceiver.initNfc();
+		transceiver.transceive(request, 0, 42);
+		futureTask.get();
+		assertEquals(3, handled.get());
+		assertEquals(3, states.size());
+		assertTrue(Arrays.equals(response, states.get(2).response));
+	}
+
+	@Test
+	public void testChannels() throws Exception {
+		reset();
+		
+		final byte[] key = TestUtils.getRandomBytes(16);
+		final byte[] bulk = TestUtils.getRandomBytes(4000);
+		final byte[] urgent = TestUtils.getRandomBytes(10);
+		final CountDownLatch bulkStarted = new CountDownLatch(1);
+		final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+		// the number of events of the default channel when the bulk transfer completed
+		final List<Integer> statesBefore = Collections.synchronizedList(new ArrayList<Integer>());
+		
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return urgent;
+			}
+		});
+		responder.channel(1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				bulkStarted.countDown();
+				return bulk;
+			}
+		});
+		responder.secureChannel(key);
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		final NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.channel(1, 1, new INfcEventHandler() {
+			@Override
+			public void handleMessage(NfcEvent event, Object object) {
+				if (event == NfcEvent.MESSAGE_RECEIVED) {
+					statesBefore.add(states.size());
+					received.add((byte[]) object);
+				}
+			}
+		});
+		transceiver.secureChannel(key);
+		transceiver.enable();
+		transceiver.initNfc();
+		myNfcTransceiverImpl.delay = 2;
+		
+		Thread bulkThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				transceiver.transceive(1, TestUtils.getRandomBytes(100));
+			}
+		});
+		bulkThread.start();
+		bulkStarted.await();
+		
+		transceiver.transceive(TestUtils.getRandomBytes(10));
+		futureTask.get();
+		
+		bulkThread.join();
+		assertEquals(1, received.size());
+		assertTrue(Arrays.equals(bulk, received.get(0)));
+		
+		// the urgent message is interleaved with the bulk transfer and not stuck behind it
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(states.size() - 1).event);
+		assertTrue(Arrays.equals(urgent, states.get(states.size() - 1).response));
+		assertEquals(states.size(), (int) statesBefore.get(0));
+	}
+
+	@Test
+	public void testStaged() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		for (int size : new int[] { 5, 4000 }) {
+			reset();
+			
+			final byte[] staged = TestUtils.getRandomBytes(size);
+			final byte[] me1 = TestUtils.getRandomBytes(100);
+			NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+				@Override
+				public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+					return me1;
+				}
+			});
+			responder.stage(staged);
+			MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+			myNfcTransceiverImpl.maxLen = 245;
+			NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+			transceiver.enable();
+			transceiver.initNfc();
+			futureTask.get();
+			
+			// the staged payload arrives without sending a request
+			assertEquals(3, states.size());
+			assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+			assertTrue(Arrays.equals(staged, states.get(2).response));
+			if (size == 5) {
+				assertEquals(1, myNfcTransceiverImpl.writes);
+			}
+			
+			reset();
+			byte[] me2 = TestUtils.getRandomBytes(50);
+			transceiver.transceive(me2);
+			futureTask.get();
+			assertEquals(2, states.size());
+			assertTrue(Arrays.equals(me2, states.get(0).response));
+			assertTrue(Arrays.equals(me1, states.get(1).response));
+		}
+	}
+
+	@Test
+	public void testTransceiveResume_SessionTicket() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		final byte[] me1 = TestUtils.getRandomBytes(4000);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return me1;
+			}
+		});
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, 10, -1, false, -1);
+		myNfcTransceiverImpl.maxLen = 245;
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.enable();
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(2);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		// the pending get next fragment is piggybacked on the resume
+		assertTrue(myNfcTransceiverImpl.ticketResumes > 0);
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveResume_SessionTicketShortFrames() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		final byte[] me1 = TestUtils.getRandomBytes(500);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return me1;
+			}
+		});
+		byte[] key = TestUtils.getRandomBytes(16);
+		responder.secureChannel(key);
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, 10, -1, false, -1);
+		myNfcTransceiverImpl.maxLen = 53;
+		myNfcTransceiverImpl.strict = true;
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.secureChannel(key);
+		transceiver.enable();
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(2);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		// without the nonce, the pending message is piggybacked on the resume
+		assertTrue(myNfcTransceiverImpl.ticketResumes > 0);
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveResume_LongAid() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		final byte[] me1 = TestUtils.getRandomBytes(500);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return me1;
+			}
+		});
+		byte[] key = TestUtils.getRandomBytes(16);
+		responder.secureChannel(key);
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, 10, -1, false, -1);
+		myNfcTransceiverImpl.maxLen = 53;
+		myNfcTransceiverImpl.strict = true;
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.aid(TestUtils.getRandomBytes(NfcMessage.MAX_AID_LENGTH));
+		transceiver.secureChannel(key);
+		transceiver.enable();
+		transceiver.initNfc();
+
+		byte[] me2 = TestUtils.getRandomBytes(2);
+		transceiver.transceive(me2);
+		futureTask.get();
+		
+		// the handshakes with the long AID do not fit, they need two steps
+		assertEquals(0, myNfcTransceiverImpl.ticketResumes);
+		assertEquals(4, states.size());
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(2).event);
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(3).event);
+		assertTrue(Arrays.equals(me2, states.get(2).response));
+		assertTrue(Arrays.equals(me1, states.get(3).response));
+	}
+
+	@Test
+	public void testTransceiveResume_Refused() throws IOException, IllegalArgumentException, InterruptedException, ExecutionException {
+		reset();
+
+		final byte[] me1 = TestUtils.getRandomBytes(100);
+		NfcResponder responder = new NfcResponder(eventHandler1, new ITransceiveHandler() {
+			@Override
+			public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+				return me1;
+			}
+		});
+		byte[] key = TestUtils.getRandomBytes(16);
+		responder.secureChannel(key);
+		MyNfcTransceiverImpl myNfcTransceiverImpl = new MyNfcTransceiverImpl(responder, -1, -1, false, -1);
+		NfcInitiator transceiver = new NfcInitiator(eventHandler2, userId, myNfcTransceiverImpl);
+		transceiver.secureChannel(key);
+		transceiver.enable();
+		transceiver.initNfc();
+
+		// another initiator takes over the session of the responder
+		INfcEventHandler ignore = new INfcEventHandler() {
+			@Override
+			public void handleMessage(NfcEvent event, Object object) {
+			}
+		};
+		NfcInitiator other = new NfcInitiator(ignore, userId + 1, new MyNfcTransceiverImpl(responder, -1, -1, false, -1));
+		other.secureChannel(key);
+		other.enable();
+		other.initNfc();
+
+		// the request is lost, the resume without a nonce is refused
+		myNfcTransceiverImpl.dropWrite = myNfcTransceiverImpl.writes + 1;
+		transceiver.transceive(TestUtils.getRandomBytes(2));
+		final long start = System.currentTimeMillis();
+		while (count(NfcEvent.INITIALIZED) < 5 && System.currentTimeMillis() - start < 5000) {
+			Thread.sleep(10);
+		}
+		
+		// both start a new session, without an error
+		assertEquals(5, count(NfcEvent.INITIALIZED));
+		assertEquals(0, count(NfcEvent.FATAL_ERROR));
+		assertEquals(0, count(NfcEvent.INIT_FAILED));
+		
+		reset();
+		byte[] me2 = TestUtils.getRandomBytes(2);
+		transceiver.transceive(me2);
+		futureTask.get();
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, states.get(states.size() - 1).event);
+		assertTrue(Arrays.equals(me1, states.get(states.size() - 1).response));
+	}
+
+	private int count(NfcEvent event) {
+		int count = 0;
+		for (State state : new ArrayList<State>(states)) {
+			if (state.event == event) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+}
@@ -0,0 +1,106 @@
+package ch.uzh.csg.nfclib.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AsyncNfcEventHandlerTest {
+	
+	private static class RecordingHandler implements INfcEventHandler {
+		private final List<NfcEvent> events = new ArrayList<NfcEvent>();
+		private final List<Object> objects = new ArrayList<Object>();
+		private final CountDownLatch blocked;
+		
+		private RecordingHandler(CountDownLatch blocked) {
+			this.blocked = blocked;
+		}
+
+		@Override
+		public void handleMessage(NfcEvent event, Object object) {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (this) {
+				events.add(event);
+				objects.add(object);
+			}
+		}
+	}
+	
+	@Test
+	public void testOrderAndCoalescing() throws InterruptedException {
+		CountDownLatch blocked = new CountDownLatch(1);
+		RecordingHandler handler = new RecordingHandler(blocked);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		AsyncNfcEventHandler async = new AsyncNfcEventHandler(handler, executor);
+		
+		// the first event is taken by the blocked handler, the rest waits
+		async.handleMessage(NfcEvent.INITIALIZED, Long.valueOf(1));
+		Thread.sleep(50);
+		async.handleMessage(NfcEvent.CONNECTION_LOST, null);
+		async.handleMessage(NfcEvent.CONNECTION_LOST, null);
+		async.handleMessage(NfcEvent.MESSAGE_RECEIVED, new byte[] { 1 });
+		async.handleMessage(NfcEvent.MESSAGE_RECEIVED, new byte[] { 1 });
+		async.handleMessage(NfcEvent.INITIALIZED, Long.valueOf(1));
+		async.handleMessage(NfcEvent.INITIALIZED, Long.valueOf(1));
+		
+		// the caller has not been blocked by the slow handler
+		assertEquals(4, async.pending());
+		
+		blocked.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+		
+		assertEquals(5, handler.events.size());
+		assertEquals(NfcEvent.INITIALIZED, handler.events.get(0));
+		assertEquals(NfcEvent.CONNECTION_LOST, handler.events.get(1));
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, handler.events.get(2));
+		assertEquals(NfcEvent.MESSAGE_RECEIVED, handler.events.get(3));
+		assertEquals(NfcEvent.INITIALIZED, handler.events.get(4));
+	}
+	
+	@Test
+	public void testBounded() throws InterruptedException {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		RecordingHandler handler = new RecordingHandler(blocked);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		final AsyncNfcEventHandler async = new AsyncNfcEventHandler(handler, executor, 2);
+		
+		async.handleMessage(NfcEvent.MESSAGE_RECEIVED, new byte[] { 0 });
+		Thread.sleep(50);
+		async.handleMessage(NfcEvent.MESSAGE_RECEIVED, new byte[] { 1 });
+		async.handleMessage(NfcEvent.MESSAGE_RECEIVED, new byte[] { 2 });
+		
+		final CountDownLatch offered = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				async.handleMessage(NfcEvent.MESSAGE_RECEIVED, new byte[] { 3 });
+				offered.countDown();
+			}
+		}).start();
+		
+		// the queue is full, the caller waits until the handler catches up
+		assertTrue(!offered.await(100, TimeUnit.MILLISECONDS));
+		blocked.countDown();
+		assertTrue(offered.await(1, TimeUnit.SECONDS));
+		
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+		assertEquals(4, handler.objects.size());
+		for (int i = 0; i < 4; i++) {
+			assertEquals(i, ((byte[]) handler.objects.get(i))[0]);
+		}
+	}
+
+}
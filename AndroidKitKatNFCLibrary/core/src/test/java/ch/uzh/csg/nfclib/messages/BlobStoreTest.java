@@ -0,0 +1,83 @@
+package ch.uzh.csg.nfclib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.TestUtils;
+
+public class BlobStoreTest {
+
+	private static BlobStore newStore(String name, long maxLength) {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "nfclib-blob-test-" + name);
+		BlobStore store = new BlobStore(directory, maxLength, 1024);
+		store.clear();
+		return store;
+	}
+
+	@Test
+	public void testEncodeDecode() {
+		BlobStore sender = newStore("sender", BlobStore.DEFAULT_MAX_LENGTH);
+		BlobStore receiver = newStore("receiver", BlobStore.DEFAULT_MAX_LENGTH);
+
+		byte[] payload = TestUtils.getRandomBytes(5000);
+		byte[] encoded = sender.encode(payload);
+		// sent for the first time
+		assertEquals(payload.length + 1, encoded.length);
+		assertArrayEquals(payload, receiver.decode(encoded));
+
+		// only the hash is sent the next time
+		encoded = sender.encode(payload);
+		assertEquals(33, encoded.length);
+		assertArrayEquals(payload, receiver.decode(encoded));
+
+		// small payloads are always sent inline
+		byte[] small = TestUtils.getRandomBytes(100);
+		sender.encode(small);
+		assertEquals(small.length + 1, sender.encode(small).length);
+
+		// the blobs survive a restart
+		BlobStore restarted = new BlobStore(new File(System.getProperty("java.io.tmpdir"), "nfclib-blob-test-receiver"), BlobStore.DEFAULT_MAX_LENGTH, 1024);
+		assertArrayEquals(payload, restarted.decode(encoded));
+		sender.clear();
+		receiver.clear();
+	}
+
+	@Test
+	public void testDecode_Unknown() {
+		BlobStore sender = newStore("sender", BlobStore.DEFAULT_MAX_LENGTH);
+		byte[] payload = TestUtils.getRandomBytes(2000);
+		sender.encode(payload);
+		byte[] encoded = sender.encode(payload);
+
+		BlobStore receiver = newStore("receiver", BlobStore.DEFAULT_MAX_LENGTH);
+		assertNull(receiver.decode(encoded));
+		assertArrayEquals(payload, receiver.decode(BlobStore.full(payload)));
+		assertArrayEquals(payload, receiver.decode(encoded));
+		sender.clear();
+		receiver.clear();
+	}
+
+	@Test
+	public void testEviction() {
+		BlobStore store = newStore("eviction", 5000);
+		byte[] first = TestUtils.getRandomBytes(2000);
+		byte[] second = TestUtils.getRandomBytes(2000);
+		byte[] third = TestUtils.getRandomBytes(2000);
+		store.encode(first);
+		store.encode(second);
+		// the first blob is used again, the second is evicted
+		assertEquals(33, store.encode(first).length);
+		store.encode(third);
+		assertTrue(store.length() <= 5000);
+		assertEquals(33, store.encode(first).length);
+		assertEquals(second.length + 1, store.encode(second).length);
+		store.clear();
+	}
+
+}
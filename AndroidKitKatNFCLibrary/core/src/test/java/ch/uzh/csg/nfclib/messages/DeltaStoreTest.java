@@ -0,0 +1,63 @@
+package ch.uzh.csg.nfclib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.TestUtils;
+
+public class DeltaStoreTest {
+	
+	@Test
+	public void testEncodeDecode() {
+		DeltaStore sender = new DeltaStore();
+		DeltaStore receiver = new DeltaStore();
+		
+		byte[] payload = TestUtils.getRandomBytes(1000);
+		byte[] encoded = sender.encode(1, payload);
+		// nothing to diff against
+		assertTrue(encoded.length == payload.length + 1);
+		assertArrayEquals(payload, receiver.decode(2, encoded));
+		
+		payload[10]++;
+		payload[900]--;
+		encoded = sender.encode(1, payload);
+		assertTrue(encoded.length < 50);
+		assertArrayEquals(payload, receiver.decode(2, encoded));
+		
+		// a different payload is sent in full
+		byte[] other = TestUtils.getRandomBytes(100);
+		encoded = sender.encode(1, other);
+		assertTrue(encoded.length == other.length + 1);
+		assertArrayEquals(other, receiver.decode(2, encoded));
+	}
+	
+	@Test
+	public void testDecode_UnknownBase() {
+		DeltaStore sender = new DeltaStore();
+		byte[] payload = TestUtils.getRandomBytes(1000);
+		sender.encode(1, payload);
+		payload[500]++;
+		byte[] encoded = sender.encode(1, payload);
+		
+		DeltaStore receiver = new DeltaStore();
+		assertNull(receiver.decode(2, encoded));
+		assertArrayEquals(payload, receiver.decode(2, DeltaStore.full(payload)));
+	}
+	
+	@Test
+	public void testEviction() {
+		DeltaStore sender = new DeltaStore(1, 1);
+		DeltaStore receiver = new DeltaStore(1, 1);
+		byte[] payload = TestUtils.getRandomBytes(1000);
+		receiver.decode(2, sender.encode(1, payload));
+		
+		// another peer evicts the payloads of the first one
+		receiver.decode(3, DeltaStore.full(TestUtils.getRandomBytes(10)));
+		payload[0]++;
+		assertNull(receiver.decode(2, sender.encode(1, payload)));
+	}
+
+}
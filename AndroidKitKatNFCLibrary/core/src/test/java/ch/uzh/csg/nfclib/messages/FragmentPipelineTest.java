@@ -0,0 +1,99 @@
+package ch.uzh.csg.nfclib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+
+import javax.crypto.Cipher;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.TestUtils;
+
+public class FragmentPipelineTest {
+
+	@Test
+	public void testSameFragments() throws GeneralSecurityException, InterruptedException {
+		byte[] key = TestUtils.getRandomBytes(16);
+		// both seal with the same session key and counter
+		SecureChannel pipelined = new SecureChannel(key);
+		SecureChannel sealed = new SecureChannel(key);
+		pipelined.init(1, 2, true);
+		sealed.init(1, 2, true);
+
+		NfcMessageSplitter splitter = new NfcMessageSplitter().maxTransceiveLength(53);
+		splitter.capabilities(Handshake.CAPABILITY_EXTENDED_HEADER | Handshake.CAPABILITY_LENGTH_HINT | Handshake.CAPABILITY_CHECKSUM);
+		byte[] plaintext = TestUtils.getRandomBytes(10000);
+		ArrayList<NfcMessage> expected = splitter.getFragments(sealed.seal(plaintext));
+
+		FragmentPipeline pipeline = new FragmentPipeline(splitter, plaintext, pipelined.sealer(0));
+		assertEquals(plaintext.length + SecureChannel.TAG_LENGTH, pipeline.length());
+		Thread worker = new Thread(pipeline);
+		worker.start();
+		for (NfcMessage fragment : expected) {
+			assertTrue(pipeline.hasNext());
+			NfcMessage next = pipeline.next();
+			assertArrayEquals(fragment.bytes(), next.bytes());
+		}
+		assertFalse(pipeline.hasNext());
+		worker.join();
+	}
+
+	@Test
+	public void testSealerReused() throws GeneralSecurityException, InterruptedException {
+		byte[] key = TestUtils.getRandomBytes(16);
+		SecureChannel pipelined = new SecureChannel(key);
+		SecureChannel sealed = new SecureChannel(key);
+		pipelined.init(1, 2, true);
+		sealed.init(1, 2, true);
+		NfcMessageSplitter splitter = new NfcMessageSplitter().maxTransceiveLength(53);
+
+		Cipher first = pipelined.sealer(0);
+		// the first message is cancelled while the worker waits for the sender
+		FragmentPipeline cancelled = new FragmentPipeline(splitter, TestUtils.getRandomBytes(10000), first);
+		Thread worker = new Thread(cancelled);
+		worker.start();
+		assertTrue(cancelled.next().hasMoreFragments());
+		cancelled.cancel();
+		sealed.seal(new byte[0]);
+
+		// the cipher is initialized for the next counter of the channel
+		byte[] plaintext = TestUtils.getRandomBytes(10000);
+		Cipher second = pipelined.sealer(0);
+		assertSame(first, second);
+		ArrayList<NfcMessage> expected = splitter.getFragments(sealed.seal(plaintext));
+		FragmentPipeline pipeline = new FragmentPipeline(splitter, plaintext, second);
+		Thread next = new Thread(pipeline);
+		next.start();
+		for (NfcMessage fragment : expected) {
+			assertArrayEquals(fragment.bytes(), pipeline.next().bytes());
+		}
+		assertFalse(pipeline.hasNext());
+		worker.join();
+		next.join();
+	}
+
+	@Test
+	public void testCancel() throws GeneralSecurityException, InterruptedException {
+		SecureChannel secureChannel = new SecureChannel(TestUtils.getRandomBytes(16));
+		secureChannel.init(1, 2, true);
+		NfcMessageSplitter splitter = new NfcMessageSplitter().maxTransceiveLength(53);
+
+		FragmentPipeline pipeline = new FragmentPipeline(splitter, TestUtils.getRandomBytes(10000), secureChannel.sealer(0));
+		Thread worker = new Thread(pipeline);
+		worker.start();
+		assertTrue(pipeline.next().hasMoreFragments());
+		// the worker waits for space in the ring and stops
+		pipeline.cancel();
+		worker.join();
+		assertFalse(pipeline.hasNext());
+		assertNull(pipeline.next());
+	}
+
+}
@@ -0,0 +1,74 @@
+package ch.uzh.csg.nfclib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.utils.Utils;
+
+public class HandshakeTest {
+	
+	@Test
+	public void testHandshake() {
+		Handshake h = new Handshake(1234567891011121314L, 245).ticket(-42L).capabilities(Handshake.SUPPORTED_CAPABILITIES).nonce(99L);
+		
+		Handshake h2 = new Handshake(h.bytes());
+		assertEquals(1234567891011121314L, h2.userId());
+		assertEquals(245, h2.maxLen());
+		assertEquals(-42L, h2.ticket());
+		assertEquals(Handshake.SUPPORTED_CAPABILITIES, h2.capabilities());
+		assertEquals(99L, h2.nonce());
+		assertTrue(h2.hasCapability(Handshake.CAPABILITY_EXTENDED_HEADER));
+	}
+	
+	@Test
+	public void testHandshake_MaxMessageSize() {
+		Handshake h = new Handshake(7, 245).maxMessageSize(1024 * 1024);
+		assertEquals(1024 * 1024, new Handshake(h.bytes()).maxMessageSize());
+		
+		// older versions do not send a limit
+		assertEquals(0, new Handshake(new Handshake(7, 245).bytes()).maxMessageSize());
+	}
+	
+	@Test
+	public void testHandshake_Staged() {
+		Handshake h = new Handshake(7, 0).capabilities(Handshake.SUPPORTED_CAPABILITIES);
+		int capacity = h.stagedCapacity(53);
+		byte[] staged = new byte[capacity];
+		staged[0] = 42;
+		h.staged(staged, true);
+		assertEquals(53, NfcMessage.HEADER_LENGTH + h.bytes().length);
+		
+		Handshake h2 = new Handshake(h.bytes());
+		assertTrue(h2.stagedMore());
+		assertArrayEquals(staged, h2.staged());
+	}
+	
+	@Test
+	public void testHandshake_OldVersion() {
+		// user id and max length only, as sent by older initiators
+		byte[] payload = Utils.merge(Utils.longToByteArray(7), Utils.intToByteArray(30));
+		Handshake h = new Handshake(payload);
+		assertEquals(7, h.userId());
+		assertEquals(30, h.maxLen());
+		assertEquals(0, h.ticket());
+		assertEquals(0, h.capabilities());
+		
+		// empty payload, as returned by older responders
+		h = new Handshake(new byte[0]);
+		assertEquals(0, h.userId());
+		assertEquals(0, h.capabilities());
+	}
+	
+	@Test
+	public void testHandshake_UnknownField() {
+		byte[] payload = Utils.merge(new Handshake(7, 30).bytes(), new byte[] { 99, 2, 1, 2 });
+		payload = Utils.merge(payload, new byte[] { 2, 1, 3 });
+		Handshake h = new Handshake(payload);
+		assertEquals(7, h.userId());
+		assertEquals(3, h.capabilities());
+	}
+
+}
@@ -0,0 +1,58 @@
+package ch.uzh.csg.nfclib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.TestUtils;
+
+public class IdempotencyCacheTest {
+
+	@Test
+	public void testResponse() {
+		IdempotencyCache cache = new IdempotencyCache();
+		byte[] response = TestUtils.getRandomBytes(100);
+		assertFalse(cache.contains(1, 42));
+		cache.put(1, 42, response);
+		assertTrue(cache.contains(1, 42));
+		assertArrayEquals(response, cache.response(1, 42));
+
+		// the ids of other counterparts are distinct
+		assertFalse(cache.contains(2, 42));
+		assertNull(cache.response(2, 42));
+
+		// answered by sendLater, the response follows
+		cache.put(1, 43, null);
+		assertTrue(cache.contains(1, 43));
+		assertNull(cache.response(1, 43));
+		cache.put(1, 43, response);
+		assertArrayEquals(response, cache.response(1, 43));
+	}
+
+	@Test
+	public void testEviction() {
+		IdempotencyCache cache = new IdempotencyCache(10, 1000);
+		for (int i = 1; i <= 100; i++) {
+			cache.put(1, i, TestUtils.getRandomBytes(10));
+			// keeps the first one in use
+			assertTrue(cache.contains(1, 1));
+		}
+		assertEquals(10, cache.size());
+		assertFalse(cache.contains(1, 2));
+		assertTrue(cache.contains(1, 100));
+
+		// bounded by the length of the responses
+		cache.put(1, 101, TestUtils.getRandomBytes(950));
+		assertTrue(cache.contains(1, 101));
+		assertTrue(cache.size() < 10);
+
+		// larger than the cache
+		cache.put(1, 102, TestUtils.getRandomBytes(1001));
+		assertFalse(cache.contains(1, 102));
+	}
+
+}
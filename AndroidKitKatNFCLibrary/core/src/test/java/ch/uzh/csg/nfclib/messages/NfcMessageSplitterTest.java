@@ -0,0 +1,254 @@
+package ch.uzh.csg.nfclib.messages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.TestUtils;
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+import ch.uzh.csg.nfclib.messages.NfcMessageSplitter;
+
+public class NfcMessageSplitterTest  {
+	
+	@Test
+	public void testGetFragments1() {
+		byte[] payload = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(5);
+		ArrayList<NfcMessage> fragments = splitter.getFragments(payload);
+		
+		assertEquals(3, fragments.size());
+		
+		NfcMessage nfcMessage1 = fragments.get(0);
+		assertTrue(nfcMessage1.hasMoreFragments());
+		assertEquals(3, nfcMessage1.payload().length);
+		assertTrue(Arrays.equals(new byte[] { 0x01, 0x02, 0x03 }, nfcMessage1.payload()));
+		
+		NfcMessage nfcMessage2 = fragments.get(1);
+		assertTrue(nfcMessage2.hasMoreFragments());
+		assertEquals(3, nfcMessage2.payload().length);
+		assertTrue(Arrays.equals(new byte[] { 0x04, 0x05, 0x06 }, nfcMessage2.payload()));
+		
+		NfcMessage nfcMessage3 = fragments.get(2);
+		assertFalse(nfcMessage3.hasMoreFragments());
+		assertEquals(2, nfcMessage3.payload().length);
+		assertTrue(Arrays.equals(new byte[] { 0x07, 0x08 }, nfcMessage3.payload()));
+	}
+	
+	@Test
+	public void testGetFragments2() {
+		byte[] payload = new byte[] { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08 };
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(6);
+		ArrayList<NfcMessage> fragments = splitter.getFragments(payload);
+		
+		assertEquals(2, fragments.size());
+		
+		NfcMessage nfcMessage1 = fragments.get(0);
+		assertTrue(nfcMessage1.hasMoreFragments());
+		assertEquals(4, nfcMessage1.payload().length);
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4}, nfcMessage1.payload()));
+		
+		NfcMessage nfcMessage3 = fragments.get(1);
+		assertFalse(nfcMessage3.hasMoreFragments());
+		assertEquals(4, nfcMessage3.payload().length);
+		assertTrue(Arrays.equals(new byte[] { 5, 6, 7, 8 }, nfcMessage3.payload()));
+	}
+	
+	@Test
+	public void testGetFragments3() {
+		byte[] payload = new byte[] { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08 };
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(10);
+		ArrayList<NfcMessage> fragments = splitter.getFragments(payload);
+		
+		assertEquals(1, fragments.size());
+		
+		NfcMessage nfcMessage3 = fragments.get(0);
+		assertFalse(nfcMessage3.hasMoreFragments());
+		assertEquals(8, nfcMessage3.payload().length);
+		assertTrue(Arrays.equals(payload, nfcMessage3.payload()));
+	}
+	
+	@Test
+	public void testGetFragments4() {
+		byte[] payload = new byte[] { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08 };
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(30);
+		ArrayList<NfcMessage> fragments = splitter.getFragments(payload);
+		
+		assertEquals(1, fragments.size());
+		
+		NfcMessage nfcMessage3 = fragments.get(0);
+		assertFalse(nfcMessage3.hasMoreFragments());
+		assertEquals(8, nfcMessage3.payload().length);
+		assertTrue(Arrays.equals(payload, nfcMessage3.payload()));
+	}
+	
+	@Test
+	public void testLengthHint() {
+		byte[] payload = new byte[1000];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(53);
+		splitter.capabilities(Handshake.CAPABILITY_EXTENDED_HEADER | Handshake.CAPABILITY_LENGTH_HINT);
+		ArrayList<NfcMessage> fragments = splitter.getFragments(payload);
+		
+		assertTrue(fragments.get(0).hasLengthHint());
+		assertEquals(1000, fragments.get(0).lengthHint());
+		for (NfcMessage fragment : fragments) {
+			assertEquals(1, fragment.version());
+			assertTrue(fragment.bytes().length <= 53);
+		}
+		
+		NfcMessageSplitter receiver = new NfcMessageSplitter();
+		for (NfcMessage fragment : fragments) {
+			receiver.reassemble(new NfcMessage(fragment.bytes()));
+		}
+		assertTrue(Arrays.equals(payload, receiver.data()));
+	}
+
+	@Test
+	public void testMessageId() {
+		byte[] payload = TestUtils.getRandomBytes(1000);
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(53);
+		splitter.capabilities(Handshake.CAPABILITY_EXTENDED_HEADER | Handshake.CAPABILITY_LENGTH_HINT | Handshake.CAPABILITY_MESSAGE_ID);
+		splitter.messageId(42);
+		ArrayList<NfcMessage> fragments = splitter.getFragments(payload);
+		
+		// only the first fragment carries the id
+		assertEquals(42, fragments.get(0).messageId());
+		assertFalse(fragments.get(1).hasMessageId());
+		for (NfcMessage fragment : fragments) {
+			assertTrue(fragment.bytes().length <= 53);
+		}
+		
+		NfcMessageSplitter receiver = new NfcMessageSplitter();
+		for (NfcMessage fragment : fragments) {
+			receiver.reassemble(new NfcMessage(fragment.bytes()));
+		}
+		assertTrue(Arrays.equals(payload, receiver.data()));
+		
+		// not sent unless negotiated
+		splitter.capabilities(Handshake.CAPABILITY_EXTENDED_HEADER);
+		assertFalse(splitter.getFragments(payload).get(0).hasMessageId());
+	}
+	
+	@Test
+	public void testMaxMessageLength() {
+		byte[] payload = TestUtils.getRandomBytes(1000);
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(53);
+		ArrayList<NfcMessage> fragments = splitter.getFragments(payload);
+		
+		NfcMessageSplitter receiver = new NfcMessageSplitter().maxMessageLength(500);
+		int accepted = 0;
+		while (receiver.reassemble(new NfcMessage(fragments.get(accepted).bytes()))) {
+			accepted++;
+		}
+		// rejected once the fragments add up to more than the limit
+		assertEquals(500 / fragments.get(0).payload().length, accepted);
+		assertEquals(null, receiver.data());
+		
+		receiver.maxMessageLength(1000);
+		for (NfcMessage fragment : fragments) {
+			assertTrue(receiver.reassemble(new NfcMessage(fragment.bytes())));
+		}
+		assertTrue(Arrays.equals(payload, receiver.data()));
+	}
+	
+	@Test
+	public void testMaxMessageLength_LengthHint() {
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(53);
+		splitter.capabilities(Handshake.CAPABILITY_EXTENDED_HEADER | Handshake.CAPABILITY_LENGTH_HINT);
+		ArrayList<NfcMessage> fragments = splitter.getFragments(new byte[1000]);
+		
+		// the length hint announces the size with the first fragment
+		NfcMessageSplitter receiver = new NfcMessageSplitter().maxMessageLength(999);
+		assertFalse(receiver.reassemble(new NfcMessage(fragments.get(0).bytes())));
+	}
+	
+	@Test
+	public void testSpill() throws IOException {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "nfclib-spill-test");
+		directory.mkdirs();
+		byte[] payload = TestUtils.getRandomBytes(5000);
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(53);
+		ArrayList<NfcMessage> fragments = splitter.getFragments(payload);
+		
+		NfcMessageSplitter receiver = new NfcMessageSplitter().spill(directory, 1000);
+		for (NfcMessage fragment : fragments) {
+			assertTrue(receiver.reassemble(new NfcMessage(fragment.bytes())));
+		}
+		assertTrue(receiver.isSpilled());
+		assertEquals(1, directory.list().length);
+		assertTrue(Arrays.equals(payload, receiver.data()));
+		
+		receiver.clear();
+		assertFalse(receiver.isSpilled());
+		assertEquals(0, directory.list().length);
+		directory.delete();
+	}
+	
+	@Test
+	public void testSealedFragments() throws GeneralSecurityException {
+		byte[] key = TestUtils.getRandomBytes(16);
+		SecureChannel sealer = new SecureChannel(key);
+		SecureChannel expected = new SecureChannel(key);
+		sealer.init(1, 2, true);
+		expected.init(1, 2, true);
+		NfcMessageSplitter splitter = new NfcMessageSplitter().maxTransceiveLength(53).channel(1);
+		splitter.capabilities(Handshake.CAPABILITY_EXTENDED_HEADER | Handshake.CAPABILITY_CHECKSUM);
+		
+		// one fragment, sealed right into its payload, and several fragments
+		for (int len : new int[] { 10, 500 }) {
+			byte[] plaintext = TestUtils.getRandomBytes(len);
+			ArrayList<NfcMessage> fragments = splitter.getFragments(sealer, plaintext);
+			ArrayList<NfcMessage> sealed = splitter.getFragments(expected.seal(1, plaintext));
+			assertEquals(sealed.size(), fragments.size());
+			for (int i = 0; i < sealed.size(); i++) {
+				assertTrue(Arrays.equals(sealed.get(i).bytes(), fragments.get(i).bytes()));
+			}
+		}
+	}
+	
+	@Test
+	public void testSpill_SecureChannel() throws GeneralSecurityException {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "nfclib-spill-test");
+		directory.mkdirs();
+		byte[] key = TestUtils.getRandomBytes(16);
+		SecureChannel initiator = new SecureChannel(key);
+		SecureChannel responder = new SecureChannel(key);
+		initiator.init(1, 2, true);
+		responder.init(1, 2, false);
+		byte[] payload = TestUtils.getRandomBytes(5000);
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(53);
+		ArrayList<NfcMessage> fragments = splitter.getFragments(initiator, payload);
+		
+		// opened right from the temporary file
+		NfcMessageSplitter receiver = new NfcMessageSplitter().spill(directory, 1000);
+		for (NfcMessage fragment : fragments) {
+			assertTrue(receiver.reassemble(new NfcMessage(fragment.bytes())));
+		}
+		assertTrue(receiver.isSpilled());
+		assertTrue(Arrays.equals(payload, receiver.data(responder)));
+		
+		receiver.clear();
+		directory.delete();
+	}
+
+}
@@ -0,0 +1,170 @@
+package ch.uzh.csg.nfclib.messages;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+import ch.uzh.csg.nfclib.messages.NfcMessage.Type;
+
+public class NfcMessageTest {
+	
+	@Test
+	public void testHeader() {
+		NfcMessage m = new NfcMessage(Type.DEFAULT);
+		assertEquals(0, m.version());
+		
+		byte header = (byte) 0xFD; // 11111101
+		byte sqNr = 0x01;
+		NfcMessage m2 = new NfcMessage(new byte[] { header, sqNr });
+		assertTrue(m2.hasMoreFragments()); // bit 1
+		assertTrue(m2.isRequest()); // bit 2
+		assertTrue(m2.isResume()); // bit 3
+		assertEquals(3, m2.version()); // bit 4+5
+		assertTrue(m2.isReadBinary()); // bit 6-8
+		
+		header = (byte) 0x51; //01010001
+		NfcMessage m3 = new NfcMessage(new byte[] { header, sqNr });
+		assertFalse(m3.hasMoreFragments()); // bit 1
+		assertTrue(m3.isRequest()); // bit 2
+		assertFalse(m3.isResume()); // bit 3
+		assertEquals(2, m3.version()); // bit 4+5
+		assertTrue(m3.isError()); // bit 6-8
+	}
+	
+	@Test
+	public void testHandshake() {
+		byte[] payload = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 0, 0, 0, 30 };
+		NfcMessage userId = new NfcMessage(Type.USER_ID).payload(payload).resume();
+		NfcMessage m = new NfcMessage(Type.AID).request().handshake(userId);
+		
+		byte[] bytes = m.bytes();
+		assertEquals(NfcMessage.CLA_INS_P1_P2_AID_MBPS.length + 1 + NfcMessage.HEADER_LENGTH + payload.length, bytes.length);
+		
+		NfcMessage m2 = new NfcMessage(bytes);
+		assertTrue(m2.isSelectAidApdu());
+		assertNotNull(m2.handshake());
+		assertEquals(Type.USER_ID, m2.handshake().type());
+		assertTrue(m2.handshake().isResume());
+		assertArrayEquals(payload, m2.handshake().payload());
+		
+		// the plain SELECT AID (two-step handshake) has no handshake appended
+		NfcMessage m3 = new NfcMessage(new NfcMessage(Type.AID).request().bytes());
+		assertTrue(m3.isSelectAidApdu());
+		assertNull(m3.handshake());
+	}
+	
+	@Test
+	public void testSelectAid() {
+		byte[] aid = new byte[] { (byte) 0xF0, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08 };
+		byte[] payload = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 0, 0, 0, 30 };
+		NfcMessage userId = new NfcMessage(Type.USER_ID).payload(payload);
+		byte[] bytes = new NfcMessage(Type.AID).aid(aid).request().handshake(userId).bytes();
+		
+		assertArrayEquals(aid, NfcMessage.selectedAid(bytes));
+		NfcMessage m = new NfcMessage(bytes);
+		assertTrue(m.isSelectAidApdu());
+		assertArrayEquals(aid, m.aid());
+		assertNotNull(m.handshake());
+		assertArrayEquals(payload, m.handshake().payload());
+		
+		assertArrayEquals(NfcMessage.AID_MBPS, NfcMessage.selectedAid(NfcMessage.CLA_INS_P1_P2_AID_MBPS));
+		assertNull(NfcMessage.selectedAid(new NfcMessage(Type.DEFAULT).payload(payload).bytes()));
+	}
+	
+	@Test
+	public void testExtendedHeader() {
+		byte[] payload = new byte[] { 1, 2, 3 };
+		NfcMessage m = new NfcMessage(Type.DEFAULT).version(1).payload(payload).lengthHint(300).setMoreFragments();
+		m.sequenceNumber(new NfcMessage(Type.DEFAULT));
+		
+		byte[] bytes = m.bytes();
+		// header, extension, sequence number, 2 bytes varint, payload
+		assertEquals(NfcMessage.HEADER_LENGTH_V1 + 2 + payload.length, bytes.length);
+		
+		NfcMessage m2 = new NfcMessage(bytes);
+		assertEquals(1, m2.version());
+		assertEquals(Type.DEFAULT, m2.type());
+		assertEquals(1, m2.sequenceNumber());
+		assertTrue(m2.hasMoreFragments());
+		assertTrue(m2.hasLengthHint());
+		assertEquals(300, m2.lengthHint());
+		assertArrayEquals(payload, m2.payload());
+		assertEquals(m, m2);
+		
+		// version 0 does not transport the length hint
+		NfcMessage m3 = new NfcMessage(new NfcMessage(Type.DEFAULT).payload(payload).lengthHint(300).bytes());
+		assertEquals(0, m3.version());
+		assertFalse(m3.hasLengthHint());
+		assertArrayEquals(payload, m3.payload());
+	}
+	
+	@Test
+	public void testChecksum() {
+		byte[] payload = new byte[] { 1, 2, 3 };
+		NfcMessage m = new NfcMessage(Type.DEFAULT).version(1).payload(payload).checksum();
+		
+		byte[] bytes = m.bytes();
+		assertEquals(NfcMessage.HEADER_LENGTH_V1 + payload.length + NfcMessage.CHECKSUM_LENGTH, bytes.length);
+		
+		NfcMessage m2 = new NfcMessage(bytes);
+		assertTrue(m2.hasChecksum());
+		assertFalse(m2.isCorrupt());
+		assertArrayEquals(payload, m2.payload());
+		assertEquals(m, m2);
+		
+		bytes[NfcMessage.HEADER_LENGTH_V1] ^= 0x10;
+		NfcMessage m3 = new NfcMessage(bytes);
+		assertTrue(m3.isCorrupt());
+		
+		NfcMessage nack = new NfcMessage(new NfcMessage(Type.NACK).checksum().bytes());
+		assertEquals(Type.NACK, nack.type());
+		assertFalse(nack.isCorrupt());
+	}
+	
+	@Test
+	public void testChannel() {
+		byte[] payload = new byte[] { 1, 2, 3 };
+		NfcMessage m = new NfcMessage(Type.DEFAULT).version(1).payload(payload).channel(5).lengthHint(300).checksum();
+		
+		byte[] bytes = m.bytes();
+		assertEquals(NfcMessage.HEADER_LENGTH_V1 + 1 + 2 + payload.length + NfcMessage.CHECKSUM_LENGTH, bytes.length);
+		
+		NfcMessage m2 = new NfcMessage(bytes);
+		assertEquals(5, m2.channel());
+		assertEquals(300, m2.lengthHint());
+		assertFalse(m2.isCorrupt());
+		assertArrayEquals(payload, m2.payload());
+		assertEquals(m, m2);
+		
+		// channel 0 needs no extra byte
+		NfcMessage m3 = new NfcMessage(Type.DEFAULT).version(1).payload(payload).channel(0);
+		assertEquals(NfcMessage.HEADER_LENGTH_V1 + payload.length, m3.bytes().length);
+		assertEquals(0, new NfcMessage(m3.bytes()).channel());
+	}
+	
+	@Test
+	public void testMessageId() {
+		byte[] payload = new byte[] { 1, 2, 3 };
+		NfcMessage m = new NfcMessage(Type.DEFAULT).version(1).payload(payload).lengthHint(300).messageId(-42L).checksum();
+		
+		byte[] bytes = m.bytes();
+		assertEquals(NfcMessage.HEADER_LENGTH_V1 + 2 + NfcMessage.MESSAGE_ID_LENGTH + payload.length + NfcMessage.CHECKSUM_LENGTH, bytes.length);
+		
+		NfcMessage m2 = new NfcMessage(bytes);
+		assertTrue(m2.hasMessageId());
+		assertEquals(-42L, m2.messageId());
+		assertEquals(300, m2.lengthHint());
+		assertFalse(m2.isCorrupt());
+		assertArrayEquals(payload, m2.payload());
+		assertEquals(m, m2);
+		
+		// a truncated id is detected
+		NfcMessage m3 = new NfcMessage(new NfcMessage(Type.DEFAULT).version(1).messageId(7).bytes());
+		assertEquals(7, m3.messageId());
+		assertTrue(new NfcMessage(Arrays.copyOf(m3.bytes(), 6)).isCorrupt());
+	}
+
+}
@@ -0,0 +1,92 @@
+package ch.uzh.csg.nfclib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.TestUtils;
+
+public class OutboxJournalTest {
+
+	private static File newFile(String name) {
+		File file = new File(System.getProperty("java.io.tmpdir"), "nfclib-journal-test-" + name);
+		file.delete();
+		return file;
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		File file = newFile("replay");
+		OutboxJournal journal = new OutboxJournal(file, 4096);
+		byte[] first = TestUtils.getRandomBytes(100);
+		byte[] second = TestUtils.getRandomBytes(200);
+		byte[] other = TestUtils.getRandomBytes(300);
+		long id = journal.append(1, first);
+		journal.append(1, second);
+		journal.append(2, other);
+		journal.remove(id);
+
+		// the app restarts
+		journal = new OutboxJournal(file, 4096);
+		List<OutboxJournal.Entry> pending = journal.pending(1);
+		assertEquals(1, pending.size());
+		assertArrayEquals(second, pending.get(0).payload());
+		assertArrayEquals(other, journal.pending(2).get(0).payload());
+
+		// new ids do not collide with the replayed ones
+		assertTrue(journal.append(1, first) > pending.get(0).id());
+		file.delete();
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		File file = newFile("torn");
+		OutboxJournal journal = new OutboxJournal(file, 4096);
+		journal.append(1, TestUtils.getRandomBytes(100));
+		journal.append(1, TestUtils.getRandomBytes(100));
+
+		// the last record has been written partially
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(150 + 21 + 4);
+		raf.write(new byte[20]);
+		raf.close();
+
+		journal = new OutboxJournal(file, 4096);
+		assertEquals(1, journal.size());
+		journal.append(1, TestUtils.getRandomBytes(100));
+		journal = new OutboxJournal(file, 4096);
+		assertEquals(2, journal.size());
+		file.delete();
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		File file = newFile("compaction");
+		OutboxJournal journal = new OutboxJournal(file, 1024);
+		byte[] kept = TestUtils.getRandomBytes(100);
+		journal.append(1, kept);
+		for (int i = 0; i < 50; i++) {
+			journal.remove(journal.append(1, TestUtils.getRandomBytes(100)));
+		}
+		// the removed messages do not take up space
+		assertEquals(1024, file.length());
+
+		// the file grows if the pending messages do not fit
+		for (int i = 0; i < 20; i++) {
+			journal.append(2, TestUtils.getRandomBytes(100));
+		}
+		assertTrue(file.length() > 1024);
+		journal = new OutboxJournal(file);
+		assertEquals(21, journal.size());
+		assertArrayEquals(kept, journal.pending(1).get(0).payload());
+		file.delete();
+	}
+
+}
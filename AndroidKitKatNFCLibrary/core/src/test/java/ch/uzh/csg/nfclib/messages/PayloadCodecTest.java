@@ -0,0 +1,161 @@
+package ch.uzh.csg.nfclib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.TestUtils;
+
+public class PayloadCodecTest {
+	
+	private static class Payment {
+		long amount;
+		String currency;
+		long userId;
+		Payment refund;
+	}
+	
+	private static final IPayloadCodec<Payment> CODEC = new IPayloadCodec<Payment>() {
+		@Override
+		public void encode(Payment value, PayloadWriter writer) {
+			writer.writeLong(1, value.amount).writeString(2, value.currency).writeFixed64(3, value.userId);
+			if (value.refund != null) {
+				writer.writeMessage(4, value.refund, this);
+			}
+		}
+
+		@Override
+		public Payment decode(PayloadReader reader) {
+			Payment payment = new Payment();
+			while (reader.next()) {
+				switch (reader.tag()) {
+				case 1:
+					payment.amount = reader.readLong();
+					break;
+				case 2:
+					payment.currency = reader.readString();
+					break;
+				case 3:
+					payment.userId = reader.readFixed64();
+					break;
+				case 4:
+					payment.refund = reader.readMessage(this);
+					break;
+				}
+			}
+			return payment;
+		}
+	};
+	
+	@Test
+	public void testEncodeDecode() {
+		PayloadWriter writer = new PayloadWriter();
+		writer.writeInt(1, -1).writeInt(2, Integer.MIN_VALUE).writeLong(3, Long.MAX_VALUE).writeBoolean(4, true);
+		byte[] blob = TestUtils.getRandomBytes(300);
+		writer.writeBytes(5, blob).writeString(6, "Gr\u00fcezi");
+		
+		PayloadReader reader = new PayloadReader(writer.toByteArray());
+		assertTrue(reader.next());
+		assertEquals(1, reader.tag());
+		assertEquals(-1, reader.readInt());
+		assertTrue(reader.next());
+		assertEquals(Integer.MIN_VALUE, reader.readInt());
+		assertTrue(reader.next());
+		assertEquals(Long.MAX_VALUE, reader.readLong());
+		assertTrue(reader.next());
+		assertTrue(reader.readBoolean());
+		assertTrue(reader.next());
+		ByteBuffer view = reader.readBytes();
+		assertEquals(300, view.remaining());
+		byte[] copy = new byte[300];
+		view.get(copy);
+		assertArrayEquals(blob, copy);
+		assertTrue(reader.next());
+		assertEquals("Gr\u00fcezi", reader.readString());
+		assertFalse(reader.next());
+	}
+	
+	@Test
+	public void testSmallValuesAreShort() {
+		PayloadWriter writer = new PayloadWriter();
+		writer.writeInt(1, -5).writeLong(2, 50).writeBoolean(3, false);
+		// key and value take one byte each
+		assertEquals(6, writer.length());
+	}
+	
+	@Test
+	public void testNestedMessage() {
+		Payment payment = new Payment();
+		payment.amount = 1250;
+		payment.currency = "CHF";
+		payment.userId = 1234567891011121314L;
+		payment.refund = new Payment();
+		payment.refund.amount = -1250;
+		// long enough to move the length prefix
+		payment.refund.currency = new String(new char[200]).replace('\0', 'x');
+		
+		PayloadWriter writer = new PayloadWriter(16);
+		CODEC.encode(payment, writer);
+		Payment decoded = CODEC.decode(new PayloadReader(writer.toByteArray()));
+		
+		assertEquals(payment.amount, decoded.amount);
+		assertEquals(payment.currency, decoded.currency);
+		assertEquals(payment.userId, decoded.userId);
+		assertEquals(payment.refund.amount, decoded.refund.amount);
+		assertEquals(payment.refund.currency, decoded.refund.currency);
+		
+		// the writer can be reused
+		writer.reset();
+		payment.refund = null;
+		CODEC.encode(payment, writer);
+		assertEquals(null, CODEC.decode(new PayloadReader(writer.toByteArray())).refund);
+	}
+	
+	@Test
+	public void testSkipUnknownFields() {
+		PayloadWriter writer = new PayloadWriter();
+		writer.writeFixed64(7, 1).writeLong(1, 42).writeBytes(8, new byte[10]).writeString(2, "EUR");
+		
+		Payment decoded = CODEC.decode(new PayloadReader(writer.toByteArray()));
+		assertEquals(42, decoded.amount);
+		assertEquals("EUR", decoded.currency);
+	}
+	
+	@Test
+	public void testRange() {
+		PayloadWriter writer = new PayloadWriter();
+		writer.writeLong(1, 7);
+		byte[] buffer = new byte[10];
+		System.arraycopy(writer.toByteArray(), 0, buffer, 3, writer.length());
+		
+		PayloadReader reader = new PayloadReader(buffer, 3, writer.length());
+		assertTrue(reader.next());
+		assertEquals(7, reader.readLong());
+		assertFalse(reader.next());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testTruncated() {
+		PayloadWriter writer = new PayloadWriter();
+		writer.writeString(1, "truncated");
+		byte[] bytes = writer.toByteArray();
+		PayloadReader reader = new PayloadReader(bytes, 0, bytes.length - 1);
+		reader.next();
+		reader.readString();
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongWireType() {
+		PayloadWriter writer = new PayloadWriter();
+		writer.writeString(1, "text");
+		PayloadReader reader = new PayloadReader(writer.toByteArray());
+		reader.next();
+		reader.readLong();
+	}
+	
+}
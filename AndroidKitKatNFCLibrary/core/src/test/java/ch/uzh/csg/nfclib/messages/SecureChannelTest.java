@@ -0,0 +1,80 @@
+package ch.uzh.csg.nfclib.messages;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.security.GeneralSecurityException;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.TestUtils;
+
+public class SecureChannelTest {
+	
+	@Test
+	public void testSealOpen() throws GeneralSecurityException {
+		byte[] key = TestUtils.getRandomBytes(16);
+		SecureChannel initiator = new SecureChannel(key);
+		SecureChannel responder = new SecureChannel(key);
+		long n1 = initiator.newNonce();
+		long n2 = responder.newNonce();
+		initiator.init(n1, n2, true);
+		responder.init(n1, n2, false);
+		
+		for (int i = 0; i < 3; i++) {
+			byte[] plaintext = TestUtils.getRandomBytes(100 + i);
+			byte[] sealed = initiator.seal(plaintext);
+			assertEquals(plaintext.length + SecureChannel.TAG_LENGTH, sealed.length);
+			assertArrayEquals(plaintext, responder.open(sealed, 0, sealed.length));
+			
+			byte[] reply = responder.seal(plaintext);
+			assertArrayEquals(plaintext, initiator.open(reply, 0, reply.length));
+		}
+	}
+	
+	@Test
+	public void testSealOpen_Channels() throws GeneralSecurityException {
+		byte[] key = TestUtils.getRandomBytes(16);
+		SecureChannel initiator = new SecureChannel(key);
+		SecureChannel responder = new SecureChannel(key);
+		initiator.init(1, 2, true);
+		responder.init(1, 2, false);
+		
+		// messages of different channels can be opened in any order
+		byte[] p1 = TestUtils.getRandomBytes(50);
+		byte[] p0 = TestUtils.getRandomBytes(10);
+		byte[] sealed1 = initiator.seal(1, p1);
+		byte[] sealed0 = initiator.seal(p0);
+		assertArrayEquals(p0, responder.open(sealed0, 0, sealed0.length));
+		assertArrayEquals(p1, responder.open(1, sealed1, 0, sealed1.length));
+		
+		// but not on a different channel
+		byte[] sealed2 = initiator.seal(2, p0);
+		try {
+			responder.open(3, sealed2, 0, sealed2.length);
+			fail("message accepted on the wrong channel");
+		} catch (GeneralSecurityException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testOpen_Tampered() throws GeneralSecurityException {
+		byte[] key = TestUtils.getRandomBytes(16);
+		SecureChannel initiator = new SecureChannel(key);
+		SecureChannel responder = new SecureChannel(key);
+		initiator.init(1, 2, true);
+		responder.init(1, 2, false);
+		
+		byte[] sealed = initiator.seal(TestUtils.getRandomBytes(10));
+		sealed[3] ^= 0x01;
+		try {
+			responder.open(sealed, 0, sealed.length);
+			fail("tampered message accepted");
+		} catch (GeneralSecurityException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+package ch.uzh.csg.nfclib.transceiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.NfcInitiator.TagDiscoveredHandler;
+import ch.uzh.csg.nfclib.NfcLibException;
+import ch.uzh.csg.nfclib.messages.NfcMessage;
+import ch.uzh.csg.nfclib.messages.NfcMessage.Type;
+
+public class FailoverNfcTransceiverTest {
+
+	private static class FakeTransceiver implements INfcTransceiver {
+		private final int maxLen;
+		private boolean on = false;
+		private boolean enabled = false;
+		private boolean broken = false;
+		private int writes = 0;
+
+		private FakeTransceiver(int maxLen) {
+			this.maxLen = maxLen;
+		}
+
+		@Override
+		public void turnOn(TagDiscoveredHandler nfcInit) throws NfcLibException {
+			on = true;
+		}
+
+		@Override
+		public void turnOff() {
+			on = false;
+			enabled = false;
+		}
+
+		@Override
+		public void enable() {
+			enabled = true;
+		}
+
+		@Override
+		public void disable() {
+			enabled = false;
+		}
+
+		@Override
+		public boolean isEnabled() {
+			return on;
+		}
+
+		@Override
+		public NfcMessage write(NfcMessage input) throws IOException {
+			writes++;
+			if (broken) {
+				throw new IOException("broken");
+			}
+			return new NfcMessage(Type.DEFAULT);
+		}
+
+		@Override
+		public int maxLen() {
+			return maxLen;
+		}
+
+		@Override
+		public void timeout(int timeout) {
+		}
+
+		@Override
+		public void cancel() {
+		}
+	}
+
+	@Test
+	public void testSwitch() throws NfcLibException, IOException {
+		FakeTransceiver external = new FakeTransceiver(53);
+		FakeTransceiver internal = new FakeTransceiver(245);
+		FailoverNfcTransceiver transceiver = new FailoverNfcTransceiver(external, internal);
+		transceiver.available(external, false);
+		transceiver.turnOn(null);
+		transceiver.enable();
+		assertSame(internal, transceiver.active());
+		assertEquals(245, transceiver.maxLen());
+
+		// the reader is attached
+		transceiver.available(external, true);
+		assertSame(external, transceiver.active());
+		assertFalse(internal.on);
+		assertTrue(external.enabled);
+		transceiver.write(new NfcMessage(Type.DEFAULT));
+		assertEquals(1, external.writes);
+
+		// the reader is removed while in use
+		external.turnOff();
+		transceiver.write(new NfcMessage(Type.DEFAULT));
+		assertSame(internal, transceiver.active());
+		assertEquals(1, internal.writes);
+		assertTrue(internal.enabled);
+	}
+
+	@Test
+	public void testFailover() throws NfcLibException, IOException {
+		FakeTransceiver first = new FakeTransceiver(53);
+		FakeTransceiver second = new FakeTransceiver(53);
+		FailoverNfcTransceiver transceiver = new FailoverNfcTransceiver(first, second);
+		transceiver.turnOn(null);
+		first.broken = true;
+		for (int i = 0; i < FailoverNfcTransceiver.MAX_FAILURES; i++) {
+			assertSame(first, transceiver.active());
+			try {
+				transceiver.write(new NfcMessage(Type.DEFAULT));
+				fail();
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		assertSame(second, transceiver.active());
+		transceiver.write(new NfcMessage(Type.DEFAULT));
+
+		// the failed one is used if no other is left
+		transceiver.available(second, false);
+		assertSame(first, transceiver.active());
+		transceiver.turnOff();
+		assertFalse(first.on);
+	}
+
+}
@@ -0,0 +1,250 @@
+package ch.uzh.csg.nfclib.transceiver;
+
+import java.nio.ByteBuffer;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactory;
+import javax.smartcardio.TerminalFactorySpi;
+
+import ch.uzh.csg.nfclib.NfcResponder;
+
+/**
+ * A javax.smartcardio provider without PC/SC. Each {@link FakeTerminal} passes
+ * the commands to the {@link NfcResponder} of the card currently presented.
+ */
+public class FakeTerminalFactory extends TerminalFactorySpi {
+
+	public static final String TYPE = "Fake";
+
+	// Provider(String, String, String) requires Java 9, the tests target Java 7
+	@SuppressWarnings({ "serial", "deprecation" })
+	private static final Provider PROVIDER = new Provider("FakeSmartcard", 1.0, "fake PC/SC terminals") {
+		{
+			put("TerminalFactory." + TYPE, FakeTerminalFactory.class.getName());
+		}
+	};
+
+	private final FakeTerminals terminals;
+
+	public FakeTerminalFactory(Object params) {
+		terminals = new FakeTerminals(((FakeTerminal[]) params).clone());
+	}
+
+	public static TerminalFactory getInstance(FakeTerminal... terminals) throws Exception {
+		return TerminalFactory.getInstance(TYPE, terminals, PROVIDER);
+	}
+
+	@Override
+	protected CardTerminals engineTerminals() {
+		return terminals;
+	}
+
+	private static class FakeTerminals extends CardTerminals {
+		private final FakeTerminal[] terminals;
+
+		private FakeTerminals(FakeTerminal[] terminals) {
+			this.terminals = terminals;
+		}
+
+		@Override
+		public List<CardTerminal> list(State state) throws CardException {
+			List<CardTerminal> list = new ArrayList<CardTerminal>();
+			for (FakeTerminal terminal : terminals) {
+				if (state == State.ALL || (state == State.CARD_PRESENT) == terminal.isCardPresent()) {
+					list.add(terminal);
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public boolean waitForChange(long timeout) throws CardException {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	public static class FakeTerminal extends CardTerminal {
+		private final String name;
+		private NfcResponder responder = null;
+		private FakeCard card = null;
+
+		public FakeTerminal(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Puts the HCE device on the terminal.
+		 */
+		public synchronized void present(NfcResponder responder) {
+			this.responder = responder;
+			notifyAll();
+		}
+
+		/**
+		 * Removes the HCE device, the following transmits fail.
+		 */
+		public synchronized void remove() {
+			responder = null;
+			if (card != null) {
+				card.removed = true;
+				card = null;
+			}
+			notifyAll();
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public synchronized Card connect(String protocol) throws CardException {
+			if (responder == null) {
+				throw new CardNotPresentException("no card present");
+			}
+			card = new FakeCard(responder);
+			return card;
+		}
+
+		@Override
+		public synchronized boolean isCardPresent() {
+			return responder != null;
+		}
+
+		@Override
+		public boolean waitForCardPresent(long timeout) throws CardException {
+			return waitFor(true, timeout);
+		}
+
+		@Override
+		public boolean waitForCardAbsent(long timeout) throws CardException {
+			return waitFor(false, timeout);
+		}
+
+		private synchronized boolean waitFor(boolean present, long timeout) {
+			final long end = System.currentTimeMillis() + timeout;
+			while ((responder != null) != present) {
+				final long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static class FakeCard extends Card {
+		private final NfcResponder responder;
+		private final FakeChannel channel = new FakeChannel(this);
+		private volatile boolean removed = false;
+
+		private FakeCard(NfcResponder responder) {
+			this.responder = responder;
+		}
+
+		@Override
+		public ATR getATR() {
+			return new ATR(new byte[] { 0x3B, (byte) 0x80, (byte) 0x80, 0x01, 0x01 });
+		}
+
+		@Override
+		public String getProtocol() {
+			return "T=1";
+		}
+
+		@Override
+		public CardChannel getBasicChannel() {
+			return channel;
+		}
+
+		@Override
+		public CardChannel openLogicalChannel() throws CardException {
+			throw new CardException("not supported");
+		}
+
+		@Override
+		public void beginExclusive() throws CardException {
+		}
+
+		@Override
+		public void endExclusive() throws CardException {
+		}
+
+		@Override
+		public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+			throw new CardException("not supported");
+		}
+
+		@Override
+		public void disconnect(boolean reset) throws CardException {
+			removed = true;
+		}
+	}
+
+	private static class FakeChannel extends CardChannel {
+		private final FakeCard card;
+
+		private FakeChannel(FakeCard card) {
+			this.card = card;
+		}
+
+		@Override
+		public Card getCard() {
+			return card;
+		}
+
+		@Override
+		public int getChannelNumber() {
+			return 0;
+		}
+
+		@Override
+		public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+			return new ResponseAPDU(transmit(command.getBytes()));
+		}
+
+		@Override
+		public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+			byte[] bytes = new byte[command.remaining()];
+			command.get(bytes);
+			byte[] result = transmit(bytes);
+			response.put(result);
+			return result.length;
+		}
+
+		private byte[] transmit(byte[] command) throws CardException {
+			if (card.removed) {
+				throw new CardException("card removed");
+			}
+			byte[] result = card.responder.processIncomingData(Arrays.copyOf(command, command.length));
+			if (result == null) {
+				throw new CardException("no response");
+			}
+			return result;
+		}
+
+		@Override
+		public void close() throws CardException {
+			throw new IllegalStateException("cannot close the basic channel");
+		}
+	}
+
+}
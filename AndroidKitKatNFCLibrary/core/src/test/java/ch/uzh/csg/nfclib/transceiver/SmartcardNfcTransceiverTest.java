@@ -0,0 +1,118 @@
+package ch.uzh.csg.nfclib.transceiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals.State;
+import javax.smartcardio.TerminalFactory;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.ISendLater;
+import ch.uzh.csg.nfclib.ITransceiveHandler;
+import ch.uzh.csg.nfclib.NfcInitiator;
+import ch.uzh.csg.nfclib.NfcResponder;
+import ch.uzh.csg.nfclib.TestUtils;
+import ch.uzh.csg.nfclib.events.INfcEventHandler;
+import ch.uzh.csg.nfclib.events.NfcEvent;
+import ch.uzh.csg.nfclib.transceiver.FakeTerminalFactory.FakeTerminal;
+
+public class SmartcardNfcTransceiverTest {
+
+	private final BlockingQueue<NfcEvent> events = new LinkedBlockingQueue<NfcEvent>();
+	private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+
+	private final INfcEventHandler initiatorHandler = new INfcEventHandler() {
+		@Override
+		public void handleMessage(NfcEvent event, Object object) {
+			if (event == NfcEvent.MESSAGE_RECEIVED) {
+				received.add((byte[]) object);
+			}
+			events.add(event);
+		}
+	};
+
+	private final INfcEventHandler responderHandler = new INfcEventHandler() {
+		@Override
+		public void handleMessage(NfcEvent event, Object object) {
+		}
+	};
+
+	private final NfcResponder responder = new NfcResponder(responderHandler, new ITransceiveHandler() {
+		@Override
+		public byte[] handleMessage(byte[] message, ISendLater sendLater) {
+			return message;
+		}
+	});
+
+	@Test
+	public void testFakeTerminalFactory() throws Exception {
+		FakeTerminal terminal1 = new FakeTerminal("reader 1");
+		FakeTerminal terminal2 = new FakeTerminal("reader 2");
+		TerminalFactory factory = FakeTerminalFactory.getInstance(terminal1, terminal2);
+		assertEquals(FakeTerminalFactory.TYPE, factory.getType());
+
+		terminal2.present(responder);
+		List<CardTerminal> present = factory.terminals().list(State.CARD_PRESENT);
+		assertEquals(1, present.size());
+		assertEquals("reader 2", present.get(0).getName());
+		assertEquals(2, factory.terminals().list().size());
+	}
+
+	@Test
+	public void testTransceive() throws Exception {
+		FakeTerminal terminal = new FakeTerminal("reader");
+		CardTerminal cardTerminal = FakeTerminalFactory.getInstance(terminal).terminals().list().get(0);
+
+		SmartcardNfcTransceiver transceiver = new SmartcardNfcTransceiver(initiatorHandler, cardTerminal);
+		NfcInitiator initiator = new NfcInitiator(initiatorHandler, 1, transceiver);
+		initiator.enable();
+		initiator.enableNfc();
+
+		terminal.present(responder);
+		assertEquals(NfcEvent.INITIALIZED, events.poll(2, TimeUnit.SECONDS));
+
+		// larger than one frame
+		byte[] message = TestUtils.getRandomBytes(1000);
+		initiator.transceive(message);
+		assertArrayEquals(message, received.poll(2, TimeUnit.SECONDS));
+
+		// a new card presence starts a new session
+		terminal.remove();
+		// the monitor has to notice the removal
+		Thread.sleep(100);
+		terminal.present(responder);
+		NfcEvent event;
+		do {
+			event = events.poll(2, TimeUnit.SECONDS);
+		} while (event == NfcEvent.MESSAGE_RECEIVED);
+		assertEquals(NfcEvent.INITIALIZED, event);
+
+		initiator.disable();
+		assertFalse(transceiver.isEnabled());
+	}
+
+	@Test
+	public void testNotEnabled() throws Exception {
+		FakeTerminal terminal = new FakeTerminal("reader");
+		CardTerminal cardTerminal = FakeTerminalFactory.getInstance(terminal).terminals().list().get(0);
+
+		SmartcardNfcTransceiver transceiver = new SmartcardNfcTransceiver(initiatorHandler, cardTerminal);
+		NfcInitiator initiator = new NfcInitiator(initiatorHandler, 1, transceiver);
+		initiator.enable();
+
+		terminal.present(responder);
+		assertNull(events.poll(500, TimeUnit.MILLISECONDS));
+
+		initiator.disable();
+	}
+
+}
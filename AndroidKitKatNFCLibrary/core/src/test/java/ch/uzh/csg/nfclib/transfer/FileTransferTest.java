@@ -0,0 +1,124 @@
+package ch.uzh.csg.nfclib.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import ch.uzh.csg.nfclib.TestUtils;
+
+public class FileTransferTest {
+
+	@Test
+	public void testTransfer_Resume() throws IOException {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "nfclib-transfer-test");
+		directory.mkdirs();
+		File source = new File(directory, "firmware.bin");
+		File target = new File(directory, "firmware.part");
+		File checkpoint = new File(directory, "firmware.checkpoint");
+		byte[] content = TestUtils.getRandomBytes(10000);
+		write(source, content);
+
+		FileTransferSource server = new FileTransferSource("firmware", source).chunkSize(3000);
+		FileTransferSink sink = new FileTransferSink("firmware", target, checkpoint);
+		assertEquals(0, sink.offset());
+		assertFalse(sink.receive(server.handleMessage(sink.request(), null)));
+		assertFalse(sink.receive(server.handleMessage(sink.request(), null)));
+		assertEquals(6000, sink.offset());
+		// the device is lifted
+		sink.close();
+
+		sink = new FileTransferSink("firmware", target, checkpoint);
+		assertEquals(6000, sink.offset());
+		assertEquals(10000, sink.size());
+		assertFalse(sink.receive(server.handleMessage(sink.request(), null)));
+		assertTrue(sink.receive(server.handleMessage(sink.request(), null)));
+		assertTrue(sink.isComplete());
+		assertFalse(checkpoint.exists());
+		assertTrue(Arrays.equals(content, read(target)));
+
+		server.close();
+		source.delete();
+		target.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testTransfer_SourceChanged() throws IOException {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "nfclib-transfer-test");
+		directory.mkdirs();
+		File source = new File(directory, "config.bin");
+		File target = new File(directory, "config.part");
+		File checkpoint = new File(directory, "config.checkpoint");
+		write(source, TestUtils.getRandomBytes(5000));
+
+		FileTransferSource server = new FileTransferSource("config", source).chunkSize(2000);
+		FileTransferSink sink = new FileTransferSink("config", target, checkpoint);
+		assertFalse(sink.receive(server.handleMessage(sink.request(), null)));
+		sink.close();
+		server.close();
+
+		// a new version with a different size is served, the sink starts over
+		byte[] content = TestUtils.getRandomBytes(4500);
+		write(source, content);
+		server = new FileTransferSource("config", source).chunkSize(2000);
+		sink = new FileTransferSink("config", target, checkpoint);
+		assertEquals(2000, sink.offset());
+		assertFalse(sink.receive(server.handleMessage(sink.request(), null)));
+		assertEquals(0, sink.offset());
+		while (!sink.receive(server.handleMessage(sink.request(), null))) {
+		}
+		assertTrue(Arrays.equals(content, read(target)));
+
+		server.close();
+		source.delete();
+		target.delete();
+		directory.delete();
+	}
+
+	@Test(expected = IOException.class)
+	public void testTransfer_UnknownFile() throws IOException {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "nfclib-transfer-test");
+		directory.mkdirs();
+		File source = new File(directory, "other.bin");
+		write(source, TestUtils.getRandomBytes(100));
+		FileTransferSource server = new FileTransferSource("other", source);
+		FileTransferSink sink = new FileTransferSink("firmware", new File(directory, "firmware.part"), new File(directory,
+		        "firmware.checkpoint"));
+		try {
+			sink.receive(server.handleMessage(sink.request(), null));
+		} finally {
+			server.close();
+			source.delete();
+			directory.delete();
+		}
+	}
+
+	private static void write(File file, byte[] content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] read(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] content = new byte[(int) in.length()];
+			in.readFully(content);
+			return content;
+		} finally {
+			in.close();
+		}
+	}
+
+}